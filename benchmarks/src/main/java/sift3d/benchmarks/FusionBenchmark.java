@@ -0,0 +1,59 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import ij.ImagePlus;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* In-memory fusion of the front stack with the aligned back stack, as the last step of stitch.
+*/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class FusionBenchmark
+{
+	@State( Scope.Benchmark )
+	public static class Fusion extends Volumes
+	{
+		/** Fusion method, one of the Stitching methodListCollection */
+		@Param( { "Linear Blending", "Max. Intensity" } )
+		public String method;
+
+		Plugin plugin;
+
+		@Setup
+		public void prepare()
+		{
+			generate();
+			plugin = new Plugin( threads, "Brute force", method );
+		}
+	}
+
+	@Benchmark
+	public ImagePlus fuseImages(Fusion f)
+	{
+		return f.plugin.fuseImages( f.front, f.back, f.overlap );
+	}
+}
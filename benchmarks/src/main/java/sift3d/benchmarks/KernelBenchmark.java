@@ -0,0 +1,251 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Descriptor kernels of the linear scan on random descriptors, with near duplicates so that the
+* nearest, next nearest and following distances differ in their last bits only, and with scales over
+* four octaves so that the scale ratio window leaves some out. The setup first checks that the fastest
+* kernel (LinearScanMatcher.fastestKernel) gives the nearest indices and squared distances of the
+* scalar kernel to the bit, and fails otherwise; main runs the check alone:
+*   java --add-modules jdk.incubator.vector -cp benchmarks.jar sift3d.benchmarks.KernelBenchmark
+*/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Djava.awt.headless=true" } )
+public class KernelBenchmark
+{
+	/** Descriptor lengths checked: SIFT ones (fdSize 4, 8 bins), shorter than a vector, and with a tail */
+	final static private int[] CHECKED_DIMENSIONS = new int[]{ 128, 64, 13, 3 };
+
+	@State( Scope.Benchmark )
+	public static class Descriptors
+	{
+		/** Kernel timed: scalar or fastest */
+		@Param( { "scalar", "fastest" } )
+		public String kernel;
+
+		@Param( { "2000" } )
+		public int count;
+
+		Kernel timed;
+		float[] queries, data;
+		double[] scales, queryScales;
+
+		@Setup
+		public void prepare()
+		{
+			check( 500, 11 );
+			Random random = new Random( 7 );
+			data = descriptors( count, 128, random );
+			scales = scales( count, random );
+			queryScales = new double[ 100 ];
+			queries = queries( data, scales, 128, queryScales, random );
+			timed = new Kernel( "fastest".equals( kernel ) );
+		}
+	}
+
+	@Benchmark
+	public double nearest(Descriptors d)
+	{
+		double sum = 0;
+		for ( int q = 0; q < d.queries.length / 128; ++q )
+			sum += d.timed.nearest( d.queries, q * 128, d.queryScales[ q ], d.data, d.scales, d.count, 128 )[ 1 ];
+		return sum;
+	}
+
+	/** Check the fastest kernel against the scalar one, exits with 1 on a difference */
+	public static void main(String[] args)
+	{
+		try
+		{
+			System.out.println( check( 2000, 11 ) );
+		}
+		catch ( IllegalStateException e )
+		{
+			System.out.println( e.getMessage() );
+			System.exit( 1 );
+		}
+	}
+
+	/**
+	@param descriptors searched per length
+	@param seed
+	@return summary of the check
+	@throws IllegalStateException when the kernels differ
+	*/
+	static String check(int count, long seed)
+	{
+		Kernel scalar = new Kernel( false );
+		Kernel fastest = new Kernel( true );
+		Random random = new Random( seed );
+		int compared = 0;
+		for ( int dims : CHECKED_DIMENSIONS )
+		{
+			float[] data = descriptors( count, dims, random );
+			double[] scales = scales( count, random );
+			double[] queryScales = new double[ 200 ];
+			float[] queries = queries( data, scales, dims, queryScales, random );
+			for ( int q = 0; q < queryScales.length; ++q, ++compared )
+			{
+				double[] a = scalar.nearest( queries, q * dims, queryScales[ q ], data, scales, count, dims );
+				double[] b = fastest.nearest( queries, q * dims, queryScales[ q ], data, scales, count, dims );
+				for ( int k = 0; k < a.length; ++k )
+					if ( Double.doubleToLongBits( a[ k ] ) != Double.doubleToLongBits( b[ k ] ) )
+						throw new IllegalStateException( "Kernel " + fastest.getName() + " differs from the scalar kernel: " + dims +
+							" components, query " + q + ", nearest " + ( int ) b[ 0 ] + " at " + b[ 1 ] + " / " + b[ 2 ] +
+							" instead of " + ( int ) a[ 0 ] + " at " + a[ 1 ] + " / " + a[ 2 ] );
+			}
+		}
+		return "Kernel " + fastest.getName() + " equals the scalar kernel on " + compared + " queries";
+	}
+
+	/** Normalized non negative descriptors, as SIFT ones, in groups of three differing in their last bits */
+	private static float[] descriptors(int count, int dims, Random random)
+	{
+		float[] d = new float[ count * dims ];
+		for ( int j = 0; j < count; ++j )
+		{
+			if ( j % 3 != 0 )
+			{
+				for ( int k = 0; k < dims; ++k )
+					d[ j * dims + k ] = d[ ( j - 1 ) * dims + k ] + ( random.nextInt( 3 ) - 1 ) * Math.ulp( d[ ( j - 1 ) * dims + k ] );
+				continue;
+			}
+			double norm = 0;
+			for ( int k = 0; k < dims; ++k )
+			{
+				d[ j * dims + k ] = random.nextFloat();
+				norm += d[ j * dims + k ] * d[ j * dims + k ];
+			}
+			for ( int k = 0; k < dims; ++k )
+				d[ j * dims + k ] /= ( float ) Math.sqrt( norm );
+		}
+		return d;
+	}
+
+	/** SIFT scales from 1.6 over four octaves, the same in each group of near duplicates */
+	private static double[] scales(int count, Random random)
+	{
+		double[] scales = new double[ count ];
+		for ( int j = 0; j < count; ++j )
+			scales[ j ] = j % 3 != 0 ? scales[ j - 1 ] : 1.6 * Math.pow( 2, 4 * random.nextDouble() );
+		return scales;
+	}
+
+	/**
+	Descriptors of the data moved by a little, down to the last bits, and a few exact copies
+	@param descriptors
+	@param scales of the descriptors
+	@param components of a descriptor
+	@param receives the scales of the queries, one query each: the scale of the descriptor moved, or
+	a little different
+	@param random
+	@return queries, one after the other
+	*/
+	private static float[] queries(float[] data, double[] scales, int dims, double[] queryScales, Random random)
+	{
+		int count = data.length / dims;
+		int n = queryScales.length;
+		float[] q = new float[ n * dims ];
+		for ( int i = 0; i < n; ++i )
+		{
+			int j = random.nextInt( count );
+			queryScales[ i ] = i % 2 == 0 ? scales[ j ] : scales[ j ] * ( 0.6 + 0.8 * random.nextDouble() );
+			float noise = i % 4 == 0 ? 0 : ( float ) Math.pow( 10, -2 - random.nextInt( 6 ) );
+			for ( int k = 0; k < dims; ++k )
+				q[ i * dims + k ] = data[ j * dims + k ] + noise * ( float ) random.nextGaussian();
+		}
+		return q;
+	}
+
+	/** DescriptorKernel of the plugin, through reflection as it is in the default package */
+	static final class Kernel
+	{
+		final private Object kernel;
+		final private Object result;
+		final private Method nearest, name;
+		final private Field best, bestD, secondD;
+
+		/**
+		@param true for LinearScanMatcher.fastestKernel, false for ScalarDescriptorKernel
+		*/
+		Kernel(boolean fastest)
+		{
+			try
+			{
+				Class< ? > k = Class.forName( "DescriptorKernel" );
+				Class< ? > n = Class.forName( "DescriptorKernel$Nearest" );
+				kernel = fastest ?
+						Class.forName( "LinearScanMatcher" ).getMethod( "fastestKernel" ).invoke( null ) :
+						Class.forName( "ScalarDescriptorKernel" ).getDeclaredConstructor().newInstance();
+				result = n.getDeclaredConstructor().newInstance();
+				nearest = k.getMethod( "nearest", float[].class, int.class, double.class, float[].class, double[].class, int.class, int.class, n );
+				name = k.getMethod( "getName" );
+				best = n.getField( "best" );
+				bestD = n.getField( "bestD" );
+				secondD = n.getField( "secondD" );
+			}
+			catch ( Exception e )
+			{
+				throw new IllegalStateException( "The descriptor kernels are not on the class path, or do not match the benchmarks", e );
+			}
+		}
+
+		/** @return index of the nearest descriptor, squared distances of the nearest and next nearest */
+		double[] nearest(float[] queries, int offset, double scale, float[] data, double[] scales, int count, int dims)
+		{
+			try
+			{
+				nearest.invoke( kernel, queries, offset, scale, data, scales, count, dims, result );
+				return new double[]{ best.getInt( result ), bestD.getDouble( result ), secondD.getDouble( result ) };
+			}
+			catch ( IllegalAccessException e )
+			{
+				throw new IllegalStateException( e );
+			}
+			catch ( InvocationTargetException e )
+			{
+				throw new RuntimeException( e.getCause() );
+			}
+		}
+
+		String getName()
+		{
+			try
+			{
+				return ( String ) name.invoke( kernel );
+			}
+			catch ( Exception e )
+			{
+				throw new IllegalStateException( e );
+			}
+		}
+	}
+}
@@ -0,0 +1,109 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Vector;
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.ij.SIFT;
+import mpicbg.models.PointMatch;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Comparison of a front slice with a back slice of the overlap, split into its stages: SIFT extraction,
+* descriptor matching and RANSAC, each on the output of the previous stage computed at setup, then the
+* whole searchBestInliers call and the MIP comparison of CompareCrossSection.
+* The SIFT object of the state is not thread safe: run these with a single JMH thread (the default).
+*/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class MatchingBenchmark
+{
+	@State( Scope.Benchmark )
+	public static class Matching extends Volumes
+	{
+		/** Descriptor matching, one of SIFT_Volume_Stitching.matcherStrings */
+		@Param( { "Brute force", "Kd-tree (exact)", "Linear scan (feature arrays)" } )
+		public String matcher;
+
+		/** Feature lists, one of SIFT_Volume_Stitching.featureStorages */
+		@Param( { "Feature objects", "Float arrays", "8-bit arrays" } )
+		public String storage;
+
+		Plugin plugin;
+		SIFT sift;
+		/** Front and back slices showing the same plane, 1-based */
+		int frontSlice, backSlice;
+		List< Feature > frontFeatures, backFeatures;
+		Vector< PointMatch > candidates;
+
+		@Setup
+		public void prepare()
+		{
+			generate();
+			plugin = new Plugin( threads, matcher, "Linear Blending", storage );
+			sift = plugin.sift();
+
+			backSlice = overlap / 2 + 1;
+			frontSlice = depth - overlap + backSlice;
+			frontFeatures = plugin.sliceFeatures( front.getStack(), frontSlice, sift );
+			backFeatures = plugin.sliceFeatures( back.getStack(), backSlice, sift );
+			candidates = plugin.match( frontFeatures, backFeatures );
+		}
+	}
+
+	@Benchmark
+	public List< Feature > extraction(Matching m)
+	{
+		return m.plugin.sliceFeatures( m.back.getStack(), m.backSlice, m.sift );
+	}
+
+	@Benchmark
+	public Vector< PointMatch > matching(Matching m)
+	{
+		return m.plugin.match( m.frontFeatures, m.backFeatures );
+	}
+
+	@Benchmark
+	public List< PointMatch > ransac(Matching m)
+	{
+		List< PointMatch > inliers = new ArrayList< PointMatch >();
+		m.plugin.ransac( m.candidates, inliers );
+		return inliers;
+	}
+
+	@Benchmark
+	public Object searchBestInliers(Matching m)
+	{
+		return m.plugin.searchBestInliers( m.frontFeatures, m.back.getStack(), m.backSlice, m.sift );
+	}
+
+	@Benchmark
+	public Object compareCrossSection(Matching m)
+	{
+		return m.plugin.compareCrossSection( m.frontOverlap(), m.backOverlap(), m.sift, m.overlap );
+	}
+}
@@ -0,0 +1,114 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.PointMatch;
+
+/**
+* Check that the exact matchers give the candidates of FloatArray2DSIFT.createMatches at the rod of the
+* plugin (0.92): the same correspondences, in the same order, on the SIFT features of synthetic front
+* and back slices. Brute force, the exact kd-tree and the linear scan are checked with Feature objects
+* and float arrays, the 8-bit arrays are quantized and left out. The descriptor kernels are checked too, see
+* KernelBenchmark.
+*
+* Run by the test phase of the benchmarks build (mvn -f benchmarks/pom.xml package), or alone:
+*   java --add-modules jdk.incubator.vector -cp benchmarks.jar sift3d.benchmarks.MatchingCheck
+*/
+public class MatchingCheck
+{
+	final static private String[] MATCHERS = new String[]{ "Brute force", "Kd-tree (exact)", "Linear scan (feature arrays)" };
+	final static private String[] STORAGES = new String[]{ "Feature objects", "Float arrays" };
+	final static private int[] BIT_DEPTHS = new int[]{ 8, 16, 32 };
+	final static private int SIZE = 256, DEPTH = 64;
+
+	private MatchingCheck() {}
+
+	/**
+	@throws IllegalStateException when a matcher or a kernel differs
+	*/
+	public static void main(String[] args)
+	{
+		System.setProperty( "java.awt.headless", "true" );
+		System.out.println( KernelBenchmark.check( 2000, 11 ) );
+
+		int compared = 0;
+		for ( int bitDepth : BIT_DEPTHS )
+		{
+			Volumes volumes = new Volumes();
+			volumes.bitDepth = bitDepth;
+			volumes.size = SIZE;
+			volumes.depth = DEPTH;
+			volumes.threads = 1;
+			volumes.generate();
+
+			/** Slices showing the same plane, and a front slice against a back slice outside the overlap */
+			int backSlice = volumes.overlap / 2 + 1;
+			int frontSlice = DEPTH - volumes.overlap + backSlice;
+			int[][] pairs = new int[][]{ { frontSlice, backSlice }, { frontSlice, volumes.overlap + backSlice } };
+
+			Plugin reference = new Plugin( 1, "Brute force", "Linear Blending" );
+			for ( int[] pair : pairs )
+			{
+				List< Feature > front = reference.sliceFeatures( volumes.front.getStack(), pair[ 0 ], reference.sift() );
+				List< Feature > back = reference.sliceFeatures( volumes.back.getStack(), pair[ 1 ], reference.sift() );
+				Vector< PointMatch > expected = FloatArray2DSIFT.createMatches( back, front, 1.5f, null, Float.MAX_VALUE, 0.92f );
+
+				for ( String storage : STORAGES )
+					for ( String matcher : MATCHERS )
+					{
+						Plugin plugin = new Plugin( 1, matcher, "Linear Blending", storage );
+						Vector< PointMatch > found = plugin.match(
+								plugin.sliceFeatures( volumes.front.getStack(), pair[ 0 ], plugin.sift() ),
+								plugin.sliceFeatures( volumes.back.getStack(), pair[ 1 ], plugin.sift() ) );
+						String difference = difference( expected, found );
+						if ( difference != null )
+							throw new IllegalStateException( matcher + " on " + storage + " differs from createMatches (" + bitDepth +
+									"-bit, front slice " + pair[ 0 ] + ", back slice " + pair[ 1 ] + "): " + difference );
+						++compared;
+					}
+				System.out.println( bitDepth + "-bit, front slice " + pair[ 0 ] + ", back slice " + pair[ 1 ] + ": " +
+						expected.size() + " candidates" );
+			}
+		}
+		System.out.println( "The exact matchers give the candidates of createMatches in " + compared + " comparisons" );
+	}
+
+	/** @return first difference between the correspondences, null if there is none */
+	private static String difference(List< PointMatch > expected, List< PointMatch > found)
+	{
+		for ( int i = 0; i < Math.min( expected.size(), found.size() ); ++i )
+		{
+			PointMatch e = expected.get( i );
+			PointMatch f = found.get( i );
+			if ( !same( e.getP1().getL(), f.getP1().getL() ) || !same( e.getP2().getL(), f.getP2().getL() ) )
+				return "candidate " + i + " " + text( f ) + " instead of " + text( e );
+		}
+		if ( expected.size() != found.size() )
+			return found.size() + " candidates instead of " + expected.size();
+		return null;
+	}
+
+	private static boolean same(double[] a, double[] b)
+	{
+		return Double.doubleToLongBits( a[ 0 ] ) == Double.doubleToLongBits( b[ 0 ] ) &&
+				Double.doubleToLongBits( a[ 1 ] ) == Double.doubleToLongBits( b[ 1 ] );
+	}
+
+	private static String text(PointMatch m)
+	{
+		double[] p1 = m.getP1().getL();
+		double[] p2 = m.getP2().getL();
+		return "(" + p1[ 0 ] + ", " + p1[ 1 ] + ") - (" + p2[ 0 ] + ", " + p2[ 1 ] + ")";
+	}
+}
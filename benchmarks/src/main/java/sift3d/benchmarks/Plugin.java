@@ -0,0 +1,185 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.ij.SIFT;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.PointMatch;
+
+/**
+* One SIFT_Volume_Stitching instance seen from the benchmarks. The plugin classes are in the default
+* package, which a named package cannot import, so the calls go through reflection; methods are looked
+* up once, the cost of invoking them is negligible next to the calls measured.
+*/
+final class Plugin
+{
+	final private Object plugin;
+	final private Object params;
+	final private Object matcher;
+	final private String fusionMethod;
+	final private float rod, maxEpsilon, minInlierRatio;
+
+	final private Method stackRotation, createMIP, rotation3D, compareCrossSection, searchBestInliers, sliceFeatures, fuseImages;
+	final private Method match, createRansac, createModel, createSIFT;
+	private Method filterRansac;
+
+	/**
+	@param number of threads of the plugin
+	@param descriptor matching method, one of SIFT_Volume_Stitching.matcherStrings
+	@param fusion method, one of the Stitching methodListCollection
+	*/
+	Plugin(int numThreads, String matcherMethod, String fusionMethod)
+	{
+		this( numThreads, matcherMethod, fusionMethod, "Feature objects" );
+	}
+
+	/**
+	@param number of threads of the plugin
+	@param descriptor matching method, one of SIFT_Volume_Stitching.matcherStrings
+	@param fusion method, one of the Stitching methodListCollection
+	@param feature lists, one of SIFT_Volume_Stitching.featureStorages
+	*/
+	Plugin(int numThreads, String matcherMethod, String fusionMethod, String featureStorage)
+	{
+		try
+		{
+			Class< ? > c = Class.forName( "SIFT_Volume_Stitching" );
+			plugin = c.getDeclaredConstructor().newInstance();
+			c.getField( "numThreads" ).setInt( plugin, numThreads );
+			c.getField( "matcherMethod" ).set( plugin, matcherMethod );
+			c.getField( "fusionMethod" ).set( plugin, fusionMethod );
+			c.getField( "featureStorage" ).set( plugin, featureStorage );
+			this.fusionMethod = fusionMethod;
+
+			Class< ? > diagnostics = Class.forName( "Diagnostics" );
+			c.getMethod( "setDiagnostics", diagnostics ).invoke( plugin, diagnostics.getMethod( "discard" ).invoke( null ) );
+			params = c.getMethod( "prepareMatching" ).invoke( plugin );
+
+			stackRotation = c.getMethod( "StackRotation", ImagePlus.class, int.class, int.class, int.class );
+			createMIP = c.getMethod( "createMIP", ImageStack.class, int.class );
+			rotation3D = c.getMethod( "Rotation3D", ImagePlus.class, AffineModel3D.class );
+			compareCrossSection = c.getMethod( "CompareCrossSection", ImageStack.class, ImageStack.class, SIFT.class, int.class );
+			searchBestInliers = c.getMethod( "searchBestInliers", ij.process.ImageProcessor.class, List.class, ImageStack.class, int.class, SIFT.class, boolean.class );
+			sliceFeatures = c.getMethod( "sliceFeatures", ImageStack.class, int.class, SIFT.class );
+			fuseImages = c.getDeclaredMethod( "fuseImages", ImagePlus.class, ImagePlus.class, int.class, String.class, String.class );
+			fuseImages.setAccessible( true );
+
+			Class< ? > p = params.getClass();
+			matcher = p.getField( "matcher" ).get( params );
+			rod = p.getField( "rod" ).getFloat( params );
+			maxEpsilon = p.getField( "maxEpsilon" ).getFloat( params );
+			minInlierRatio = p.getField( "minInlierRatio" ).getFloat( params );
+			match = Class.forName( "FeatureMatcher" ).getMethod( "match", List.class, List.class, double.class );
+			createRansac = p.getMethod( "createRansac" );
+			createModel = p.getMethod( "createModel" );
+			createSIFT = p.getMethod( "createSIFT" );
+		}
+		catch ( Exception e )
+		{
+			throw new IllegalStateException( "SIFT_Volume_Stitching is not on the class path, or does not match the benchmarks", e );
+		}
+	}
+
+	/** @return new SIFT object with the plugin parameters, for the calling thread only */
+	SIFT sift()
+	{
+		return ( SIFT ) invoke( createSIFT, params );
+	}
+
+	ImagePlus stackRotation(ImagePlus imp, int rx, int ry, int rz)
+	{
+		return ( ImagePlus ) invoke( stackRotation, plugin, imp, rx, ry, rz );
+	}
+
+	ImageStack createMIP(ImageStack stack, int step)
+	{
+		return ( ImageStack ) invoke( createMIP, plugin, stack, step );
+	}
+
+	ImagePlus rotation3D(ImagePlus imp, AffineModel3D model)
+	{
+		return ( ImagePlus ) invoke( rotation3D, plugin, imp, model );
+	}
+
+	/** @return MatchResult of the MIPs */
+	Object compareCrossSection(ImageStack front, ImageStack back, SIFT sift, int mip)
+	{
+		return invoke( compareCrossSection, plugin, front, back, sift, mip );
+	}
+
+	/** @return MatchResult of a front slice with a back slice: back extraction, matching and RANSAC */
+	Object searchBestInliers(List< Feature > front, ImageStack back, int slice, SIFT sift)
+	{
+		return invoke( searchBestInliers, plugin, null, front, back, slice, sift, false );
+	}
+
+	@SuppressWarnings( "unchecked" )
+	List< Feature > sliceFeatures(ImageStack stack, int slice, SIFT sift)
+	{
+		return ( List< Feature > ) invoke( sliceFeatures, plugin, stack, slice, sift );
+	}
+
+	/** @return candidates, in the order of SIFT_Volume_Stitching.matchFeatures */
+	@SuppressWarnings( "unchecked" )
+	Vector< PointMatch > match(List< Feature > front, List< Feature > back)
+	{
+		return ( Vector< PointMatch > ) invoke( match, matcher, back, front, ( double ) rod );
+	}
+
+	/**
+	@param candidates, left unchanged
+	@param inliers found
+	@return true when a model is found
+	*/
+	boolean ransac(Vector< PointMatch > candidates, Collection< PointMatch > inliers)
+	{
+		Object ransac = invoke( createRansac, params );
+		if ( filterRansac == null )
+		{
+			for ( Method m : ransac.getClass().getMethods() )
+				if ( m.getName().equals( "filterRansac" ) ) filterRansac = m;
+		}
+		return ( Boolean ) invoke( filterRansac, ransac, invoke( createModel, params ), new ArrayList< PointMatch >( candidates ), inliers, ( double ) maxEpsilon, ( double ) minInlierRatio );
+	}
+
+	ImagePlus fuseImages(ImagePlus front, ImagePlus back, int ov)
+	{
+		return ( ImagePlus ) invoke( fuseImages, plugin, front, back, ov, fusionMethod, "Fused" );
+	}
+
+	private static Object invoke(Method method, Object target, Object... args)
+	{
+		try
+		{
+			return method.invoke( target, args );
+		}
+		catch ( InvocationTargetException e )
+		{
+			Throwable cause = e.getCause();
+			if ( cause instanceof RuntimeException ) throw ( RuntimeException ) cause;
+			if ( cause instanceof Error ) throw ( Error ) cause;
+			throw new IllegalStateException( cause );
+		}
+		catch ( IllegalAccessException e )
+		{
+			throw new IllegalStateException( e );
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.Random;
+
+import mpicbg.models.AffineModel3D;
+
+/**
+* Front and back stacks cut from one volume of Gaussian blobs on a noisy background, generated from a
+* seed so every run and every fork measures the same data. The back stack starts overlap slices before
+* the end of the front stack and is shifted laterally, as a slightly misplaced second half would be.
+*/
+final class SyntheticVolumes
+{
+	/** Lateral shift of the back stack in px */
+	final static int SHIFT_X = 6, SHIFT_Y = -4;
+
+	private SyntheticVolumes() {}
+
+	/**
+	@param bit depth, 8, 16 or 32
+	@param width and height of the slices
+	@param depth of each stack
+	@param overlap in slices
+	@param seed
+	@return front and back stacks
+	*/
+	static ImagePlus[] pair(int bitDepth, int size, int depth, int overlap, long seed)
+	{
+		int total = 2 * depth - overlap;
+		float[][] volume = volume( size + Math.abs( SHIFT_X ), size + Math.abs( SHIFT_Y ), total, seed );
+		int width = size + Math.abs( SHIFT_X );
+
+		ImageStack front = new ImageStack( size, size );
+		ImageStack back = new ImageStack( size, size );
+		for ( int z = 0; z < depth; ++z )
+		{
+			front.addSlice( null, convert( crop( volume[ z ], width, Math.max( 0, -SHIFT_X ), Math.max( 0, -SHIFT_Y ), size ), bitDepth ) );
+			back.addSlice( null, convert( crop( volume[ depth - overlap + z ], width, Math.max( 0, SHIFT_X ), Math.max( 0, SHIFT_Y ), size ), bitDepth ) );
+		}
+		return new ImagePlus[]{ new ImagePlus( "front", front ), new ImagePlus( "back", back ) };
+	}
+
+	/** @return small rotation around the y axis, as the registration of a tilted stack finds */
+	static AffineModel3D tilt()
+	{
+		double a = Math.toRadians( 2 );
+		AffineModel3D model = new AffineModel3D();
+		model.set(
+			Math.cos( a ), 0, Math.sin( a ), SHIFT_X,
+			0, 1, 0, SHIFT_Y,
+			-Math.sin( a ), 0, Math.cos( a ), 0 );
+		return model;
+	}
+
+	/** @return slices of blobs, a blob per 4000 voxels with a sigma of 1.5 to 4 voxels */
+	private static float[][] volume(int w, int h, int d, long seed)
+	{
+		Random random = new Random( seed );
+		float[][] volume = new float[ d ][ w * h ];
+		for ( float[] slice : volume )
+			for ( int i = 0; i < slice.length; ++i )
+				slice[ i ] = 0.05f + 0.02f * ( float ) random.nextGaussian();
+
+		int blobs = ( int ) ( ( long ) w * h * d / 4000 );
+		for ( int b = 0; b < blobs; ++b )
+		{
+			double cx = random.nextDouble() * w, cy = random.nextDouble() * h, cz = random.nextDouble() * d;
+			double sigma = 1.5 + 2.5 * random.nextDouble();
+			float amplitude = 0.3f + 0.7f * random.nextFloat();
+			double s = -0.5 / ( sigma * sigma );
+			int r = ( int ) Math.ceil( 3 * sigma );
+
+			for ( int z = Math.max( 0, ( int ) cz - r ); z <= Math.min( d - 1, ( int ) cz + r ); ++z )
+			{
+				float[] slice = volume[ z ];
+				double dz = ( z - cz ) * ( z - cz );
+				for ( int y = Math.max( 0, ( int ) cy - r ); y <= Math.min( h - 1, ( int ) cy + r ); ++y )
+				{
+					double dyz = dz + ( y - cy ) * ( y - cy );
+					for ( int x = Math.max( 0, ( int ) cx - r ); x <= Math.min( w - 1, ( int ) cx + r ); ++x )
+						slice[ y * w + x ] += amplitude * ( float ) Math.exp( s * ( dyz + ( x - cx ) * ( x - cx ) ) );
+				}
+			}
+		}
+		return volume;
+	}
+
+	private static float[] crop(float[] slice, int width, int x0, int y0, int size)
+	{
+		float[] crop = new float[ size * size ];
+		for ( int y = 0; y < size; ++y )
+			System.arraycopy( slice, ( y0 + y ) * width + x0, crop, y * size, size );
+		return crop;
+	}
+
+	/** @return pixels of the bit depth, 16-bit data spans 12 bits as camera data does */
+	private static Object convert(float[] pixels, int bitDepth)
+	{
+		switch ( bitDepth )
+		{
+			case 8:
+				byte[] bytes = new byte[ pixels.length ];
+				for ( int i = 0; i < pixels.length; ++i )
+					bytes[ i ] = ( byte ) clamp( pixels[ i ] * 200, 255 );
+				return bytes;
+			case 16:
+				short[] shorts = new short[ pixels.length ];
+				for ( int i = 0; i < pixels.length; ++i )
+					shorts[ i ] = ( short ) clamp( pixels[ i ] * 3200, 4095 );
+				return shorts;
+			case 32:
+				return pixels;
+			default:
+				throw new IllegalArgumentException( "Bit depth " + bitDepth + " is not 8, 16 or 32" );
+		}
+	}
+
+	private static int clamp(float v, int max)
+	{
+		return Math.max( 0, Math.min( max, Math.round( v ) ) );
+	}
+}
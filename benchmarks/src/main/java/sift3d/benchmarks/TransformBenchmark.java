@@ -0,0 +1,77 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import java.util.concurrent.TimeUnit;
+
+import mpicbg.models.AffineModel3D;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+* Whole stack transforms: the 90° rotation of the orientation step, the MIP of the cross sections and
+* the affine resampling of the back stack.
+*/
+@BenchmarkMode( Mode.AverageTime )
+@OutputTimeUnit( TimeUnit.MILLISECONDS )
+@Warmup( iterations = 3, time = 2 )
+@Measurement( iterations = 5, time = 2 )
+@Fork( value = 1, jvmArgs = { "-Xmx4g", "-Djava.awt.headless=true" } )
+public class TransformBenchmark
+{
+	@State( Scope.Benchmark )
+	public static class Transform extends Volumes
+	{
+		/** Slices per MIP, as the MIP setting of the dialog */
+		@Param( { "8" } )
+		public int mip;
+
+		Plugin plugin;
+		AffineModel3D model;
+
+		@Setup
+		public void prepare()
+		{
+			generate();
+			plugin = new Plugin( threads, "Brute force", "Linear Blending" );
+			model = SyntheticVolumes.tilt();
+		}
+	}
+
+	@Benchmark
+	public ImagePlus stackRotation(Transform t)
+	{
+		return t.plugin.stackRotation( t.back, 0, 90, 0 );
+	}
+
+	@Benchmark
+	public ImageStack createMIP(Transform t)
+	{
+		return t.plugin.createMIP( t.front.getStack(), t.mip );
+	}
+
+	@Benchmark
+	public ImagePlus rotation3D(Transform t)
+	{
+		return t.plugin.rotation3D( t.back, t.model );
+	}
+}
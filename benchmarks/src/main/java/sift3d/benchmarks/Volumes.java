@@ -0,0 +1,69 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+package sift3d.benchmarks;
+
+import ij.ImagePlus;
+import ij.ImageStack;
+
+import org.openjdk.jmh.annotations.Param;
+
+/**
+* Synthetic front and back stacks of one benchmark trial, with the parameters common to every benchmark.
+* The states of the benchmarks extend it and call generate from their setup, once per trial and outside
+* the measurements.
+*/
+public class Volumes
+{
+	@Param( { "8", "16", "32" } )
+	public int bitDepth;
+
+	/** Width and height of the slices */
+	@Param( { "256", "512" } )
+	public int size;
+
+	/** Slices per stack */
+	@Param( { "64" } )
+	public int depth;
+
+	/** Threads of the plugin */
+	@Param( { "1", "4" } )
+	public int threads;
+
+	ImagePlus front, back;
+	/** Overlap in slices, a quarter of the stacks */
+	int overlap;
+
+	void generate()
+	{
+		overlap = Math.max( 1, depth / 4 );
+		ImagePlus[] pair = SyntheticVolumes.pair( bitDepth, size, depth, overlap, 42 );
+		front = pair[ 0 ];
+		back = pair[ 1 ];
+	}
+
+	/** @return last overlap slices of the front stack, sharing its pixels */
+	ImageStack frontOverlap()
+	{
+		return slices( front.getStack(), depth - overlap + 1, depth );
+	}
+
+	/** @return first overlap slices of the back stack, sharing its pixels */
+	ImageStack backOverlap()
+	{
+		return slices( back.getStack(), 1, overlap );
+	}
+
+	private static ImageStack slices(ImageStack stack, int first, int last)
+	{
+		ImageStack slices = new ImageStack( stack.getWidth(), stack.getHeight() );
+		for ( int i = first; i <= last; ++i )
+			slices.addSlice( null, stack.getPixels( i ) );
+		return slices;
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+* DescriptorKernel on the SIMD units, through the incubating Vector API of JDK 17 and later: the
+* distance to every descriptor is first summed in float lanes of the widest vectors of the CPU (16
+* lanes with AVX-512). Lane sums do not add up in the scalar order, so they only reject: a descriptor
+* whose float distance exceeds the next closest distance by more than the rounding error of a float
+* sum is farther, and the few others are measured again with ScalarDescriptorKernel.squaredDistance.
+* Indices and distances are therefore those of the scalar kernel.
+*
+* Compiled with the vector profile only (mvn -Pvector), and used when the JVM runs with
+* --add-modules jdk.incubator.vector; LinearScanMatcher falls back to the scalar kernel otherwise.
+*/
+public class VectorDescriptorKernel implements DescriptorKernel
+{
+	final static private VectorSpecies< Float > SPECIES = FloatVector.SPECIES_PREFERRED;
+
+	/** Relative error bound of a float sum of squares, with a wide margin: 128 terms add up to 8e-6 */
+	final static private double ROUNDING = 1e-4;
+
+	public void nearest(float[] queries, int offset, double scale, float[] data, double[] scales, int count, int dims, Nearest result)
+	{
+		final int lanes = SPECIES.length();
+		final int upper = SPECIES.loopBound( dims );
+
+		int best = -1;
+		double bestD = Double.MAX_VALUE, secondD = Double.MAX_VALUE;
+		double reject = Double.POSITIVE_INFINITY;
+		for ( int j = 0, o = 0; j < count; ++j, o += dims )
+		{
+			if ( !BruteForceMatcher.inScaleWindow( scale, scales[ j ] ) ) continue;
+			FloatVector sum = FloatVector.zero( SPECIES );
+			int k = 0;
+			for ( ; k < upper; k += lanes )
+			{
+				FloatVector v = FloatVector.fromArray( SPECIES, queries, offset + k ).sub( FloatVector.fromArray( SPECIES, data, o + k ) );
+				sum = v.fma( v, sum );
+			}
+			float approx = sum.reduceLanes( VectorOperators.ADD );
+			for ( ; k < dims; ++k )
+			{
+				float v = queries[ offset + k ] - data[ o + k ];
+				approx += v * v;
+			}
+			if ( approx > reject ) continue;
+
+			double d = ScalarDescriptorKernel.squaredDistance( queries, offset, data, o, dims, secondD );
+			if ( d < bestD )
+			{
+				secondD = bestD;
+				bestD = d;
+				best = j;
+			}
+			else if ( d < secondD )
+			{
+				secondD = d;
+			}
+			else continue;
+			if ( secondD < Double.MAX_VALUE ) reject = secondD * ( 1 + ROUNDING );
+		}
+		result.best = best;
+		result.bestD = bestD;
+		result.secondD = secondD;
+	}
+
+	public String getName()
+	{
+		return "Vector API, " + SPECIES.length() + " float lanes";
+	}
+}
@@ -0,0 +1,171 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+
+import mpicbg.models.AbstractModel;
+import mpicbg.models.IllDefinedDataPointsException;
+import mpicbg.models.NotEnoughDataPointsException;
+import mpicbg.models.PointMatch;
+
+/**
+* RANSAC followed by the robust filter of AbstractModel.filterRansac, with the number of iterations
+* set from the best inlier ratio found so far: after k iterations the probability that no sample was
+* free of outliers is (1 - w^s)^k for an inlier ratio w and samples of s matches, so the search stops
+* once it falls under 1 - confidence. Clearly matching slices then need a few iterations only, the
+* maximum is spent on slices without a consistent set.
+*
+* With PROSAC ordering, samples are first drawn among the candidates of lowest descriptor distance
+* (DescriptorMatch) and the sampled set grows by one candidate per iteration up to all of them.
+*
+* Samples come from a seeded generator owned by the instance, so results are reproducible and
+* several instances can run in parallel.
+*/
+public class AdaptiveRansac
+{
+	final private int maxIterations;
+	final private double confidence;
+	final private boolean prosac;
+	final private Random rnd;
+
+	private int iterations = 0;
+
+	/**
+	@param maximal number of iterations
+	@param probability that an outlier free sample was drawn, e.g. 0.99
+	@param true to sample the most distinctive candidates first
+	@param random seed
+	*/
+	public AdaptiveRansac(int maxIterations, double confidence, boolean prosac, long seed)
+	{
+		this.maxIterations = maxIterations;
+		this.confidence = confidence;
+		this.prosac = prosac;
+		this.rnd = new Random( seed );
+	}
+
+	/** @return number of iterations of the last call */
+	public int getIterations()
+	{
+		return iterations;
+	}
+
+	/**
+	Estimate the model and its inliers
+	@param model, set to the estimate if one is found
+	@param candidate correspondences
+	@param receives the inliers
+	@param maximal allowed alignment error in px
+	@param inlier/candidates ratio
+	@return true if a model was found
+	*/
+	public < M extends AbstractModel< M >, P extends PointMatch > boolean filterRansac(AbstractModel< M > model, List< P > candidates, Collection< P > inliers, double epsilon, double minInlierRatio)
+		throws NotEnoughDataPointsException
+	{
+		inliers.clear();
+		iterations = 0;
+		final int s = model.getMinNumMatches();
+		final int n = candidates.size();
+		if ( n < s )
+			throw new NotEnoughDataPointsException( n + " data points are not enough to solve the Model, at least " + s + " data points required." );
+
+		List< P > order = prosac ? byDescriptorDistance( candidates ) : candidates;
+
+		final M m = model.copy();
+		M best = null;
+		List< P > bestInliers = new ArrayList< P >();
+		List< P > sample = new ArrayList< P >();
+		long needed = maxIterations;
+
+A:		while ( iterations < needed )
+		{
+			++iterations;
+
+			/** Minimal sample, among the first candidates with PROSAC ordering */
+			int range = prosac ? Math.min( n, s + iterations - 1 ) : n;
+			sample.clear();
+			while ( sample.size() < s )
+			{
+				P p = order.get( rnd.nextInt( range ) );
+				if ( !sample.contains( p ) ) sample.add( p );
+			}
+
+			try
+			{
+				m.fit( sample );
+			}
+			catch ( IllDefinedDataPointsException e )
+			{
+				continue;
+			}
+
+			/** Refit on the inliers while they grow, as AbstractModel.ransac does */
+			ArrayList< P > tempInliers = new ArrayList< P >();
+			int numInliers = 0;
+			boolean isGood = m.test( candidates, tempInliers, epsilon, minInlierRatio );
+			while ( isGood && numInliers < tempInliers.size() )
+			{
+				numInliers = tempInliers.size();
+				try
+				{
+					m.fit( tempInliers );
+				}
+				catch ( IllDefinedDataPointsException e )
+				{
+					continue A;
+				}
+				isGood = m.test( candidates, tempInliers, epsilon, minInlierRatio );
+			}
+
+			if ( isGood && tempInliers.size() >= s && tempInliers.size() > bestInliers.size() )
+			{
+				best = m.copy();
+				bestInliers = tempInliers;
+				needed = Math.min( maxIterations, requiredIterations( ( double ) bestInliers.size() / n, s ) );
+			}
+		}
+
+		if ( best == null ) return false;
+
+		model.set( best );
+		return model.filter( bestInliers, inliers );
+	}
+
+	/** Iterations needed to draw one outlier free sample with the configured confidence */
+	private long requiredIterations(double inlierRatio, int s)
+	{
+		double good = Math.pow( inlierRatio, s );
+		if ( good >= 1 ) return 0;
+		if ( good <= 0 ) return maxIterations;
+		return ( long ) Math.ceil( Math.log( 1 - confidence ) / Math.log( 1 - good ) );
+	}
+
+	/** Candidates sorted by increasing descriptor distance, unknown distances last */
+	private static < P extends PointMatch > List< P > byDescriptorDistance(List< P > candidates)
+	{
+		List< P > sorted = new ArrayList< P >( candidates );
+		Collections.sort( sorted, new Comparator< P >()
+		{
+			public int compare(P a, P b)
+			{
+				return Double.compare( distance( a ), distance( b ) );
+			}
+		} );
+		return sorted;
+	}
+
+	private static double distance(PointMatch m)
+	{
+		return m instanceof DescriptorMatch ? ( (DescriptorMatch) m ).descriptorDistance : Double.MAX_VALUE;
+	}
+}
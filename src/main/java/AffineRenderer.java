@@ -0,0 +1,301 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import mpicbg.ij.stack.InverseTransformMapping;
+import mpicbg.models.AffineModel3D;
+import mpicbg.models.NoninvertibleModelException;
+import mpicbg.models.TranslationModel3D;
+
+/**
+* Renders a stack through a 3D affine transform with trilinear interpolation. Every target slice
+* only depends on the source and the transform, so slices are rendered in parallel: each worker
+* owns a copy of the transform, takes the next free slice and writes it into a target stack
+* allocated beforehand.
+*
+* The mapping reads every slice of the stack it is given, so for a virtual source each target slice is
+* mapped from a view of the source slices it covers only.
+*/
+public class AffineRenderer
+{
+	final private int numThreads;
+
+	/**
+	@param number of threads
+	*/
+	public AffineRenderer(int numThreads)
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	@param source stack, in memory or virtual
+	@param transform from source to target coordinates
+	@param target width
+	@param target height
+	@param target depth
+	@return rendered stack, same type as the source
+	*/
+	public ImageStack render(final ImageStack source, final AffineModel3D transform, int w, int h, int d)
+	{
+		/** Preallocated target */
+		final ImageProcessor[] target = new ImageProcessor[ d ];
+		ImageProcessor template = source.getProcessor( 1 );
+		for ( int s = 0; s < d; ++s )
+		{
+			target[ s ] = template.createProcessor( w, h );
+		}
+
+		final AtomicInteger next = new AtomicInteger( 0 );
+		int workers = Math.min( numThreads, d );
+		List< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+		for ( int t = 0; t < workers; ++t )
+		{
+			tasks.add( new Callable< Integer >()
+			{
+				public Integer call()
+				{
+					AffineModel3D t = transform.copy();
+					int rendered = 0;
+					for ( int s = next.getAndIncrement(); s < target.length; s = next.getAndIncrement() )
+					{
+						renderSlice( source, t, s, target[ s ] );
+						++rendered;
+					}
+					return Integer.valueOf( rendered );
+				}
+			} );
+		}
+		ParallelTasks.run( tasks, numThreads );
+
+		ImageStack targetStack = new ImageStack( w, h );
+		for ( int s = 0; s < d; ++s )
+		{
+			targetStack.addSlice( "", target[ s ] );
+		}
+		return targetStack;
+	}
+
+	/**
+	Render stacks of the same size through the same transform, such as the channels of an image: the
+	source coordinates of every target voxel are computed once and sampled in each stack, trilinearly
+	@param source stacks in memory, of the same size
+	@param transform from source to target coordinates
+	@param target width
+	@param target height
+	@param target depth
+	@return rendered stacks in the order of the sources, each of the type of its source
+	*/
+	public ImageStack[] render(final ImageStack[] sources, final AffineModel3D transform, final int w, final int h, int d)
+	{
+		final Object[][] target = new Object[ sources.length ][ d ];
+		final AtomicInteger next = new AtomicInteger( 0 );
+		int workers = Math.min( numThreads, d );
+		List< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+		for ( int t = 0; t < workers; ++t )
+		{
+			tasks.add( new Callable< Integer >()
+			{
+				public Integer call()
+				{
+					AffineModel3D t = transform.copy();
+					float[] coordinates = new float[ 3 * w * h ];
+					int rendered = 0;
+					for ( int s = next.getAndIncrement(); s < target[ 0 ].length; s = next.getAndIncrement() )
+					{
+						boolean inside = sourceCoordinates( t, s, w, h, sources[ 0 ], coordinates );
+						for ( int c = 0; c < sources.length; ++c )
+						{
+							target[ c ][ s ] = blank( sources[ c ].getBitDepth(), w * h );
+							if ( inside ) sample( sources[ c ], coordinates, target[ c ][ s ] );
+						}
+						++rendered;
+					}
+					return Integer.valueOf( rendered );
+				}
+			} );
+		}
+		ParallelTasks.run( tasks, numThreads );
+
+		ImageStack[] stacks = new ImageStack[ sources.length ];
+		for ( int c = 0; c < sources.length; ++c )
+		{
+			stacks[ c ] = new ImageStack( w, h );
+			for ( int s = 0; s < d; ++s )
+				stacks[ c ].addSlice( "", target[ c ][ s ] );
+		}
+		return stacks;
+	}
+
+	/**
+	Source coordinates of the voxels of target slice s, x, y and z of each voxel, x is -1 outside of the source
+	@return true if at least one voxel lies inside the source
+	*/
+	private static boolean sourceCoordinates(AffineModel3D transform, int s, int w, int h, ImageStack source, float[] coordinates)
+	{
+		int sw = source.getWidth() - 1, sh = source.getHeight() - 1, sd = source.getSize() - 1;
+		boolean inside = false;
+		double[] p = new double[ 3 ];
+		try
+		{
+			for ( int y = 0, i = 0; y < h; ++y )
+			{
+				for ( int x = 0; x < w; ++x, i += 3 )
+				{
+					p[ 0 ] = x; p[ 1 ] = y; p[ 2 ] = s;
+					transform.applyInverseInPlace( p );
+					if ( p[ 0 ] >= 0 && p[ 0 ] <= sw && p[ 1 ] >= 0 && p[ 1 ] <= sh && p[ 2 ] >= 0 && p[ 2 ] <= sd )
+					{
+						coordinates[ i ] = ( float ) p[ 0 ];
+						coordinates[ i + 1 ] = ( float ) p[ 1 ];
+						coordinates[ i + 2 ] = ( float ) p[ 2 ];
+						inside = true;
+					}
+					else coordinates[ i ] = -1;
+				}
+			}
+		}
+		catch ( NoninvertibleModelException e )
+		{
+			e.printStackTrace();
+			return false;
+		}
+		return inside;
+	}
+
+	/** Trilinear sampling of a source at the given coordinates into the target pixels */
+	private static void sample(ImageStack source, float[] coordinates, Object target)
+	{
+		int sw = source.getWidth(), sh = source.getHeight(), sd = source.getSize();
+		/** Source slices, read when first sampled */
+		Object[] planes = new Object[ sd ];
+		int channels = target instanceof int[] ? 3 : 1;
+		for ( int i = 0, j = 0; j < coordinates.length; ++i, j += 3 )
+		{
+			float x = coordinates[ j ];
+			if ( x < 0 ) continue;
+			float y = coordinates[ j + 1 ], z = coordinates[ j + 2 ];
+			int x0 = ( int ) x, y0 = ( int ) y, z0 = ( int ) z;
+			int x1 = Math.min( x0 + 1, sw - 1 ), y1 = Math.min( y0 + 1, sh - 1 ), z1 = Math.min( z0 + 1, sd - 1 );
+			float fx = x - x0, fy = y - y0, fz = z - z0;
+			if ( planes[ z0 ] == null ) planes[ z0 ] = source.getPixels( z0 + 1 );
+			if ( planes[ z1 ] == null ) planes[ z1 ] = source.getPixels( z1 + 1 );
+			int i00 = y0 * sw + x0, i10 = y0 * sw + x1, i01 = y1 * sw + x0, i11 = y1 * sw + x1;
+
+			int rgb = 0xff000000;
+			for ( int c = 0; c < channels; ++c )
+			{
+				int shift = 16 - 8 * c;
+				float a = bilinear( planes[ z0 ], i00, i10, i01, i11, fx, fy, shift );
+				float b = bilinear( planes[ z1 ], i00, i10, i01, i11, fx, fy, shift );
+				float v = a + fz * ( b - a );
+				if ( target instanceof byte[] ) ( (byte[]) target )[ i ] = ( byte ) ( v + 0.5f );
+				else if ( target instanceof short[] ) ( (short[]) target )[ i ] = ( short ) ( v + 0.5f );
+				else if ( target instanceof float[] ) ( (float[]) target )[ i ] = v;
+				else rgb |= ( ( int ) ( v + 0.5f ) ) << shift;
+			}
+			if ( channels == 3 ) ( (int[]) target )[ i ] = rgb;
+		}
+	}
+
+	private static float bilinear(Object pixels, int i00, int i10, int i01, int i11, float fx, float fy, int shift)
+	{
+		float v00 = value( pixels, i00, shift ), v10 = value( pixels, i10, shift );
+		float v01 = value( pixels, i01, shift ), v11 = value( pixels, i11, shift );
+		float a = v00 + fx * ( v10 - v00 );
+		float b = v01 + fx * ( v11 - v01 );
+		return a + fy * ( b - a );
+	}
+
+	/** Pixel value, one channel of an RGB pixel */
+	private static float value(Object pixels, int i, int shift)
+	{
+		if ( pixels instanceof byte[] ) return ( (byte[]) pixels )[ i ] & 0xff;
+		if ( pixels instanceof short[] ) return ( (short[]) pixels )[ i ] & 0xffff;
+		if ( pixels instanceof float[] ) return ( (float[]) pixels )[ i ];
+		return ( ( (int[]) pixels )[ i ] >> shift ) & 0xff;
+	}
+
+	private static Object blank(int bitDepth, int size)
+	{
+		switch ( bitDepth )
+		{
+			case 8: return new byte[ size ];
+			case 16: return new short[ size ];
+			case 32: return new float[ size ];
+			default: return new int[ size ];
+		}
+	}
+
+	/**
+	Render one target slice
+	@param source stack, in memory or virtual
+	@param transform from source to target coordinates, not shared with other threads
+	@param target slice index (0-based)
+	@param target slice, blank
+	*/
+	public static void renderSlice(ImageStack source, AffineModel3D transform, int s, ImageProcessor target)
+	{
+		ImageStack window = source;
+		AffineModel3D t = transform;
+		if ( source.isVirtual() )
+		{
+			int[] range = sourceRange( transform, s, target.getWidth(), target.getHeight(), source.getSize() );
+			if ( range == null ) return; // the slice lies outside of the source
+			window = new SubstackView( source, range[ 0 ] + 1, range[ 1 ] + 1 );
+			TranslationModel3D shift = new TranslationModel3D();
+			shift.set( 0, 0, range[ 0 ] );
+			t = transform.copy();
+			t.concatenate( shift );
+		}
+
+		InverseTransformMapping< AffineModel3D > mapping = new InverseTransformMapping< AffineModel3D >( t );
+		mapping.setSlice( s );
+		try
+		{
+			mapping.mapInterpolated( window, target );
+		}
+		catch ( Exception e )
+		{
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	Source slices covered by a target slice, from its corners since the transform is affine
+	@return first and last source slice (0-based), null if there is none
+	*/
+	static int[] sourceRange(AffineModel3D transform, int s, int w, int h, int depth)
+	{
+		double min = Double.MAX_VALUE, max = -Double.MAX_VALUE;
+		for ( int c = 0; c < 4; ++c )
+		{
+			double[] p = new double[]{ ( c & 1 ) * ( w - 1 ), ( c >> 1 ) * ( h - 1 ), s };
+			try
+			{
+				transform.applyInverseInPlace( p );
+			}
+			catch ( NoninvertibleModelException e )
+			{
+				return new int[]{ 0, depth - 1 };
+			}
+			min = Math.min( min, p[ 2 ] );
+			max = Math.max( max, p[ 2 ] );
+		}
+		int z0 = Math.max( 0, ( int ) Math.floor( min ) );
+		int z1 = Math.min( depth - 1, ( int ) Math.ceil( max ) );
+		return z0 <= z1 ? new int[]{ z0, z1 } : null;
+	}
+}
@@ -0,0 +1,295 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.Macro;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+
+/**
+* Stitching of many stack pairs, each one a headless job (HeadlessStitching) run on a bounded pool.
+*
+* The manifest has one pair per line, as HeadlessStitching options (front, back, output, orientation,
+* channels, parameters...); empty lines and lines starting with # are ignored. A pair is named by its
+* name option, by its line number otherwise. Batch options apply to every pair that does not set them:
+*   manifest     file of pairs (required)
+*   jobs         pairs stitched at once (1)
+*   threads      threads shared by the running pairs (processors)
+*   memory       MB shared by the running pairs (80% of the maximum heap)
+*   status       status file (manifest.status)
+*   diagnostics  directory, each pair writes to a subdirectory of its name
+*
+* A pair runs once the memory it is expected to need, a multiple of the size of its input files plus
+* the feature cache, is available. Each running pair scores its back slices on threads / jobs workers
+* that are kept from one pair to the next, with their SIFT object (MatchingParameters.workerSIFT).
+*
+* The status file receives one line per state change of a pair (name, state, detail), written at once.
+* Rerunning the batch skips the pairs whose last state is done, so a crashed batch resumes where it stopped.
+*/
+public class BatchStitching
+{
+	final static public String RUNNING = "running";
+	final static public String DONE = "done";
+	final static public String FAILED = "failed";
+
+	/** Expected memory of a pair, in sizes of its input files: the stacks, the aligned back stack and the fused stack */
+	final static private int MEMORY_FACTOR = 4;
+
+	final static private String[] INPUTS = new String[]{ "front", "back", "front_filtered", "back_filtered" };
+
+	private BatchStitching() {}
+
+	/** One pair of the manifest */
+	static private class Job
+	{
+		final String name;
+		final String options;
+
+		Job(String name, String options)
+		{
+			this.name = name;
+			this.options = options;
+		}
+	}
+
+	/**
+	Stitch every pair of the manifest that is not done yet
+	@param batch options, see the class description
+	@return number of failed pairs
+	*/
+	public static int run(String options) throws IOException
+	{
+		String manifest = Macro.getValue( options, "manifest", null );
+		if ( manifest == null )
+			throw new IllegalArgumentException( "No manifest given." );
+		File status = new File( Macro.getValue( options, "status", manifest + ".status" ) );
+
+		int processors = Runtime.getRuntime().availableProcessors();
+		int jobs = Math.max( 1, integer( options, "jobs", 1 ) );
+		int threads = Math.max( 1, integer( options, "threads", processors ) );
+		int memory = Math.max( 1, integer( options, "memory", ( int ) ( Runtime.getRuntime().maxMemory() * 0.8 / ( 1 << 20 ) ) ) );
+		String diagnostics = Macro.getValue( options, "diagnostics", null );
+
+		List< Job > pairs = readManifest( new File( manifest ) );
+		Map< String, String > states = readStatus( status );
+
+		/** Pair options first, Macro.getValue reads the first occurrence of a key */
+		String defaults = " threads=" + Math.max( 1, threads / jobs ) + " " + options;
+		List< Job > todo = new ArrayList< Job >();
+		for ( Job pair : pairs )
+		{
+			if ( DONE.equals( states.get( pair.name ) ) ) continue;
+			String o = pair.options;
+			if ( diagnostics != null && Macro.getValue( o, "diagnostics", null ) == null )
+				o += " diagnostics=[" + new File( diagnostics, pair.name ).getPath() + "]";
+			todo.add( new Job( pair.name, o + defaults ) );
+		}
+		IJ.log( "(Info) Batch: " + pairs.size() + " pairs, " + ( pairs.size() - todo.size() ) + " already done, " +
+				jobs + " at once, " + threads + " threads, " + memory + " MB" );
+
+		final PrintWriter out = new PrintWriter( new FileWriter( status, true ) );
+		final Semaphore budget = new Semaphore( memory, true );
+		final long cacheMB = new SIFT_Volume_Stitching().featureCacheBudget >> 20;
+		final int memoryMB = memory;
+		int failed = 0;
+
+		/** Slice scoring workers of each pool thread, see SIFT_Volume_Stitching.setScoringPool */
+		final int workers = Math.max( 1, threads / jobs );
+		final List< ExecutorService > scoringPools = new ArrayList< ExecutorService >();
+		final ThreadLocal< ExecutorService > scoring = new ThreadLocal< ExecutorService >()
+		{
+			@Override
+			protected ExecutorService initialValue()
+			{
+				ExecutorService pool = ParallelTasks.newPool( workers );
+				synchronized ( scoringPools )
+				{
+					scoringPools.add( pool );
+				}
+				return pool;
+			}
+		};
+
+		ExecutorService pool = Executors.newFixedThreadPool( Math.min( jobs, Math.max( 1, todo.size() ) ) );
+		try
+		{
+			List< Future< Boolean > > results = new ArrayList< Future< Boolean > >();
+			for ( final Job job : todo )
+			{
+				results.add( pool.submit( new Callable< Boolean >()
+				{
+					public Boolean call() throws InterruptedException
+					{
+						int needed = ( int ) Math.min( memoryMB, expectedMB( job.options ) + cacheMB );
+						budget.acquire( needed );
+						try
+						{
+							return runJob( job, out, scoring.get() );
+						}
+						finally
+						{
+							budget.release( needed );
+						}
+					}
+				} ) );
+			}
+
+			for ( Future< Boolean > f : results )
+			{
+				try
+				{
+					if ( !f.get() ) ++failed;
+				}
+				catch ( ExecutionException e )
+				{
+					++failed;
+				}
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+		}
+		finally
+		{
+			pool.shutdownNow();
+			synchronized ( scoringPools )
+			{
+				for ( ExecutorService p : scoringPools )
+					p.shutdownNow();
+			}
+			out.close();
+		}
+
+		IJ.log( "(Info) Batch: " + ( todo.size() - failed ) + " pairs stitched, " + failed + " failed" );
+		return failed;
+	}
+
+	/** @return true if the pair was stitched */
+	private static boolean runJob(Job job, PrintWriter status, ExecutorService scoring)
+	{
+		record( status, job.name, RUNNING, "" );
+		long start = System.currentTimeMillis();
+		try
+		{
+			HeadlessStitching.run( job.options, false, null, scoring );
+			record( status, job.name, DONE, ( System.currentTimeMillis() - start ) + " ms" );
+			return true;
+		}
+		catch ( Throwable e )
+		{
+			IJ.log( "(Error) Pair " + job.name + ": " + e );
+			record( status, job.name, FAILED, String.valueOf( e.getMessage() ).replace( '\t', ' ' ).replace( '\n', ' ' ) );
+			return false;
+		}
+	}
+
+	private static void record(PrintWriter status, String name, String state, String detail)
+	{
+		synchronized ( status )
+		{
+			status.println( name + "\t" + state + "\t" + detail );
+			status.flush();
+		}
+	}
+
+	/** Pairs of the manifest, in order */
+	static List< Job > readManifest(File manifest) throws IOException
+	{
+		List< Job > pairs = new ArrayList< Job >();
+		BufferedReader in = new BufferedReader( new FileReader( manifest ) );
+		try
+		{
+			int n = 0;
+			for ( String line = in.readLine(); line != null; line = in.readLine() )
+			{
+				++n;
+				line = line.trim();
+				if ( line.length() == 0 || line.startsWith( "#" ) ) continue;
+				String name = Macro.getValue( line, "name", "pair" + n );
+				pairs.add( new Job( name, line ) );
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return pairs;
+	}
+
+	/** Last state of every pair of the status file, empty if there is none */
+	static Map< String, String > readStatus(File status) throws IOException
+	{
+		Map< String, String > states = new HashMap< String, String >();
+		if ( !status.isFile() ) return states;
+
+		BufferedReader in = new BufferedReader( new FileReader( status ) );
+		try
+		{
+			for ( String line = in.readLine(); line != null; line = in.readLine() )
+			{
+				String[] fields = line.split( "\t" );
+				if ( fields.length >= 2 ) states.put( fields[ 0 ], fields[ 1 ] );
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return states;
+	}
+
+	/** Expected memory of a pair in MB, from the size of its input files */
+	private static long expectedMB(String options)
+	{
+		long bytes = 0;
+		for ( String key : INPUTS )
+		{
+			String path = Macro.getValue( options, key, null );
+			if ( path != null ) bytes += new File( path ).length();
+		}
+		for ( int c : HeadlessStitching.channels( options ) )
+		{
+			for ( String key : new String[]{ "front_channel" + c, "back_channel" + c } )
+			{
+				String path = Macro.getValue( options, key, null );
+				if ( path != null ) bytes += new File( path ).length();
+			}
+		}
+		return ( MEMORY_FACTOR * bytes ) >> 20;
+	}
+
+	private static int integer(String options, String key, int defaultValue)
+	{
+		String value = Macro.getValue( options, key, null );
+		if ( value == null ) return defaultValue;
+		try
+		{
+			return Integer.parseInt( value );
+		}
+		catch ( NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid " + key + ": " + value );
+		}
+	}
+}
@@ -0,0 +1,129 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.lang.ref.WeakReference;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+* Exhaustive matching as FloatArray2DSIFT.createMatches, with its 1.5 scale ratio window: every
+* feature of the second list whose scale is within the window is compared, the distances and the
+* ratio test are those of Feature.descriptorDistance, and matches sharing a P2 location are dropped.
+* Done here rather than by createMatches so that each match keeps the distance of its own pair of
+* features (DescriptorMatch), SIFT often places several features at one location.
+* Reference for the recall of the other matchers.
+*
+* A FeatureStore is expanded into Feature objects. The expansion of the last second list is kept,
+* so the front features of an overlap sweep are expanded once; expanded lists must not be modified.
+*/
+public class BruteForceMatcher implements FeatureMatcher
+{
+	private WeakReference< List< Feature > > expandedList = new WeakReference< List< Feature > >( null );
+	private List< Feature > expansion = null;
+
+	public Vector< PointMatch > match(List< Feature > fs1, List< Feature > fs2, double rod)
+	{
+		fs2 = expand( fs2 );
+		fs1 = FeatureStore.toFeatures( fs1 );
+
+		Vector< PointMatch > matches = new Vector< PointMatch >();
+		for ( Feature f1 : fs1 )
+		{
+			Feature best = null;
+			double bestD = Double.MAX_VALUE, secondD = Double.MAX_VALUE;
+			for ( Feature f2 : fs2 )
+			{
+				if ( !inScaleWindow( f1.scale, f2.scale ) ) continue;
+				double d = f1.descriptorDistance( f2 );
+				if ( d < bestD )
+				{
+					secondD = bestD;
+					bestD = d;
+					best = f2;
+				}
+				else if ( d < secondD )
+				{
+					secondD = d;
+				}
+			}
+
+			if ( best != null && secondD < Double.MAX_VALUE && bestD / secondD < rod )
+				matches.addElement(
+						new DescriptorMatch(
+								new Point( new double[]{ f1.location[ 0 ], f1.location[ 1 ] } ),
+								new Point( new double[]{ best.location[ 0 ], best.location[ 1 ] } ),
+								( f1.scale + best.scale ) / 2.0,
+								bestD ) );
+		}
+		return KdTreeMatcher.removeAmbiguous( matches );
+	}
+
+	/**
+	Scale ratio window of createMatches, FeatureMatcher.MAX_SCALE_RATIO
+	@param scale of the feature matched
+	@param scale of a candidate
+	@return true if the candidate can be matched
+	*/
+	static boolean inScaleWindow(double scale1, double scale2)
+	{
+		final double ratio = scale2 / scale1;
+		return ratio >= 1.0 / MAX_SCALE_RATIO && ratio <= MAX_SCALE_RATIO;
+	}
+
+	/** Feature objects of the list, reused when it is the last one expanded */
+	private synchronized List< Feature > expand(List< Feature > fs)
+	{
+		if ( expandedList.get() == fs && expansion != null && expansion.size() == fs.size() )
+			return expansion;
+
+		expansion = FeatureStore.toFeatures( fs );
+		expandedList = new WeakReference< List< Feature > >( fs );
+		return expansion;
+	}
+
+	private static String key(double[] l)
+	{
+		return l[ 0 ] + "," + l[ 1 ];
+	}
+
+	public String getName()
+	{
+		return "brute force";
+	}
+
+	/**
+	Fraction of reference correspondences also found, matches are compared by their P1 and P2 locations
+	@param reference correspondences, usually from brute force
+	@param correspondences to evaluate
+	@return recall in [0, 1], 1 when the reference is empty
+	*/
+	public static double recall(List< PointMatch > reference, List< PointMatch > matches)
+	{
+		if ( reference.isEmpty() ) return 1;
+
+		Set< String > found = new HashSet< String >();
+		for ( PointMatch m : matches )
+			found.add( key( m ) );
+
+		int n = 0;
+		for ( PointMatch m : reference )
+			if ( found.contains( key( m ) ) ) ++n;
+		return ( double ) n / reference.size();
+	}
+
+	private static String key(PointMatch m)
+	{
+		return key( m.getP1().getL() ) + ";" + key( m.getP2().getL() );
+	}
+}
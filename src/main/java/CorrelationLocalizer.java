@@ -0,0 +1,160 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+* Cheap ranking of back slices by their resemblance to the last front slice, ahead of SIFT.
+* Slices are reduced by block averaging to about 96 pixels and compared by normalized cross
+* correlation over shifts of a few reduced pixels, which tolerates the small in-plane
+* misalignment left before registration. The best ranked slices are then verified with SIFT.
+*/
+public class CorrelationLocalizer
+{
+	/** Largest side of the reduced slices */
+	final static private int SIZE = 96;
+
+	/** Largest shift tried, in reduced pixels */
+	final static private int SHIFT = 3;
+
+	final private int numThreads;
+
+	/**
+	@param number of threads
+	*/
+	public CorrelationLocalizer(int numThreads)
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	Rank back slices by correlation with the front slice
+	@param front slice
+	@param back stack, compared with the front on their common top left area
+	@param first slice of the range
+	@param last slice of the range
+	@param number of candidates returned
+	@return candidate slices, best first, the later slice first on ties
+	*/
+	public int[] rank(ImageProcessor front, final ImageStack stackb, final int start, int end, int count)
+	{
+		int W = Math.min( front.getWidth(), stackb.getWidth() );
+		int H = Math.min( front.getHeight(), stackb.getHeight() );
+		final int factor = Math.max( 1, ( int ) Math.ceil( Math.max( W, H ) / ( double ) SIZE ) );
+		final int w = W / factor;
+		final int h = H / factor;
+		final float[] f = downsample( front, factor, w, h );
+
+		final int n = end - start + 1;
+		final float[] ncc = new float[ n ];
+		int chunk = Math.max( 1, ( n + numThreads - 1 ) / numThreads );
+		List< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+		for ( int c = 0; c < n; c += chunk )
+		{
+			final int c0 = c;
+			final int c1 = Math.min( n, c + chunk );
+			tasks.add( new Callable< Integer >()
+			{
+				public Integer call()
+				{
+					for ( int i = c0; i < c1; ++i )
+					{
+						float[] b = downsample( stackb.getProcessor( start + i ), factor, w, h );
+						ncc[ i ] = ( float ) bestCorrelation( f, b, w, h, SHIFT );
+					}
+					return Integer.valueOf( c1 - c0 );
+				}
+			} );
+		}
+		ParallelTasks.run( tasks, numThreads );
+
+		Integer[] order = new Integer[ n ];
+		for ( int i = 0; i < n; ++i )
+			order[ i ] = i;
+		Arrays.sort( order, new Comparator< Integer >()
+		{
+			public int compare(Integer a, Integer b)
+			{
+				int c = Float.compare( ncc[ b ], ncc[ a ] );
+				return c != 0 ? c : b.compareTo( a );
+			}
+		} );
+
+		int[] ranked = new int[ Math.min( count, n ) ];
+		for ( int i = 0; i < ranked.length; ++i )
+			ranked[ i ] = start + order[ i ];
+		return ranked;
+	}
+
+	/** Block average of a slice, RGB is reduced to its luminance */
+	private static float[] downsample(ImageProcessor ip, int factor, int w, int h)
+	{
+		float[] pixels = ( float[] ) ip.convertToFloat().getPixels();
+		int W = ip.getWidth();
+		float[] out = new float[ w * h ];
+		float norm = 1.0f / ( factor * factor );
+		for ( int y = 0; y < h; ++y )
+		{
+			for ( int x = 0; x < w; ++x )
+			{
+				float sum = 0;
+				for ( int dy = 0; dy < factor; ++dy )
+				{
+					int row = ( y * factor + dy ) * W + x * factor;
+					for ( int dx = 0; dx < factor; ++dx )
+						sum += pixels[ row + dx ];
+				}
+				out[ y * w + x ] = sum * norm;
+			}
+		}
+		return out;
+	}
+
+	/** Largest normalized cross correlation of b shifted against a, over shifts up to shift pixels */
+	private static double bestCorrelation(float[] a, float[] b, int w, int h, int shift)
+	{
+		double best = -1;
+		for ( int sy = -shift; sy <= shift; ++sy )
+		{
+			for ( int sx = -shift; sx <= shift; ++sx )
+			{
+				int x0 = Math.max( 0, -sx ), x1 = Math.min( w, w - sx );
+				int y0 = Math.max( 0, -sy ), y1 = Math.min( h, h - sy );
+				long count = ( long ) ( x1 - x0 ) * ( y1 - y0 );
+				if ( count < 2 ) continue;
+
+				double sa = 0, sb = 0, saa = 0, sbb = 0, sab = 0;
+				for ( int y = y0; y < y1; ++y )
+				{
+					int ia = y * w;
+					int ib = ( y + sy ) * w + sx;
+					for ( int x = x0; x < x1; ++x )
+					{
+						double va = a[ ia + x ];
+						double vb = b[ ib + x ];
+						sa += va; sb += vb;
+						saa += va * va; sbb += vb * vb; sab += va * vb;
+					}
+				}
+				double cov = sab - sa * sb / count;
+				double va = saa - sa * sa / count;
+				double vb = sbb - sb * sb / count;
+				if ( va <= 0 || vb <= 0 ) continue;
+				best = Math.max( best, cov / Math.sqrt( va * vb ) );
+			}
+		}
+		return best;
+	}
+}
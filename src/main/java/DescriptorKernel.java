@@ -0,0 +1,42 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+* Inner loop of exhaustive descriptor matching: the nearest and next nearest descriptors of a query
+* among contiguous float descriptors (FeatureStore), within the scale ratio window of createMatches
+* (BruteForceMatcher.inScaleWindow). Every implementation gives the result of
+* ScalarDescriptorKernel, to the bit: same indices, same squared distances, so the ratio test
+* decides the same whatever kernel runs it.
+*
+* Implementations are stateless and thread safe.
+*/
+public interface DescriptorKernel
+{
+	/**
+	@param query descriptors, one after the other
+	@param offset of the query descriptor
+	@param scale of the query feature
+	@param descriptors searched, one after the other
+	@param scales of the features searched, the ones outside the window are skipped
+	@param number of descriptors searched
+	@param components of a descriptor
+	@param receives the nearest and next nearest descriptors
+	*/
+	public void nearest(float[] queries, int offset, double scale, float[] data, double[] scales, int count, int dims, Nearest result);
+
+	/** @return name shown in the log */
+	public String getName();
+
+	/** Index of the nearest descriptor and squared distances of the nearest and next nearest, Double.MAX_VALUE for none */
+	public static final class Nearest
+	{
+		public int best;
+		public double bestD;
+		public double secondD;
+	}
+}
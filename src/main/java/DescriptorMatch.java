@@ -0,0 +1,28 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+* Candidate correspondence that keeps the distance between the two descriptors, the lower the more
+* distinctive. Used to try the best candidates first in RANSAC.
+*/
+public class DescriptorMatch extends PointMatch
+{
+	private static final long serialVersionUID = 1L;
+
+	/** Euclidean distance between the descriptors */
+	public final double descriptorDistance;
+
+	public DescriptorMatch(Point p1, Point p2, double weight, double descriptorDistance)
+	{
+		super( p1, p2, weight );
+		this.descriptorDistance = descriptorDistance;
+	}
+}
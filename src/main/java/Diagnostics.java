@@ -0,0 +1,115 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.gui.Plot;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+
+/**
+* Diagnostic plots and images of a stitching run. Without a directory they are shown in windows as
+* before; with a directory, plots are written as CSV and images as TIFF, numbered in order of creation,
+* and no window or other AWT resource is used. discard() drops them, for benchmarks and headless runs.
+*/
+public class Diagnostics
+{
+	final private File dir;
+	final private boolean discard;
+	private int count = 0;
+
+	/**
+	@param output directory, created if needed, null to show windows
+	*/
+	public Diagnostics(File dir)
+	{
+		this( dir, false );
+	}
+
+	private Diagnostics(File dir, boolean discard)
+	{
+		this.dir = dir;
+		this.discard = discard;
+		if ( dir != null && !dir.isDirectory() && !dir.mkdirs() )
+			IJ.log( "(Warning) Cannot create the diagnostics directory " + dir );
+	}
+
+	/** @return diagnostics that are neither shown nor written */
+	public static Diagnostics discard()
+	{
+		return new Diagnostics( null, true );
+	}
+
+	/** @return output directory, null when windows are shown */
+	public File getDirectory()
+	{
+		return dir;
+	}
+
+	/**
+	@param title
+	@param x axis label
+	@param y axis label
+	@param x values
+	@param y values
+	*/
+	public void plot(String title, String xLabel, String yLabel, float[] x, float[] y)
+	{
+		if ( discard ) return;
+		if ( dir == null )
+		{
+			new Plot( title, xLabel, yLabel, x, y ).show();
+			return;
+		}
+
+		File file = next( title, ".csv" );
+		try
+		{
+			PrintWriter out = new PrintWriter( new FileWriter( file ) );
+			out.println( xLabel + "," + yLabel );
+			for ( int i = 0; i < x.length; ++i )
+				out.println( x[ i ] + "," + y[ i ] );
+			out.close();
+			if ( out.checkError() ) throw new IOException( "write failed" );
+		}
+		catch ( IOException e )
+		{
+			IJ.log( "(Warning) Cannot write " + file + ": " + e.getMessage() );
+		}
+	}
+
+	/**
+	@param image, titled
+	*/
+	public void image(ImagePlus imp)
+	{
+		if ( discard ) return;
+		if ( dir == null )
+		{
+			imp.show();
+			return;
+		}
+
+		File file = next( imp.getTitle(), ".tif" );
+		FileSaver saver = new FileSaver( imp );
+		boolean saved = imp.getStackSize() > 1 ? saver.saveAsTiffStack( file.getPath() ) : saver.saveAsTiff( file.getPath() );
+		if ( !saved ) IJ.log( "(Warning) Cannot write " + file );
+	}
+
+	/** Numbered file name made of the title */
+	private synchronized File next(String title, String extension)
+	{
+		++count;
+		String name = title.replaceAll( "[^A-Za-z0-9]+", "_" ).toLowerCase();
+		return new File( dir, String.format( "%03d_%s%s", count, name, extension ) );
+	}
+}
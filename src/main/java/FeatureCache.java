@@ -0,0 +1,201 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+
+/**
+* SIFT features of single stack slices, kept in least recently used order under a memory budget.
+* A slice is identified by its stack (by identity, held weakly), its index and the SIFT parameters,
+* so a stack that is never transformed, like the front stack, is extracted only once per job.
+* Cached lists are of the feature storage of the parameters, shared and read only. All methods are thread safe.
+*/
+public class FeatureCache
+{
+	/** Object header, location array and bookkeeping of one Feature, descriptor excluded */
+	final static private long FEATURE_OVERHEAD = 96;
+
+	final private long budget;
+	final private LinkedHashMap< Key, Entry > entries = new LinkedHashMap< Key, Entry >( 64, 0.75f, true );
+	private long used = 0;
+	private long hits = 0;
+	private long misses = 0;
+	private long evictions = 0;
+
+	/**
+	@param memory budget in bytes
+	*/
+	public FeatureCache(long budget)
+	{
+		this.budget = budget;
+	}
+
+	/**
+	Features of one slice, extracted on a miss
+	@param stack
+	@param slice index (1-based)
+	@param matching parameters, their SIFT part is part of the key
+	@param sift object owned by the calling thread
+	@return read only feature list
+	*/
+	public List< Feature > getFeatures(ImageStack stack, int slice, MatchingParameters mp, SIFT ijSIFT)
+	{
+		Key key = new Key( stack, slice, mp.getSIFTKey() + "/" + mp.featureStorage );
+		synchronized ( this )
+		{
+			Entry entry = entries.get( key );
+			if ( entry != null )
+			{
+				++hits;
+				return entry.features;
+			}
+			++misses;
+		}
+
+		/** Extraction outside of the lock, the workers of a parallel search do not wait on each other */
+		List< Feature > features = mp.newFeatureList();
+		extract( ijSIFT, stack.getProcessor( slice ), features );
+
+		long bytes = FEATURE_OVERHEAD;
+		if ( features instanceof FeatureStore )
+		{
+			/** Kept as a store, the matchers recognize it */
+			( ( FeatureStore ) features ).setReadOnly();
+			bytes += ( ( FeatureStore ) features ).estimateBytes();
+		}
+		else
+		{
+			for ( Feature f : features )
+				bytes += FEATURE_OVERHEAD + 4 * f.descriptor.length;
+			features = Collections.unmodifiableList( features );
+		}
+
+		synchronized ( this )
+		{
+			Entry previous = entries.put( key, new Entry( features, bytes ) );
+			if ( previous != null )
+				used -= previous.bytes;
+			used += bytes;
+			evict();
+		}
+		return features;
+	}
+
+	/** Drop entries of collected stacks, then the least recently used ones until the budget is met */
+	private void evict()
+	{
+		Iterator< Map.Entry< Key, Entry > > it = entries.entrySet().iterator();
+		while ( it.hasNext() )
+		{
+			Map.Entry< Key, Entry > e = it.next();
+			if ( e.getKey().stack.get() == null )
+			{
+				used -= e.getValue().bytes;
+				it.remove();
+			}
+		}
+
+		it = entries.entrySet().iterator();
+		while ( used > budget && it.hasNext() )
+		{
+			used -= it.next().getValue().bytes;
+			it.remove();
+			++evictions;
+		}
+	}
+
+	public synchronized void clear()
+	{
+		entries.clear();
+		used = 0;
+	}
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+	/** Log hit/miss statistics */
+	public synchronized void logStatistics()
+	{
+		long total = hits + misses;
+		IJ.log( "(Info) Feature cache : " + hits + " hits, " + misses + " misses" +
+			( total > 0 ? " (" + ( 100 * hits / total ) + "% hits)" : "" ) +
+			", " + evictions + " evictions, " + entries.size() + " slices, " + ( used >> 20 ) + "/" + ( budget >> 20 ) + " MB" );
+	}
+
+	static private class Entry
+	{
+		final List< Feature > features;
+		final long bytes;
+
+		Entry(List< Feature > features, long bytes)
+		{
+			this.features = features;
+			this.bytes = bytes;
+		}
+	}
+
+	static private class Key
+	{
+		final WeakReference< ImageStack > stack;
+		final int stackHash;
+		final int slice;
+		final String sift;
+
+		Key(ImageStack stack, int slice, String sift)
+		{
+			this.stack = new WeakReference< ImageStack >( stack );
+			this.stackHash = System.identityHashCode( stack );
+			this.slice = slice;
+			this.sift = sift;
+		}
+
+		@Override
+		public int hashCode()
+		{
+			return ( stackHash * 31 + slice ) * 31 + sift.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object o)
+		{
+			if ( this == o ) return true;
+			if ( !( o instanceof Key ) ) return false;
+			Key k = (Key) o;
+			ImageStack s = stack.get();
+			return s != null && s == k.stack.get() && slice == k.slice && sift.equals( k.sift );
+		}
+	}
+
+	/**
+	Extract the features of one image, measured as the feature extraction stage (Instrumentation)
+	@param sift object owned by the calling thread
+	@param image
+	@param receives the features
+	*/
+	public static void extract(SIFT ijSIFT, ImageProcessor ip, List< Feature > features)
+	{
+		Instrumentation.Probe stage = Instrumentation.begin( "feature extraction" );
+		int before = features.size();
+		ijSIFT.extractFeatures( ip, features );
+		Instrumentation.count( "slices", 1 );
+		Instrumentation.count( "features", features.size() - before );
+		Instrumentation.end( stage );
+	}
+}
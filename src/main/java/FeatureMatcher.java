@@ -0,0 +1,39 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.PointMatch;
+
+/**
+* Candidate correspondences between two feature lists, in the conventions of
+* FloatArray2DSIFT.createMatches: every feature of the first list is matched to its nearest
+* descriptor in the second list if it passes the closest/next closest distance ratio test,
+* P1 is the location in the first list and P2 the location in the second one, and matches
+* sharing a P2 location are dropped as ambiguous.
+*
+* Implementations are thread safe, one matcher serves every comparison of a job.
+*/
+public interface FeatureMatcher
+{
+	/** Scale ratio window of createMatches: features whose scales differ by a larger factor are not compared */
+	final static public double MAX_SCALE_RATIO = 1.5;
+
+	/**
+	@param features to match
+	@param features searched
+	@param closest/next closest neighbor distance ratio
+	@return candidate correspondences
+	*/
+	public Vector< PointMatch > match(List< Feature > fs1, List< Feature > fs2, double rod);
+
+	/** @return name shown in the log */
+	public String getName();
+}
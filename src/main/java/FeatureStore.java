@@ -0,0 +1,242 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.RandomAccess;
+
+import mpicbg.imagefeatures.Feature;
+
+/**
+* SIFT features stored column by column in primitive arrays: locations, scales and orientations, and
+* the descriptors one after the other in a single array, as floats or quantized to 8 bits.
+*
+* A Feature object with its location and descriptor arrays costs about 600 bytes for a 128 component
+* descriptor; here a feature costs 32 bytes plus 4 bytes per component, or 1 byte per component once
+* quantized, and the descriptors compared by a linear scan are contiguous in memory.
+*
+* The store is a list of features: SIFT extracts into it directly (add copies the feature, which can
+* then be collected), and get builds a new Feature, so code written for feature lists works unchanged,
+* though LinearScanMatcher reads the arrays without building any.
+*
+* Quantization follows Lowe: component v is stored as min(255, round(v * QUANTIZATION)). SIFT descriptors
+* are normalized with components clamped to 0.2 before a second normalization, so they are rarely
+* clipped; distances are those of the dequantized descriptors, and the ratio test then decides like
+* the float one except for matches very close to its threshold.
+*
+* A store is not thread safe while it is filled. Once read only it can be shared by any thread.
+*/
+public class FeatureStore extends AbstractList< Feature > implements RandomAccess
+{
+	final static public float QUANTIZATION = 512;
+
+	final private boolean quantized;
+	private boolean readOnly = false;
+	private int size = 0;
+	private int dims = 0;
+	private double[] x, y, scale, orientation;
+	private float[] descriptors;
+	private byte[] codes;
+
+	/**
+	@param true to store 8-bit descriptors, false for float descriptors
+	*/
+	public FeatureStore(boolean quantized)
+	{
+		this( quantized, 16 );
+	}
+
+	/**
+	@param true to store 8-bit descriptors, false for float descriptors
+	@param initial capacity in features
+	*/
+	public FeatureStore(boolean quantized, int capacity)
+	{
+		this.quantized = quantized;
+		allocate( Math.max( 1, capacity ) );
+	}
+
+	/**
+	@param features, a store of the same kind is returned as it is
+	@param true for 8-bit descriptors
+	@return the features as a store
+	*/
+	public static FeatureStore of(List< Feature > features, boolean quantized)
+	{
+		if ( features instanceof FeatureStore && ( ( FeatureStore ) features ).quantized == quantized )
+			return ( FeatureStore ) features;
+		FeatureStore store = new FeatureStore( quantized, features.size() );
+		store.addAll( features );
+		return store;
+	}
+
+	/**
+	@param features
+	@return the features as Feature objects, a store is expanded once
+	*/
+	public static List< Feature > toFeatures(List< Feature > features)
+	{
+		if ( !( features instanceof FeatureStore ) ) return features;
+		return new ArrayList< Feature >( features );
+	}
+
+	@Override
+	public int size()
+	{
+		return size;
+	}
+
+	/** @return new Feature with a copy of the location and of the (dequantized) descriptor */
+	@Override
+	public Feature get(int i)
+	{
+		check( i );
+		float[] d = new float[ dims ];
+		int o = i * dims;
+		if ( quantized )
+			for ( int k = 0; k < dims; ++k )
+				d[ k ] = ( codes[ o + k ] & 0xff ) / QUANTIZATION;
+		else
+			System.arraycopy( descriptors, o, d, 0, dims );
+		return new Feature( scale[ i ], orientation[ i ], new double[]{ x[ i ], y[ i ] }, d );
+	}
+
+	/** Append a copy of the feature, all descriptors of a store have the same length */
+	@Override
+	public boolean add(Feature f)
+	{
+		if ( readOnly ) throw new UnsupportedOperationException( "Read only feature store" );
+		if ( size == 0 ) dims = f.descriptor.length;
+		else if ( f.descriptor.length != dims )
+			throw new IllegalArgumentException( "Descriptor of " + f.descriptor.length + " components in a store of " + dims );
+
+		if ( size == x.length ) allocate( 2 * size );
+		else if ( ( quantized ? codes.length : descriptors.length ) < ( size + 1 ) * dims ) allocate( x.length );
+
+		x[ size ] = f.location[ 0 ];
+		y[ size ] = f.location[ 1 ];
+		scale[ size ] = f.scale;
+		orientation[ size ] = f.orientation;
+		int o = size * dims;
+		if ( quantized )
+			for ( int k = 0; k < dims; ++k )
+				codes[ o + k ] = ( byte ) Math.max( 0, Math.min( 255, Math.round( f.descriptor[ k ] * QUANTIZATION ) ) );
+		else
+			System.arraycopy( f.descriptor, 0, descriptors, o, dims );
+		++size;
+		++modCount;
+		return true;
+	}
+
+	@Override
+	public void clear()
+	{
+		if ( readOnly ) throw new UnsupportedOperationException( "Read only feature store" );
+		size = 0;
+		++modCount;
+	}
+
+	/** Release the unused capacity and forbid any further change */
+	public void setReadOnly()
+	{
+		if ( size < x.length ) allocate( size );
+		readOnly = true;
+	}
+
+	public boolean isQuantized() { return quantized; }
+
+	/** @return number of descriptor components, 0 while the store is empty */
+	public int getDimensions() { return dims; }
+
+	public double getX(int i) { check( i ); return x[ i ]; }
+
+	public double getY(int i) { check( i ); return y[ i ]; }
+
+	public double getScale(int i) { check( i ); return scale[ i ]; }
+
+	/** @return scales, feature i at i; shared, not copied */
+	public double[] getScales() { return scale; }
+
+	/** @return float descriptors, feature i at i * getDimensions(), null if quantized; shared, not copied */
+	public float[] getDescriptors() { return quantized ? null : descriptors; }
+
+	/** @return 8-bit descriptors (unsigned), feature i at i * getDimensions(), null if not quantized; shared, not copied */
+	public byte[] getCodes() { return quantized ? codes : null; }
+
+	/**
+	Squared distance between the descriptors of two features, computed as Feature.descriptorDistance
+	for float descriptors, given up once it exceeds limit
+	@param feature of this store
+	@param store of the same kind
+	@param feature of the other store
+	@param limit
+	@return squared distance, or a partial sum above limit
+	*/
+	public double squaredDistance(int i, FeatureStore other, int j, double limit)
+	{
+		if ( other.quantized != quantized || other.dims != dims )
+			throw new IllegalArgumentException( "Feature stores of different kinds" );
+		int a = i * dims;
+		int b = j * dims;
+		if ( quantized )
+		{
+			/** Sums of squared 8-bit differences fit an int, the limit is compared in code units */
+			double codeLimit = limit * QUANTIZATION * QUANTIZATION;
+			int d = 0;
+			for ( int k = 0; k < dims; ++k )
+			{
+				final int v = ( codes[ a + k ] & 0xff ) - ( other.codes[ b + k ] & 0xff );
+				d += v * v;
+				if ( d > codeLimit ) break;
+			}
+			return d / ( ( double ) QUANTIZATION * QUANTIZATION );
+		}
+		return ScalarDescriptorKernel.squaredDistance( descriptors, a, other.descriptors, b, dims, limit );
+	}
+
+	/** @return approximate memory of the store in bytes */
+	public long estimateBytes()
+	{
+		return 64 + 32L * x.length + ( quantized ? codes.length : 4L * descriptors.length );
+	}
+
+	private void check(int i)
+	{
+		if ( i < 0 || i >= size ) throw new IndexOutOfBoundsException( "Index " + i + ", size " + size );
+	}
+
+	/** Resize the columns to capacity features, keeping the stored ones */
+	private void allocate(int capacity)
+	{
+		x = copy( x, capacity );
+		y = copy( y, capacity );
+		scale = copy( scale, capacity );
+		orientation = copy( orientation, capacity );
+		int components = capacity * Math.max( dims, 1 );
+		if ( quantized )
+		{
+			byte[] c = new byte[ components ];
+			if ( codes != null ) System.arraycopy( codes, 0, c, 0, Math.min( codes.length, Math.min( c.length, size * dims ) ) );
+			codes = c;
+		}
+		else
+		{
+			float[] d = new float[ components ];
+			if ( descriptors != null ) System.arraycopy( descriptors, 0, d, 0, Math.min( descriptors.length, Math.min( d.length, size * dims ) ) );
+			descriptors = d;
+		}
+	}
+
+	private double[] copy(double[] a, int capacity)
+	{
+		double[] b = new double[ capacity ];
+		if ( a != null ) System.arraycopy( a, 0, b, 0, Math.min( size, capacity ) );
+		return b;
+	}
+}
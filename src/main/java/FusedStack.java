@@ -0,0 +1,392 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import static stitching.CommonFunctions.LIN_BLEND;
+import static stitching.CommonFunctions.methodListCollection;
+
+/**
+* Read only fusion of the front stack and the aligned back stack, placed after the front one with ov
+* slices in common, as Stitch_Image_Collection places them. The fused stack is computed along Z slab
+* by slab when its slices are asked for, and only the current slab is kept: slices covered by one
+* stack are copied from it with array copies, only the ov slices of the overlap are blended, row by
+* row, by kernels specialized for each bit depth and fusion method. Saved with FileSaver, the
+* fused stack is written slice by slice, so neither the inputs nor the output are held as a whole
+* when the inputs are virtual stacks (MappedStack, TransformedStack). materialize() fuses the whole
+* stack in memory instead, slices in parallel.
+*
+* Fusion methods are those of Stitch_Image_Collection: Average, Linear Blending (weights decreasing
+* towards the borders of each stack, raised to alpha), Max. Intensity, Min. Intensity and None (the
+* back stack covers the front one). Stacks of different slice sizes are fused into the largest size.
+*/
+public class FusedStack extends VirtualStack
+{
+	final static private int AVERAGE = 0, LINEAR = 1, MAX = 2, MIN = 3, NONE = 4;
+
+	/** Front and back stacks, and the fused slice index (0-based) of their first slice */
+	final private ImageStack[] stacks;
+	final private int[] offsets;
+	final private int width, height, depth, bitDepth;
+	final private int method;
+	final private int slabSize, numThreads;
+	/** Linear blending weights along x, y and z of each stack, raised to alpha */
+	final private float[][] weightX, weightY, weightZ;
+
+	private int slabStart = -1;
+	private Object[] slab = null;
+
+	/**
+	@param front stack
+	@param back stack, aligned on the front one
+	@param number of slices in common
+	@param fusion method, one of methodListCollection
+	@param exponent of the linear blending weights
+	@param number of slices computed at once
+	@param number of threads computing a slab
+	*/
+	public FusedStack(ImageStack front, ImageStack back, int ov, String fusionMethod, double alpha, int slabSize, int numThreads)
+	{
+		super( Math.max( front.getWidth(), back.getWidth() ), Math.max( front.getHeight(), back.getHeight() ), front.getColorModel(), null );
+		if ( front.getBitDepth() != back.getBitDepth() )
+			throw new IllegalArgumentException( "Front and back stacks of different types cannot be fused." );
+		if ( ov < 0 || ov > Math.min( front.getSize(), back.getSize() ) )
+			throw new IllegalArgumentException( "Overlap of " + ov + " slices does not fit the stacks." );
+
+		this.stacks = new ImageStack[]{ front, back };
+		this.offsets = new int[]{ 0, front.getSize() - ov };
+		this.width = Math.max( front.getWidth(), back.getWidth() );
+		this.height = Math.max( front.getHeight(), back.getHeight() );
+		this.depth = front.getSize() + back.getSize() - ov;
+		this.bitDepth = front.getBitDepth();
+		this.method = method( fusionMethod );
+		this.slabSize = Math.max( 1, slabSize );
+		this.numThreads = Math.max( 1, numThreads );
+
+		this.weightX = new float[ 2 ][];
+		this.weightY = new float[ 2 ][];
+		this.weightZ = new float[ 2 ][];
+		if ( method == LINEAR )
+		{
+			for ( int i = 0; i < 2; ++i )
+			{
+				weightX[ i ] = weights( stacks[ i ].getWidth(), alpha );
+				weightY[ i ] = weights( stacks[ i ].getHeight(), alpha );
+				weightZ[ i ] = weights( stacks[ i ].getSize(), alpha );
+			}
+		}
+	}
+
+	private static int method(String fusionMethod)
+	{
+		if ( fusionMethod.equals( methodListCollection[ LIN_BLEND ] ) ) return LINEAR;
+		if ( fusionMethod.equals( "Average" ) ) return AVERAGE;
+		if ( fusionMethod.equals( "Max. Intensity" ) ) return MAX;
+		if ( fusionMethod.equals( "Min. Intensity" ) ) return MIN;
+		if ( fusionMethod.equals( "None" ) ) return NONE;
+		throw new IllegalArgumentException( "Fusion method not supported: " + fusionMethod );
+	}
+
+	/**
+	Linear blending weight along one axis: distance to the closest border relative to the half size
+	@param size of the stack along the axis
+	@param exponent
+	@return weight of every position, raised to the exponent
+	*/
+	private static float[] weights(int size, double alpha)
+	{
+		float[] w = new float[ size ];
+		float half = size / 2f;
+		for ( int p = 0; p < size; ++p )
+			w[ p ] = ( float ) Math.pow( Math.max( 1, Math.min( p, size - 1 - p ) ) / half, alpha );
+		return w;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	public int getSize() { return depth; }
+
+	public String getSliceLabel(int n) { return null; }
+
+	public int getBitDepth() { return bitDepth; }
+
+	/** Fused stacks are read only */
+	public void setPixels(Object pixels, int n) { }
+
+	public void addSlice(String name) { }
+
+	public void deleteSlice(int n) { }
+
+	public ImageProcessor getProcessor(int n)
+	{
+		Object pixels = getPixels( n );
+		if ( pixels instanceof byte[] ) return new ByteProcessor( width, height, (byte[]) pixels, getColorModel() );
+		if ( pixels instanceof short[] ) return new ShortProcessor( width, height, (short[]) pixels, getColorModel() );
+		if ( pixels instanceof float[] ) return new FloatProcessor( width, height, (float[]) pixels, getColorModel() );
+		return new ColorProcessor( width, height, (int[]) pixels );
+	}
+
+	/**
+	@param slice index (1-based)
+	@return pixel array of the fused slice, shared with the current slab so it must not be modified
+	*/
+	public synchronized Object getPixels(int n)
+	{
+		if ( n < 1 || n > depth )
+			throw new IllegalArgumentException( "Slice out of range: " + n );
+
+		int start = ( ( n - 1 ) / slabSize ) * slabSize;
+		if ( start != slabStart )
+		{
+			/** The previous slab is released before the next one is computed */
+			slab = null;
+			slab = computeSlab( start );
+			slabStart = start;
+		}
+		return slab[ n - 1 - start ];
+	}
+
+	/** Fused slices start..start+slabSize-1 (0-based), computed in parallel */
+	private Object[] computeSlab(int start)
+	{
+		int end = Math.min( depth, start + slabSize );
+		List< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for ( int z = start; z < end; ++z )
+		{
+			final int fz = z;
+			tasks.add( new Callable< Object >()
+			{
+				public Object call()
+				{
+					return fuseSlice( fz );
+				}
+			} );
+		}
+		return ParallelTasks.run( tasks, numThreads ).toArray();
+	}
+
+	/**
+	In-memory fusion of the whole stack, slices computed in parallel
+	@param number of threads
+	@return stack holding every fused slice
+	*/
+	public ImageStack materialize(int numThreads)
+	{
+		List< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for ( int z = 0; z < depth; ++z )
+		{
+			final int fz = z;
+			tasks.add( new Callable< Object >()
+			{
+				public Object call()
+				{
+					return fuseSlice( fz );
+				}
+			} );
+		}
+		ImageStack stack = new ImageStack( width, height, getColorModel() );
+		for ( Object pixels : ParallelTasks.run( tasks, numThreads ) )
+			stack.addSlice( null, pixels );
+		return stack;
+	}
+
+	/** @return new pixel array of fused slice z (0-based) */
+	private Object fuseSlice(int z)
+	{
+		boolean inFront = z < stacks[ 0 ].getSize();
+		boolean inBack = z >= offsets[ 1 ];
+		Object front = inFront ? stacks[ 0 ].getPixels( z + 1 ) : null;
+		Object back = inBack ? stacks[ 1 ].getPixels( z - offsets[ 1 ] + 1 ) : null;
+
+		/** Outside the overlap, the slice is copied */
+		if ( !inBack ) return copy( front, stacks[ 0 ] );
+		if ( !inFront ) return copy( back, stacks[ 1 ] );
+
+		Object out = blank();
+		ImageStack f = stacks[ 0 ], b = stacks[ 1 ];
+		float zf = method == LINEAR ? weightZ[ 0 ][ z ] : 0;
+		float zb = method == LINEAR ? weightZ[ 1 ][ z - offsets[ 1 ] ] : 0;
+		for ( int y = 0; y < height; ++y )
+		{
+			/** Row lengths covered by each stack, both cover the start of the row */
+			int wf = y < f.getHeight() ? f.getWidth() : 0;
+			int wb = y < b.getHeight() ? b.getWidth() : 0;
+			int both = Math.min( wf, wb );
+			int of = y * f.getWidth(), ob = y * b.getWidth(), o = y * width;
+
+			if ( both > 0 )
+			{
+				float rf = method == LINEAR ? weightY[ 0 ][ y ] * zf : 0;
+				float rb = method == LINEAR ? weightY[ 1 ][ y ] * zb : 0;
+				if ( method == NONE ) System.arraycopy( back, ob, out, o, both );
+				else if ( out instanceof byte[] ) blendRow( (byte[]) front, of, rf, (byte[]) back, ob, rb, (byte[]) out, o, both );
+				else if ( out instanceof short[] ) blendRow( (short[]) front, of, rf, (short[]) back, ob, rb, (short[]) out, o, both );
+				else if ( out instanceof float[] ) blendRow( (float[]) front, of, rf, (float[]) back, ob, rb, (float[]) out, o, both );
+				else blendRow( (int[]) front, of, rf, (int[]) back, ob, rb, (int[]) out, o, both );
+			}
+			if ( wf > both ) System.arraycopy( front, of + both, out, o + both, wf - both );
+			else if ( wb > both ) System.arraycopy( back, ob + both, out, o + both, wb - both );
+		}
+		return out;
+	}
+
+	/**
+	Fusion of n pixels of a front row and a back row, 8-bit
+	@param front pixels, index of the first one and row weight (linear blending)
+	@param back pixels, index of the first one and row weight (linear blending)
+	@param output pixels and index of the first one
+	@param number of pixels
+	*/
+	private void blendRow(byte[] f, int of, float rf, byte[] b, int ob, float rb, byte[] out, int o, int n)
+	{
+		final float[] xf = weightX[ 0 ], xb = weightX[ 1 ];
+		switch ( method )
+		{
+			case LINEAR:
+				for ( int x = 0; x < n; ++x )
+				{
+					float wf = xf[ x ] * rf, wb = xb[ x ] * rb;
+					out[ o + x ] = ( byte ) ( ( wf * ( f[ of + x ] & 0xff ) + wb * ( b[ ob + x ] & 0xff ) ) / ( wf + wb ) + 0.5f );
+				}
+				break;
+			case AVERAGE:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( byte ) ( ( ( f[ of + x ] & 0xff ) + ( b[ ob + x ] & 0xff ) + 1 ) >> 1 );
+				break;
+			case MAX:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( byte ) Math.max( f[ of + x ] & 0xff, b[ ob + x ] & 0xff );
+				break;
+			default:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( byte ) Math.min( f[ of + x ] & 0xff, b[ ob + x ] & 0xff );
+		}
+	}
+
+	/** Fusion of n pixels of a front row and a back row, 16-bit */
+	private void blendRow(short[] f, int of, float rf, short[] b, int ob, float rb, short[] out, int o, int n)
+	{
+		final float[] xf = weightX[ 0 ], xb = weightX[ 1 ];
+		switch ( method )
+		{
+			case LINEAR:
+				for ( int x = 0; x < n; ++x )
+				{
+					float wf = xf[ x ] * rf, wb = xb[ x ] * rb;
+					out[ o + x ] = ( short ) ( ( wf * ( f[ of + x ] & 0xffff ) + wb * ( b[ ob + x ] & 0xffff ) ) / ( wf + wb ) + 0.5f );
+				}
+				break;
+			case AVERAGE:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( short ) ( ( ( f[ of + x ] & 0xffff ) + ( b[ ob + x ] & 0xffff ) + 1 ) >> 1 );
+				break;
+			case MAX:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( short ) Math.max( f[ of + x ] & 0xffff, b[ ob + x ] & 0xffff );
+				break;
+			default:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( short ) Math.min( f[ of + x ] & 0xffff, b[ ob + x ] & 0xffff );
+		}
+	}
+
+	/** Fusion of n pixels of a front row and a back row, 32-bit */
+	private void blendRow(float[] f, int of, float rf, float[] b, int ob, float rb, float[] out, int o, int n)
+	{
+		final float[] xf = weightX[ 0 ], xb = weightX[ 1 ];
+		switch ( method )
+		{
+			case LINEAR:
+				for ( int x = 0; x < n; ++x )
+				{
+					float wf = xf[ x ] * rf, wb = xb[ x ] * rb;
+					out[ o + x ] = ( wf * f[ of + x ] + wb * b[ ob + x ] ) / ( wf + wb );
+				}
+				break;
+			case AVERAGE:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = ( f[ of + x ] + b[ ob + x ] ) / 2;
+				break;
+			case MAX:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = Math.max( f[ of + x ], b[ ob + x ] );
+				break;
+			default:
+				for ( int x = 0; x < n; ++x )
+					out[ o + x ] = Math.min( f[ of + x ], b[ ob + x ] );
+		}
+	}
+
+	/** Fusion of n pixels of a front row and a back row, RGB, channel by channel */
+	private void blendRow(int[] f, int of, float rf, int[] b, int ob, float rb, int[] out, int o, int n)
+	{
+		final float[] xf = weightX[ 0 ], xb = weightX[ 1 ];
+		for ( int x = 0; x < n; ++x )
+		{
+			int pf = f[ of + x ], pb = b[ ob + x ];
+			int rgb = 0xff000000;
+			float wf = 0, wb = 0;
+			if ( method == LINEAR )
+			{
+				float s = 1 / ( xf[ x ] * rf + xb[ x ] * rb );
+				wf = xf[ x ] * rf * s;
+				wb = xb[ x ] * rb * s;
+			}
+			for ( int shift = 0; shift <= 16; shift += 8 )
+			{
+				int cf = ( pf >> shift ) & 0xff, cb = ( pb >> shift ) & 0xff;
+				int c;
+				switch ( method )
+				{
+					case LINEAR: c = ( int ) ( wf * cf + wb * cb + 0.5f ); break;
+					case AVERAGE: c = ( cf + cb + 1 ) >> 1; break;
+					case MAX: c = Math.max( cf, cb ); break;
+					default: c = Math.min( cf, cb );
+				}
+				rgb |= c << shift;
+			}
+			out[ o + x ] = rgb;
+		}
+	}
+
+	private Object blank()
+	{
+		int size = width * height;
+		switch ( bitDepth )
+		{
+			case 8: return new byte[ size ];
+			case 16: return new short[ size ];
+			case 32: return new float[ size ];
+			default: return new int[ size ];
+		}
+	}
+
+	/** Copy of a slice of one of the stacks, padded to the fused slice size */
+	private Object copy(Object pixels, ImageStack stack)
+	{
+		int w = stack.getWidth(), h = stack.getHeight();
+		Object out = blank();
+		if ( w == width ) System.arraycopy( pixels, 0, out, 0, w * h );
+		else
+			for ( int y = 0; y < h; ++y )
+				System.arraycopy( pixels, y * w, out, y * width, w );
+		return out;
+	}
+}
@@ -0,0 +1,320 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+import ij.process.FloatProcessor;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import mpicbg.models.AffineModel3D;
+
+/**
+* Front and back stacks of a known registration, to measure how far the stitching is from it.
+*
+* A textured volume (beads or fibers) is generated, the front stack is its first frontDepth slices and
+* the back stack is resampled from the rest through the ground truth model, so that the back stack
+* aligned with that model continues the front stack with an overlap of overlap slices. The model is a
+* rotation about the center of the back stack and a translation, given in physical units: slices are
+* zScale px apart, as in an anisotropic acquisition. Each stack gets its own noise.
+*
+* The ground truth is returned as a RegistrationModel, in the voxel coordinates the stitching reports.
+*/
+public class GroundTruth
+{
+	final static public String[] textures = new String[]{ "Beads", "Fibers" };
+
+	/** Texture of the volume, one of textures */
+	public String texture = textures[ 0 ];
+	/** Stack sizes, in px and slices */
+	public int width = 256, height = 256, frontDepth = 120, backDepth = 120, overlap = 40;
+	/** Rotation of the back stack about its center, in degrees, applied around x, then y, then z */
+	public double rotationX = 0, rotationY = 0, rotationZ = 0;
+	/** Translation of the back stack, in px (z in px too, not in slices) */
+	public double translationX = 0, translationY = 0, translationZ = 0;
+	/** Standard deviation of the gaussian noise, the brightest objects are 1 */
+	public double noise = 0.02;
+	/** Slice spacing in px */
+	public double zScale = 1;
+	/** Objects per 1000 px^3 */
+	public double density = 1;
+	/** Bit depth of the stacks, 8, 16 or 32 */
+	public int bitDepth = 16;
+	public long seed = 1;
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+
+	/** Background level and 8-bit and 16-bit scales of an intensity of 1 */
+	final static private float BACKGROUND = 0.05f, SCALE8 = 220, SCALE16 = 3500;
+
+	/**
+	@return front and back stacks, calibrated with the slice spacing
+	*/
+	public ImagePlus[] generate()
+	{
+		if ( overlap < 1 || overlap > Math.min( frontDepth, backDepth ) )
+			throw new IllegalArgumentException( "The overlap must be between 1 and the depth of the stacks." );
+		if ( !( zScale > 0 ) )
+			throw new IllegalArgumentException( "The slice spacing must be positive." );
+		if ( bitDepth != 8 && bitDepth != 16 && bitDepth != 32 )
+			throw new IllegalArgumentException( "Bit depth " + bitDepth + " is not 8, 16 or 32" );
+
+		AffineModel3D model = getModel();
+
+		/** Volume around the front stack and the back stack placed with the model */
+		double[] min = new double[]{ 0, 0, 0 };
+		double[] max = new double[]{ width - 1, height - 1, frontDepth - 1 };
+		for ( int corner = 0; corner < 8; ++corner )
+		{
+			double[] p = new double[]{
+				( corner & 1 ) == 0 ? 0 : width - 1,
+				( corner & 2 ) == 0 ? 0 : height - 1,
+				( corner & 4 ) == 0 ? 0 : backDepth - 1 };
+			model.applyInPlace( p );
+			p[ 2 ] += frontDepth - overlap;
+			for ( int d = 0; d < 3; ++d )
+			{
+				min[ d ] = Math.min( min[ d ], p[ d ] );
+				max[ d ] = Math.max( max[ d ], p[ d ] );
+			}
+		}
+		int[] origin = new int[ 3 ];
+		int[] size = new int[ 3 ];
+		for ( int d = 0; d < 3; ++d )
+		{
+			origin[ d ] = ( int ) Math.ceil( -min[ d ] ) + 2;
+			size[ d ] = origin[ d ] + ( int ) Math.ceil( max[ d ] ) + 3;
+		}
+
+		Random random = new Random( seed );
+		float[][] volume = volume( size, random );
+
+		ImageStack world = new ImageStack( size[ 0 ], size[ 1 ] );
+		for ( float[] slice : volume )
+			world.addSlice( null, new FloatProcessor( size[ 0 ], size[ 1 ], slice, null ) );
+
+		ImageStack front = new ImageStack( width, height );
+		for ( int z = 0; z < frontDepth; ++z )
+			front.addSlice( null, crop( volume[ origin[ 2 ] + z ], size[ 0 ], origin[ 0 ], origin[ 1 ] ) );
+
+		/** Back voxel p is the volume voxel origin + (0, 0, frontDepth - overlap) + model(p) */
+		double[] m = new double[ 12 ];
+		model.toArray( m );
+		AffineModel3D toWorld = new AffineModel3D();
+		toWorld.set(
+			m[ 0 ], m[ 3 ], m[ 6 ], m[ 9 ] + origin[ 0 ],
+			m[ 1 ], m[ 4 ], m[ 7 ], m[ 10 ] + origin[ 1 ],
+			m[ 2 ], m[ 5 ], m[ 8 ], m[ 11 ] + origin[ 2 ] + frontDepth - overlap );
+		ImageStack rendered = new AffineRenderer( numThreads ).render( world, toWorld.createInverse(), width, height, backDepth );
+		ImageStack back = new ImageStack( width, height );
+		for ( int z = 1; z <= backDepth; ++z )
+			back.addSlice( null, rendered.getPixels( z ) );
+
+		return new ImagePlus[]{ image( "front", front, random ), image( "back", back, random ) };
+	}
+
+	/**
+	Ground truth model: back voxel coordinates to the coordinates of the aligned back stack, whose first
+	slice is slice frontDepth - overlap + 1 of the front stack
+	@return model
+	*/
+	public AffineModel3D getModel()
+	{
+		double ax = Math.toRadians( rotationX ), ay = Math.toRadians( rotationY ), az = Math.toRadians( rotationZ );
+		double[][] rx = new double[][]{ { 1, 0, 0 }, { 0, Math.cos( ax ), -Math.sin( ax ) }, { 0, Math.sin( ax ), Math.cos( ax ) } };
+		double[][] ry = new double[][]{ { Math.cos( ay ), 0, Math.sin( ay ) }, { 0, 1, 0 }, { -Math.sin( ay ), 0, Math.cos( ay ) } };
+		double[][] rz = new double[][]{ { Math.cos( az ), -Math.sin( az ), 0 }, { Math.sin( az ), Math.cos( az ), 0 }, { 0, 0, 1 } };
+		double[][] r = multiply( rz, multiply( ry, rx ) );
+
+		/** Rotation in px, applied to voxel coordinates: S^-1 R S with S = diag( 1, 1, zScale ) */
+		double[] s = new double[]{ 1, 1, zScale };
+		double[][] a = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < 3; ++i )
+			for ( int j = 0; j < 3; ++j )
+				a[ i ][ j ] = r[ i ][ j ] * s[ j ] / s[ i ];
+
+		double[] c = new double[]{ ( width - 1 ) / 2.0, ( height - 1 ) / 2.0, ( backDepth - 1 ) / 2.0 };
+		double[] t = new double[]{ translationX, translationY, translationZ / zScale };
+		for ( int i = 0; i < 3; ++i )
+			t[ i ] += c[ i ] - a[ i ][ 0 ] * c[ 0 ] - a[ i ][ 1 ] * c[ 1 ] - a[ i ][ 2 ] * c[ 2 ];
+
+		AffineModel3D model = new AffineModel3D();
+		model.set(
+			a[ 0 ][ 0 ], a[ 0 ][ 1 ], a[ 0 ][ 2 ], t[ 0 ],
+			a[ 1 ][ 0 ], a[ 1 ][ 1 ], a[ 1 ][ 2 ], t[ 1 ],
+			a[ 2 ][ 0 ], a[ 2 ][ 1 ], a[ 2 ][ 2 ], t[ 2 ] );
+		return model;
+	}
+
+	/** @return ground truth of the stacks generated, as the stitching reports its registration */
+	public RegistrationModel getTruth()
+	{
+		return new RegistrationModel( getModel(), overlap, SIFT_Volume_Stitching.stitchingModelStrings[ 0 ],
+				new int[]{ width, height, frontDepth }, new int[]{ width, height, backDepth }, 0, 0, 0 );
+	}
+
+	/**
+	Distance between the fused positions of the back voxels given by two registrations, over a grid of the
+	back stack, in px with slices zScale px apart
+	@param registration found
+	@param reference registration, the ground truth
+	@param slice spacing in px
+	@return mean and maximum distance
+	*/
+	public static double[] modelError(RegistrationModel found, RegistrationModel truth, double zScale)
+	{
+		AffineModel3D a = found.getModel();
+		AffineModel3D b = truth.getModel();
+		int[] size = truth.getBackSize();
+		double sum = 0, max = 0;
+		int n = 0;
+		for ( int k = 0; k <= 4; ++k )
+			for ( int j = 0; j <= 4; ++j )
+				for ( int i = 0; i <= 4; ++i )
+				{
+					double[] p = new double[]{ i * ( size[ 0 ] - 1 ) / 4.0, j * ( size[ 1 ] - 1 ) / 4.0, k * ( size[ 2 ] - 1 ) / 4.0 };
+					double[] q = p.clone();
+					a.applyInPlace( p );
+					b.applyInPlace( q );
+					double dx = p[ 0 ] - q[ 0 ];
+					double dy = p[ 1 ] - q[ 1 ];
+					/** The aligned back stack starts overlap slices before the end of the front stack */
+					double dz = ( p[ 2 ] - found.getOverlap() - q[ 2 ] + truth.getOverlap() ) * zScale;
+					double d = Math.sqrt( dx * dx + dy * dy + dz * dz );
+					sum += d;
+					max = Math.max( max, d );
+					++n;
+				}
+		return new double[]{ sum / n, max };
+	}
+
+	/** @return slices of the textured volume, objects of intensity 0.3 to 1 on the background */
+	private float[][] volume(int[] size, Random random)
+	{
+		int w = size[ 0 ], h = size[ 1 ], d = size[ 2 ];
+		float[][] volume = new float[ d ][ w * h ];
+		for ( float[] slice : volume )
+			Arrays.fill( slice, BACKGROUND );
+
+		double px3 = ( double ) w * h * d * zScale;
+		if ( texture.equals( textures[ 1 ] ) )
+		{
+			/** Fibers, traced as beads half a radius apart */
+			int fibers = ( int ) ( density * px3 / 1000 / 10 );
+			for ( int f = 0; f < fibers; ++f )
+			{
+				double x = random.nextDouble() * w, y = random.nextDouble() * h, z = random.nextDouble() * d * zScale;
+				double u = 2 * random.nextDouble() - 1, phi = 2 * Math.PI * random.nextDouble();
+				double dx = Math.sqrt( 1 - u * u ) * Math.cos( phi ), dy = Math.sqrt( 1 - u * u ) * Math.sin( phi ), dz = u;
+				double length = 30 + 90 * random.nextDouble();
+				double sigma = 1 + 0.8 * random.nextDouble();
+				float amplitude = 0.3f + 0.7f * random.nextFloat();
+				for ( double l = 0; l <= length; l += sigma / 2 )
+					splat( volume, w, h, x + l * dx, y + l * dy, z + l * dz, sigma, amplitude );
+			}
+		}
+		else
+		{
+			int beads = ( int ) ( density * px3 / 1000 );
+			for ( int b = 0; b < beads; ++b )
+				splat( volume, w, h, random.nextDouble() * w, random.nextDouble() * h, random.nextDouble() * d * zScale,
+						1.2 + 1.3 * random.nextDouble(), 0.3f + 0.7f * random.nextFloat() );
+		}
+		return volume;
+	}
+
+	/** Gaussian object at x, y, z in px, kept where it is brighter than the volume */
+	private void splat(float[][] volume, int w, int h, double x, double y, double z, double sigma, float amplitude)
+	{
+		double s = -0.5 / ( sigma * sigma );
+		double r = 3 * sigma;
+		int z0 = Math.max( 0, ( int ) Math.ceil( ( z - r ) / zScale ) ), z1 = Math.min( volume.length - 1, ( int ) Math.floor( ( z + r ) / zScale ) );
+		int y0 = Math.max( 0, ( int ) Math.ceil( y - r ) ), y1 = Math.min( h - 1, ( int ) Math.floor( y + r ) );
+		int x0 = Math.max( 0, ( int ) Math.ceil( x - r ) ), x1 = Math.min( w - 1, ( int ) Math.floor( x + r ) );
+		for ( int k = z0; k <= z1; ++k )
+		{
+			float[] slice = volume[ k ];
+			double dz = k * zScale - z;
+			for ( int j = y0; j <= y1; ++j )
+			{
+				double dyz = dz * dz + ( j - y ) * ( j - y );
+				for ( int i = x0; i <= x1; ++i )
+				{
+					float v = amplitude * ( float ) Math.exp( s * ( dyz + ( i - x ) * ( i - x ) ) );
+					if ( v > slice[ j * w + i ] ) slice[ j * w + i ] = v;
+				}
+			}
+		}
+	}
+
+	private float[] crop(float[] slice, int sliceWidth, int x0, int y0)
+	{
+		float[] crop = new float[ width * height ];
+		for ( int y = 0; y < height; ++y )
+			System.arraycopy( slice, ( y0 + y ) * sliceWidth + x0, crop, y * width, width );
+		return crop;
+	}
+
+	/** @return noisy stack of the bit depth, calibrated */
+	private ImagePlus image(String title, ImageStack stack, Random random)
+	{
+		ImageStack image = new ImageStack( width, height );
+		for ( int z = 1; z <= stack.getSize(); ++z )
+		{
+			float[] pixels = ( float[] ) stack.getPixels( z );
+			float[] noisy = new float[ pixels.length ];
+			for ( int i = 0; i < pixels.length; ++i )
+				noisy[ i ] = pixels[ i ] + ( float ) ( noise * random.nextGaussian() );
+			image.addSlice( null, convert( noisy ) );
+		}
+		ImagePlus imp = new ImagePlus( title, image );
+		Calibration c = imp.getCalibration();
+		c.pixelWidth = 1;
+		c.pixelHeight = 1;
+		c.pixelDepth = zScale;
+		c.setUnit( "px" );
+		return imp;
+	}
+
+	private Object convert(float[] pixels)
+	{
+		if ( bitDepth == 8 )
+		{
+			byte[] bytes = new byte[ pixels.length ];
+			for ( int i = 0; i < pixels.length; ++i )
+				bytes[ i ] = ( byte ) Math.max( 0, Math.min( 255, Math.round( pixels[ i ] * SCALE8 ) ) );
+			return bytes;
+		}
+		if ( bitDepth == 16 )
+		{
+			short[] shorts = new short[ pixels.length ];
+			for ( int i = 0; i < pixels.length; ++i )
+				shorts[ i ] = ( short ) Math.max( 0, Math.min( 65535, Math.round( pixels[ i ] * SCALE16 ) ) );
+			return shorts;
+		}
+		return pixels;
+	}
+
+	private static double[][] multiply(double[][] a, double[][] b)
+	{
+		double[][] c = new double[ 3 ][ 3 ];
+		for ( int i = 0; i < 3; ++i )
+			for ( int j = 0; j < 3; ++j )
+				c[ i ][ j ] = a[ i ][ 0 ] * b[ 0 ][ j ] + a[ i ][ 1 ] * b[ 1 ][ j ] + a[ i ][ 2 ] * b[ 2 ][ j ];
+		return c;
+	}
+
+	public String toString()
+	{
+		return texture + " " + bitDepth + "-bit " + width + "x" + height + ", front " + frontDepth + ", back " + backDepth +
+				", overlap " + overlap + ", rotation " + rotationX + "/" + rotationY + "/" + rotationZ +
+				", translation " + translationX + "/" + translationY + "/" + translationZ +
+				", z scale " + zScale + ", noise " + noise;
+	}
+}
@@ -0,0 +1,230 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.io.FileSaver;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+* Accuracy and speed regression runs on generated stacks of known registration (GroundTruth).
+*
+* The configurations file has one configuration per line: GroundTruth settings and HeadlessStitching
+* options, as key=value options; empty lines and lines starting with # are ignored, a configuration is
+* named by its name option, by its line number otherwise. For each configuration the stacks are
+* generated, written to a directory of its name with the ground truth model (truth.model), stitched
+* headless as the run method does, and compared with the ground truth. Options given with
+* ground_truth apply to every configuration that does not set them.
+*
+* The report has one CSV row per configuration: the settings, the true and found overlaps, the mean and
+* maximum distance between the fused positions of the back voxels with the found and true models (px),
+* the inliers of the last comparison, the total time and the wall time of each stage; every stage is
+* measured in the metrics.json of the configuration (Instrumentation).
+*/
+public class GroundTruthHarness
+{
+	final static public String USAGE =
+		"Ground truth options (key=value, defaults in parentheses), with any stitching option:\n" +
+		"  ground_truth                    file of configurations, one line of options each (required)\n" +
+		"  work (ground_truth)             directory of the stacks, models and outputs\n" +
+		"  report (work/report.csv)        CSV report\n" +
+		"  texture (Beads), Fibers\n" +
+		"  width (256), height (256), front_depth (120), back_depth (120), true_overlap (40)\n" +
+		"  rx, ry, rz (0)                  rotation of the back stack in degrees\n" +
+		"  tx, ty, tz (0)                  translation of the back stack in px\n" +
+		"  noise (0.02), z_scale (1), density (1), bit_depth (16), seed (1)\n" +
+		"  overlap (true_overlap)          overlap size estimate of the Slice-by-Slice search";
+
+	final static private String HEADER = "name,texture,bit_depth,width,height,front_depth,back_depth,z_scale,noise," +
+		"rx,ry,rz,tx,ty,tz,true_overlap,found_overlap,overlap_error,model_error_mean,model_error_max,inliers,total_ms,stages,error";
+
+	private GroundTruthHarness() {}
+
+	/**
+	Generate, stitch and compare every configuration
+	@param options, see the class description
+	@return number of failed configurations
+	*/
+	public static int run(String options) throws IOException
+	{
+		String configurations = Macro.getValue( options, "ground_truth", null );
+		if ( configurations == null )
+			throw new IllegalArgumentException( "No ground_truth configurations given." );
+		File work = new File( Macro.getValue( options, "work", "ground_truth" ) );
+		if ( !work.isDirectory() && !work.mkdirs() )
+			throw new IOException( "Cannot create " + work );
+		File report = new File( Macro.getValue( options, "report", new File( work, "report.csv" ).getPath() ) );
+
+		List< String[] > cases = readConfigurations( new File( configurations ) );
+		PrintWriter out = new PrintWriter( new FileWriter( report ) );
+		int failed = 0;
+		try
+		{
+			out.println( HEADER );
+			for ( String[] c : cases )
+			{
+				/** Configuration options first, Macro.getValue reads the first occurrence of a key */
+				if ( !run( c[ 0 ], c[ 1 ] + " " + options, new File( work, c[ 0 ] ), out ) ) ++failed;
+				out.flush();
+			}
+		}
+		finally
+		{
+			out.close();
+		}
+		IJ.log( "(Info) Ground truth: " + cases.size() + " configurations, " + failed + " failed, report " + report );
+		return failed;
+	}
+
+	/** @return true if the configuration was stitched */
+	private static boolean run(String name, String options, File dir, PrintWriter report) throws IOException
+	{
+		GroundTruth truth = configure( options );
+		StringBuilder row = new StringBuilder( name ).append( ',' ).append( truth.texture ).append( ',' ).append( truth.bitDepth );
+		for ( double v : new double[]{ truth.width, truth.height, truth.frontDepth, truth.backDepth, truth.zScale, truth.noise,
+				truth.rotationX, truth.rotationY, truth.rotationZ, truth.translationX, truth.translationY, truth.translationZ, truth.overlap } )
+			row.append( ',' ).append( ( float ) v );
+
+		if ( !dir.isDirectory() && !dir.mkdirs() )
+			throw new IOException( "Cannot create " + dir );
+		IJ.log( "(Info) Ground truth " + name + ": " + truth );
+		ImagePlus[] stacks = truth.generate();
+		File front = new File( dir, "front.tif" );
+		File back = new File( dir, "back.tif" );
+		File found = new File( dir, "found.model" );
+		save( stacks[ 0 ], front );
+		save( stacks[ 1 ], back );
+		truth.getTruth().save( new File( dir, "truth.model" ) );
+		found.delete();
+
+		String stitching = options + " front=[" + front.getPath() + "] back=[" + back.getPath() + "]" +
+				" output=[" + new File( dir, "fused.tif" ).getPath() + "] model_out=[" + found.getPath() + "]" +
+				" overlap=" + truth.overlap + " diagnostics=[" + dir.getPath() + "]" +
+				" metrics=[" + new File( dir, "metrics.json" ).getPath() + "]";
+
+		StageTimes times = new StageTimes();
+		long start = System.currentTimeMillis();
+		try
+		{
+			HeadlessStitching.run( stitching, true, times );
+		}
+		catch ( Exception e )
+		{
+			IJ.log( "(Error) Ground truth " + name + ": " + e.getMessage() );
+			report.println( row.append( ",,,,,," ).append( System.currentTimeMillis() - start ).append( ',' )
+					.append( csv( times.stages() ) ).append( ',' ).append( csv( e.getMessage() ) ) );
+			return false;
+		}
+		long total = System.currentTimeMillis() - start;
+
+		RegistrationModel model = RegistrationModel.load( found );
+		double[] error = GroundTruth.modelError( model, truth.getTruth(), truth.zScale );
+		row.append( ',' ).append( model.getOverlap() ).append( ',' ).append( model.getOverlap() - truth.overlap )
+			.append( ',' ).append( ( float ) error[ 0 ] ).append( ',' ).append( ( float ) error[ 1 ] )
+			.append( ',' ).append( model.getInliers() ).append( ',' ).append( total )
+			.append( ',' ).append( csv( times.stages() ) ).append( ',' );
+		report.println( row );
+		IJ.log( "(Info) Ground truth " + name + ": overlap error " + ( model.getOverlap() - truth.overlap ) +
+				" slices, model error " + IJ.d2s( error[ 0 ], 2 ) + " px (max " + IJ.d2s( error[ 1 ], 2 ) + "), " + total + " ms" );
+		return true;
+	}
+
+	/** Generator settings of the options */
+	static GroundTruth configure(String options)
+	{
+		GroundTruth g = new GroundTruth();
+		g.texture = HeadlessStitching.choice( options, "texture", GroundTruth.textures, g.texture );
+		g.width = ( int ) HeadlessStitching.number( options, "width", g.width );
+		g.height = ( int ) HeadlessStitching.number( options, "height", g.height );
+		g.frontDepth = ( int ) HeadlessStitching.number( options, "front_depth", g.frontDepth );
+		g.backDepth = ( int ) HeadlessStitching.number( options, "back_depth", g.backDepth );
+		g.overlap = ( int ) HeadlessStitching.number( options, "true_overlap", g.overlap );
+		g.rotationX = HeadlessStitching.number( options, "rx", g.rotationX );
+		g.rotationY = HeadlessStitching.number( options, "ry", g.rotationY );
+		g.rotationZ = HeadlessStitching.number( options, "rz", g.rotationZ );
+		g.translationX = HeadlessStitching.number( options, "tx", g.translationX );
+		g.translationY = HeadlessStitching.number( options, "ty", g.translationY );
+		g.translationZ = HeadlessStitching.number( options, "tz", g.translationZ );
+		g.noise = HeadlessStitching.number( options, "noise", g.noise );
+		g.zScale = HeadlessStitching.number( options, "z_scale", g.zScale );
+		g.density = HeadlessStitching.number( options, "density", g.density );
+		g.bitDepth = ( int ) HeadlessStitching.number( options, "bit_depth", g.bitDepth );
+		g.seed = ( long ) HeadlessStitching.number( options, "seed", g.seed );
+		g.numThreads = Math.max( 1, ( int ) HeadlessStitching.number( options, "threads", g.numThreads ) );
+		return g;
+	}
+
+	/** Name and options of every configuration, in order */
+	private static List< String[] > readConfigurations(File file) throws IOException
+	{
+		List< String[] > cases = new ArrayList< String[] >();
+		BufferedReader in = new BufferedReader( new FileReader( file ) );
+		try
+		{
+			int n = 0;
+			for ( String line = in.readLine(); line != null; line = in.readLine() )
+			{
+				++n;
+				line = line.trim();
+				if ( line.length() == 0 || line.startsWith( "#" ) ) continue;
+				cases.add( new String[]{ Macro.getValue( line, "name", "case" + n ), line } );
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+		return cases;
+	}
+
+	private static void save(ImagePlus imp, File file) throws IOException
+	{
+		if ( !new FileSaver( imp ).saveAsTiffStack( file.getPath() ) )
+			throw new IOException( "Cannot write " + file );
+	}
+
+	private static String csv(String value)
+	{
+		if ( value == null ) return "";
+		return "\"" + value.replace( "\"", "\"\"" ) + "\"";
+	}
+
+	/** Wall time of the stages of the run, the direct children of the stitch stage */
+	static private class StageTimes implements StitchingListener
+	{
+		final private Map< String, Long > stages = new LinkedHashMap< String, Long >();
+
+		public synchronized void stageFinished(StageMetrics stage)
+		{
+			if ( !stage.parent.equals( "stitch" ) ) return;
+			String key = stage.name + ( stage.iteration > 0 ? " #" + stage.iteration : "" );
+			Long before = stages.get( key );
+			stages.put( key, ( before == null ? 0 : before ) + stage.wallNanos / 1000000 );
+		}
+
+		/** @return stage=ms pairs, separated by ; */
+		synchronized String stages()
+		{
+			StringBuilder s = new StringBuilder();
+			for ( Map.Entry< String, Long > e : stages.entrySet() )
+				s.append( s.length() == 0 ? "" : ";" ).append( e.getKey() ).append( '=' ).append( e.getValue() );
+			return s.toString();
+		}
+	}
+}
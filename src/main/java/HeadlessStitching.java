@@ -0,0 +1,435 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.Macro;
+import ij.io.FileInfo;
+import ij.io.FileSaver;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+
+import static stitching.CommonFunctions.methodListCollection;
+
+/**
+* Stitching without the dialog, for servers without a display. The stacks are read from files, every
+* parameter is given as a key=value option (values with spaces in brackets, as in ImageJ macros), the
+* fused stacks are written to files and the correspondence plots and alignment info to a diagnostics
+* directory, together with the log; without a diagnostics directory they are dropped. Neither the
+* WindowManager nor any window is used.
+*
+* From the command line, through the main class of the jar, with the Fiji jars on the class path:
+*   java -cp 2D_SIFT_in_3D_Space.jar:ij.jar:mpicbg_.jar:Stitching_.jar SIFT_Volume_Stitching front=front.tif back=back.tif output=fused.tif [key=value ...]
+* From a script:
+*   IJ.runPlugIn( "SIFT_Volume_Stitching", "front=front.tif back=back.tif output=fused.tif" );
+*/
+public class HeadlessStitching
+{
+	final static public String USAGE =
+		"Options (key=value, defaults of the dialog in parentheses):\n" +
+		"  front, back                     stacks to stitch (required)\n" +
+		"  output                          fused stack, TIFF (required); channels get _channel2, _channel3\n" +
+		"  front_filtered, back_filtered   stacks compared instead of front and back\n" +
+		"  front_channelN, back_channelN   additional channel N = 2, 3, ..., fused with the same model;\n" +
+		"                                  the channels of hyperstacks are split, channel 1 is registered\n" +
+		"  orientation                     [Front - Back], [Back - Front], [Left - Right], ...\n" +
+		"  overlap_method                  Slice-by-Slice, Block-by-Block\n" +
+		"  slice_search                    Exhaustive, Coarse-to-fine, [Correlation pre-localization]\n" +
+		"  split (5), overlap (100), threads (processors)\n" +
+		"  registration (true), iterations (2), mip (50)\n" +
+		"  initial_sigma (1.6), steps (5), min_size (64), max_size (1024)\n" +
+		"  matching ([Brute force]), matching_recall (false)\n" +
+		"  feature_storage ([Feature objects]), [Float arrays], [8-bit arrays]\n" +
+		"  fusion ([Linear Blending]), alpha (1.5)\n" +
+		"  streaming (false), slab (16)     fuse and write the output slab by slab, slab size in slices\n" +
+		"  model                           saved registration model (model_out of an earlier run)\n" +
+		"  model_use ([Starting point])    [Starting point] of a narrow refinement or [Final transform]\n" +
+		"  refine_range (25)               overlap search range around the saved overlap, in slices\n" +
+		"  model_out                       registration model to write\n" +
+		"  metrics                         time, CPU, allocations and counts of every stage, .json or .csv\n" +
+		"  diagnostics                     directory of the plots, alignment info and log, dropped without it\n" +
+		"  virtual (false)                 memory-map uncompressed TIFF inputs instead of loading them\n" +
+		"  raw_size=[w h d], raw_type (16-bit), raw_offset (0), raw_little_endian (true)   .raw inputs, always mapped\n" +
+		"  manifest                        file of pairs, one line of options per pair, see BatchStitching\n" +
+		"  ground_truth                    file of generated test configurations, see GroundTruthHarness";
+
+	/** Key of the image of an additional channel */
+	final static private Pattern CHANNEL_KEY = Pattern.compile( "(?:^|\\s)(?:front|back)_channel(\\d+)=" );
+
+	private HeadlessStitching() {}
+
+	/**
+	Command line entry point, exits with 0 on success, 1 on I/O errors, 2 on invalid options and 3 when
+	pairs of a batch or ground truth configurations failed. A manifest option runs a batch, see
+	BatchStitching, a ground_truth option runs accuracy tests, see GroundTruthHarness.
+	@param key=value options, one per argument
+	*/
+	public static void main(String[] args)
+	{
+		System.setProperty( "java.awt.headless", "true" );
+
+		StringBuilder options = new StringBuilder();
+		for ( String arg : args )
+		{
+			/** Values split by the shell are kept whole */
+			int eq = arg.indexOf( '=' );
+			if ( eq > 0 && arg.indexOf( ' ', eq ) > 0 && !arg.startsWith( "[", eq + 1 ) )
+				arg = arg.substring( 0, eq + 1 ) + "[" + arg.substring( eq + 1 ) + "]";
+			options.append( arg ).append( ' ' );
+		}
+
+		int status = 0;
+		try
+		{
+			if ( Macro.getValue( options.toString(), "manifest", null ) != null )
+			{
+				if ( BatchStitching.run( options.toString() ) > 0 ) status = 3;
+			}
+			else if ( Macro.getValue( options.toString(), "ground_truth", null ) != null )
+			{
+				if ( GroundTruthHarness.run( options.toString() ) > 0 ) status = 3;
+			}
+			else
+			{
+				run( options.toString() );
+			}
+		}
+		catch ( IllegalArgumentException e )
+		{
+			System.err.println( "Error: " + e.getMessage() );
+			System.err.println( USAGE );
+			status = 2;
+		}
+		catch ( IOException e )
+		{
+			System.err.println( "Error: " + e.getMessage() );
+			status = 1;
+		}
+		System.exit( status );
+	}
+
+	/**
+	Open the stacks, stitch them and write the fused stacks
+	@param key=value options
+	@return fused stacks, as written
+	*/
+	public static ImagePlus[] run(String options) throws IOException
+	{
+		return run( options, true );
+	}
+
+	/**
+	Open the stacks, stitch them and write the fused stacks
+	@param key=value options
+	@param copy the standard output to the log of the diagnostics directory, for one job at a time only
+	@return fused stacks, as written; streamed ones can no longer be read once mapped inputs are closed
+	*/
+	public static ImagePlus[] run(String options, boolean copyLog) throws IOException
+	{
+		return run( options, copyLog, null );
+	}
+
+	/**
+	Open the stacks, stitch them and write the fused stacks
+	@param key=value options
+	@param copy the standard output to the log of the diagnostics directory, for one job at a time only
+	@param listener receiving the measures of every stage, null for none
+	@return fused stacks, as written; streamed ones can no longer be read once mapped inputs are closed
+	*/
+	public static ImagePlus[] run(String options, boolean copyLog, StitchingListener listener) throws IOException
+	{
+		return run( options, copyLog, listener, null );
+	}
+
+	/**
+	Open the stacks, stitch them and write the fused stacks
+	@param key=value options
+	@param copy the standard output to the log of the diagnostics directory, for one job at a time only
+	@param listener receiving the measures of every stage, null for none
+	@param workers scoring the back slices, kept by the caller between pairs; null for workers of this pair only
+	@return fused stacks, as written; streamed ones can no longer be read once mapped inputs are closed
+	*/
+	public static ImagePlus[] run(String options, boolean copyLog, StitchingListener listener, ExecutorService scoring) throws IOException
+	{
+		SIFT_Volume_Stitching plugin = new SIFT_Volume_Stitching();
+		if ( listener != null ) plugin.addListener( listener );
+		if ( scoring != null ) plugin.setScoringPool( scoring );
+		String output = Macro.getValue( options, "output", null );
+		if ( output == null )
+			throw new IllegalArgumentException( "No output file given." );
+		List< MappedStack > mapped = new ArrayList< MappedStack >();
+		try
+		{
+			configure( plugin, options, mapped );
+			return stitch( plugin, options, output, copyLog );
+		}
+		finally
+		{
+			for ( MappedStack stack : mapped )
+				stack.close();
+		}
+	}
+
+	/** Stitch and write the fused stacks, with the log copied to the diagnostics directory if asked */
+	private static ImagePlus[] stitch(SIFT_Volume_Stitching plugin, String options, String output, boolean copyLog) throws IOException
+	{
+		String diagnostics = Macro.getValue( options, "diagnostics", null );
+		PrintStream out = System.out;
+		PrintStream log = null;
+		if ( diagnostics == null )
+		{
+			/** The plugin shows the plots and alignment info in windows otherwise */
+			plugin.setDiagnostics( Diagnostics.discard() );
+		}
+		else
+		{
+			File dir = new File( diagnostics );
+			plugin.setDiagnostics( dir );
+			if ( copyLog && dir.isDirectory() )
+			{
+				log = new PrintStream( new FileOutputStream( new File( dir, "stitching.log" ) ), true );
+				System.setOut( new PrintStream( new Tee( out, log ), true ) );
+			}
+		}
+
+		try
+		{
+			ImagePlus[] fused = plugin.stitch();
+			int[] channels = plugin.getFusedChannels();
+			for ( int i = 0; i < fused.length; ++i )
+			{
+				String path = i == 0 ? output : suffixed( output, "_channel" + channels[ i ] );
+				save( fused[ i ], path );
+				IJ.log( "(Info) Written " + path );
+			}
+			String modelOut = Macro.getValue( options, "model_out", null );
+			if ( modelOut != null )
+			{
+				plugin.getRegistrationModel().save( new File( modelOut ) );
+				IJ.log( "(Info) Written " + modelOut );
+			}
+			String metrics = Macro.getValue( options, "metrics", null );
+			if ( metrics != null )
+			{
+				plugin.getInstrumentation().write( new File( metrics ) );
+				IJ.log( "(Info) Written " + metrics );
+			}
+			return fused;
+		}
+		finally
+		{
+			System.setOut( out );
+			if ( log != null ) log.close();
+		}
+	}
+
+	/** Set the images and parameters of the plugin from the options */
+	private static void configure(SIFT_Volume_Stitching plugin, String options, List< MappedStack > mapped) throws IOException
+	{
+		plugin.setImages( open( options, "front", true, mapped ), open( options, "back", true, mapped ) );
+		plugin.setFilteredImages( open( options, "front_filtered", false, mapped ), open( options, "back_filtered", false, mapped ) );
+		for ( int c : channels( options ) )
+			plugin.setChannel( c, open( options, "front_channel" + c, false, mapped ), open( options, "back_channel" + c, false, mapped ) );
+
+		plugin.stitchingMethod = choice( options, "orientation", SIFT_Volume_Stitching.stitchingModelStrings, plugin.stitchingMethod );
+		plugin.myOVMethod = choice( options, "overlap_method", SIFT_Volume_Stitching.OVMethod, plugin.myOVMethod );
+		plugin.mySearchStrategy = choice( options, "slice_search", SIFT_Volume_Stitching.searchStrategies, plugin.mySearchStrategy );
+		plugin.split = ( int ) number( options, "split", plugin.split );
+		plugin.ov = ( int ) number( options, "overlap", plugin.ov );
+		plugin.numThreads = Math.max( 1, ( int ) number( options, "threads", plugin.numThreads ) );
+
+		plugin.Reg3D = bool( options, "registration", plugin.Reg3D );
+		plugin.it = ( int ) number( options, "iterations", plugin.it );
+		plugin.MIP = ( int ) number( options, "mip", plugin.MIP );
+
+		FloatArray2DSIFT.Param sift = plugin.getSiftParam();
+		sift.initialSigma = ( float ) number( options, "initial_sigma", sift.initialSigma );
+		sift.steps = ( int ) number( options, "steps", sift.steps );
+		sift.minOctaveSize = ( int ) number( options, "min_size", sift.minOctaveSize );
+		sift.maxOctaveSize = ( int ) number( options, "max_size", sift.maxOctaveSize );
+		plugin.matcherMethod = choice( options, "matching", SIFT_Volume_Stitching.matcherStrings, plugin.matcherMethod );
+		plugin.reportMatchingRecall = bool( options, "matching_recall", plugin.reportMatchingRecall );
+		plugin.featureStorage = choice( options, "feature_storage", SIFT_Volume_Stitching.featureStorages, plugin.featureStorage );
+
+		plugin.fusionMethod = choice( options, "fusion", methodListCollection, plugin.fusionMethod );
+		plugin.alpha = number( options, "alpha", plugin.alpha );
+		String model = Macro.getValue( options, "model", null );
+		if ( model != null )
+		{
+			if ( !new File( model ).isFile() )
+				throw new IOException( "No such file: " + model );
+			String use = choice( options, "model_use", SIFT_Volume_Stitching.modelUses, SIFT_Volume_Stitching.modelUses[ 1 ] );
+			plugin.setSavedModel( RegistrationModel.load( new File( model ) ), use );
+		}
+		plugin.refineRange = Math.max( 1, ( int ) number( options, "refine_range", plugin.refineRange ) );
+
+		plugin.streamingFusion = bool( options, "streaming", plugin.streamingFusion );
+		plugin.fusionSlab = Math.max( 1, ( int ) number( options, "slab", plugin.fusionSlab ) );
+	}
+
+	/** @return numbers of the additional channels given, in increasing order */
+	static SortedSet< Integer > channels(String options)
+	{
+		SortedSet< Integer > channels = new TreeSet< Integer >();
+		Matcher m = CHANNEL_KEY.matcher( options );
+		while ( m.find() )
+			channels.add( Integer.valueOf( m.group( 1 ) ) );
+		return channels;
+	}
+
+	/**
+	@param options
+	@param key of the image path
+	@param true if the image must be given
+	@param receives the memory-mapped stacks, to be closed after stitching
+	@return image, null if it is not given
+	*/
+	private static ImagePlus open(String options, String key, boolean required, List< MappedStack > mapped) throws IOException
+	{
+		String path = Macro.getValue( options, key, null );
+		if ( path == null )
+		{
+			if ( required ) throw new IllegalArgumentException( "No " + key + " image given." );
+			return null;
+		}
+		if ( !new File( path ).isFile() )
+			throw new IOException( "No such file: " + path );
+
+		ImagePlus imp;
+		if ( path.toLowerCase().endsWith( ".raw" ) )
+			imp = openRaw( options, path );
+		else if ( bool( options, "virtual", false ) )
+			imp = MappedStack.openTiff( path );
+		else
+			imp = IJ.openImage( path );
+		if ( imp == null )
+			throw new IOException( "Cannot open " + path );
+		if ( imp.getStack() instanceof MappedStack )
+			mapped.add( ( MappedStack ) imp.getStack() );
+		return imp;
+	}
+
+	private static ImagePlus openRaw(String options, String path) throws IOException
+	{
+		String size = Macro.getValue( options, "raw_size", null );
+		if ( size == null )
+			throw new IllegalArgumentException( "No raw_size=[width height depth] given for " + path );
+		String[] whd = size.trim().split( "[ x,]+" );
+		if ( whd.length != 3 )
+			throw new IllegalArgumentException( "Invalid raw_size: " + size );
+		int[] dims = new int[ 3 ];
+		try
+		{
+			for ( int i = 0; i < 3; ++i )
+				dims[ i ] = Integer.parseInt( whd[ i ] );
+		}
+		catch ( NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid raw_size: " + size );
+		}
+
+		String[] types = new String[]{ "8-bit", "16-bit", "16-bit signed", "32-bit", "RGB" };
+		int[] fileTypes = new int[]{ FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED, FileInfo.GRAY16_SIGNED, FileInfo.GRAY32_FLOAT, FileInfo.RGB };
+		String type = choice( options, "raw_type", types, types[ 1 ] );
+		int fileType = fileTypes[ Arrays.asList( types ).indexOf( type ) ];
+
+		return MappedStack.openRaw( path, dims[ 0 ], dims[ 1 ], dims[ 2 ], fileType,
+				( long ) number( options, "raw_offset", 0 ), bool( options, "raw_little_endian", true ) );
+	}
+
+	/** @return the element of choices equal to the option, the plugin compares them by reference */
+	static String choice(String options, String key, String[] choices, String defaultValue)
+	{
+		String value = Macro.getValue( options, key, defaultValue );
+		for ( String c : choices )
+			if ( c.equalsIgnoreCase( value ) ) return c;
+		throw new IllegalArgumentException( "Invalid " + key + ": " + value );
+	}
+
+	static double number(String options, String key, double defaultValue)
+	{
+		String value = Macro.getValue( options, key, null );
+		if ( value == null ) return defaultValue;
+		try
+		{
+			return Double.parseDouble( value );
+		}
+		catch ( NumberFormatException e )
+		{
+			throw new IllegalArgumentException( "Invalid " + key + ": " + value );
+		}
+	}
+
+	static boolean bool(String options, String key, boolean defaultValue)
+	{
+		String value = Macro.getValue( options, key, null );
+		if ( value == null ) return defaultValue;
+		if ( value.equalsIgnoreCase( "true" ) ) return true;
+		if ( value.equalsIgnoreCase( "false" ) ) return false;
+		throw new IllegalArgumentException( "Invalid " + key + ": " + value );
+	}
+
+	private static void save(ImagePlus imp, String path) throws IOException
+	{
+		FileSaver saver = new FileSaver( imp );
+		boolean saved = imp.getStackSize() > 1 ? saver.saveAsTiffStack( path ) : saver.saveAsTiff( path );
+		if ( !saved ) throw new IOException( "Cannot write " + path );
+	}
+
+	/** path with a suffix before its extension */
+	private static String suffixed(String path, String suffix)
+	{
+		int dot = path.lastIndexOf( '.' );
+		if ( dot <= path.lastIndexOf( File.separatorChar ) ) return path + suffix;
+		return path.substring( 0, dot ) + suffix + path.substring( dot );
+	}
+
+	/** Copy of the standard output into the log file */
+	static private class Tee extends OutputStream
+	{
+		final private OutputStream a, b;
+
+		Tee(OutputStream a, OutputStream b)
+		{
+			this.a = a;
+			this.b = b;
+		}
+
+		public void write(int c) throws IOException
+		{
+			a.write( c );
+			b.write( c );
+		}
+
+		public void write(byte[] buf, int off, int len) throws IOException
+		{
+			a.write( buf, off, len );
+			b.write( buf, off, len );
+		}
+
+		public void flush() throws IOException
+		{
+			a.flush();
+			b.flush();
+		}
+	}
+}
@@ -0,0 +1,325 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+* Wall time, CPU time, allocated bytes and counters of the stages of a stitching run.
+*
+* A run opens its root stage with start; the code it calls opens nested stages with begin and counts
+* with count, both static: they apply to the stage open on the calling thread and do nothing without
+* one, so the stitching functions measure themselves without an instrumentation argument. Tasks handed
+* to worker threads are wrapped with propagate, so their stages nest in the stage that submitted them
+* and their CPU time and allocations are added to it.
+*
+* Every stage that finishes is sent to the listeners. The runs of a stage within the same parent stage
+* and iteration are summed, and reported with getStages, or written as JSON or CSV.
+* CPU time and allocations are read from the ThreadMXBean of the JVM, and are 0 where it cannot measure them.
+*/
+public class Instrumentation
+{
+	final static private ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	final static private boolean cpuTime = threads.isCurrentThreadCpuTimeSupported() && threads.isThreadCpuTimeEnabled();
+	final static private com.sun.management.ThreadMXBean allocations = allocationBean();
+
+	/** Innermost stage open on each thread */
+	final static private ThreadLocal< Probe > current = new ThreadLocal< Probe >();
+
+	final private List< StitchingListener > listeners = new CopyOnWriteArrayList< StitchingListener >();
+	final private Map< String, StageMetrics > stages = new LinkedHashMap< String, StageMetrics >();
+
+	/** An open stage, closed with stop */
+	public static final class Probe
+	{
+		final private Instrumentation instrumentation;
+		final private Probe parent;
+		final private String name;
+		final private int iteration;
+		final private long wall, cpu, bytes;
+		final private AtomicLong workerCpu = new AtomicLong(), workerBytes = new AtomicLong();
+		final private Map< String, Long > counters = new LinkedHashMap< String, Long >();
+
+		private Probe(Instrumentation instrumentation, Probe parent, String name, int iteration)
+		{
+			this.instrumentation = instrumentation;
+			this.parent = parent;
+			this.name = name;
+			this.iteration = iteration;
+			wall = System.nanoTime();
+			cpu = threadCpu();
+			bytes = threadBytes();
+		}
+
+		/**
+		@param counter name
+		@param count to add
+		*/
+		public void count(String counter, long n)
+		{
+			synchronized ( counters )
+			{
+				Long v = counters.get( counter );
+				counters.put( counter, ( v == null ? 0 : v ) + n );
+			}
+		}
+
+		/** Close the stage, its parent is the open stage of the thread again */
+		public void stop()
+		{
+			StageMetrics m;
+			synchronized ( counters )
+			{
+				m = new StageMetrics( name, parent == null ? "" : parent.name, iteration, 1, System.nanoTime() - wall,
+						threadCpu() - cpu + workerCpu.get(), threadBytes() - bytes + workerBytes.get(), counters );
+			}
+			/** The parent measures this thread itself, the workers of this stage are added to its workers */
+			if ( parent != null )
+			{
+				parent.workerCpu.addAndGet( workerCpu.get() );
+				parent.workerBytes.addAndGet( workerBytes.get() );
+			}
+			current.set( parent );
+			instrumentation.record( m );
+		}
+	}
+
+	/**
+	@param listener receiving every stage that finishes
+	*/
+	public void addListener(StitchingListener listener)
+	{
+		listeners.add( listener );
+	}
+
+	public void removeListener(StitchingListener listener)
+	{
+		listeners.remove( listener );
+	}
+
+	/**
+	Open a stage on the calling thread, nested in the stage open on it if there is one
+	@param stage name
+	@param registration iteration, 0 for the iteration of the enclosing stage
+	@return stage to stop
+	*/
+	public Probe start(String stage, int iteration)
+	{
+		Probe parent = current.get();
+		if ( iteration == 0 && parent != null ) iteration = parent.iteration;
+		Probe p = new Probe( this, parent, stage, iteration );
+		current.set( p );
+		return p;
+	}
+
+	/**
+	Open a stage nested in the stage open on the calling thread
+	@param stage name
+	@return stage to stop with end, null without an open stage
+	*/
+	public static Probe begin(String stage)
+	{
+		Probe parent = current.get();
+		if ( parent == null ) return null;
+		return parent.instrumentation.start( stage, 0 );
+	}
+
+	/**
+	@param stage returned by begin, null for none
+	*/
+	public static void end(Probe stage)
+	{
+		if ( stage != null ) stage.stop();
+	}
+
+	/**
+	Count in the stage open on the calling thread, nothing without one
+	@param counter name
+	@param count to add
+	*/
+	public static void count(String counter, long n)
+	{
+		Probe p = current.get();
+		if ( p != null ) p.count( counter, n );
+	}
+
+	/**
+	@param task to run on a worker thread
+	@return task running in the stage open on the calling thread, adding its CPU time and allocations to it
+	*/
+	public static < T > Callable< T > propagate(final Callable< T > task)
+	{
+		final Probe parent = current.get();
+		if ( parent == null ) return task;
+		return new Callable< T >()
+		{
+			public T call() throws Exception
+			{
+				Probe before = current.get();
+				current.set( parent );
+				long cpu = threadCpu(), bytes = threadBytes();
+				try
+				{
+					return task.call();
+				}
+				finally
+				{
+					if ( before != parent )
+					{
+						/** Not on the submitting thread, whose own measures already count */
+						parent.workerCpu.addAndGet( threadCpu() - cpu );
+						parent.workerBytes.addAndGet( threadBytes() - bytes );
+					}
+					current.set( before );
+				}
+			}
+		};
+	}
+
+	/** @return summed measures of every stage, in order of first finish */
+	public List< StageMetrics > getStages()
+	{
+		synchronized ( stages )
+		{
+			return new ArrayList< StageMetrics >( stages.values() );
+		}
+	}
+
+	public void clear()
+	{
+		synchronized ( stages )
+		{
+			stages.clear();
+		}
+	}
+
+	/**
+	Write the stages, as CSV if the file name ends with .csv, as JSON otherwise
+	@param file
+	*/
+	public void write(File file) throws IOException
+	{
+		PrintWriter out = new PrintWriter( new FileWriter( file ) );
+		try
+		{
+			if ( file.getName().toLowerCase().endsWith( ".csv" ) ) writeCsv( out );
+			else writeJson( out );
+		}
+		finally
+		{
+			out.close();
+		}
+		if ( out.checkError() ) throw new IOException( "Cannot write " + file );
+	}
+
+	/** One line per stage, one column per counter of any stage */
+	public void writeCsv(PrintWriter out)
+	{
+		List< StageMetrics > list = getStages();
+		Set< String > counters = new LinkedHashSet< String >();
+		for ( StageMetrics m : list )
+			counters.addAll( m.counters.keySet() );
+
+		StringBuilder header = new StringBuilder( "stage,parent,iteration,calls,wall_ms,cpu_ms,allocated_bytes" );
+		for ( String c : counters )
+			header.append( ',' ).append( quoted( c ) );
+		out.println( header );
+		for ( StageMetrics m : list )
+		{
+			StringBuilder line = new StringBuilder( quoted( m.name ) ).append( ',' ).append( quoted( m.parent ) ).append( ',' ).append( m.iteration )
+				.append( ',' ).append( m.calls ).append( ',' ).append( m.wallNanos / 1e6 ).append( ',' ).append( m.cpuNanos / 1e6 )
+				.append( ',' ).append( m.allocatedBytes );
+			for ( String c : counters )
+				line.append( ',' ).append( m.counters.containsKey( c ) ? String.valueOf( m.count( c ) ) : "" );
+			out.println( line );
+		}
+	}
+
+	/** Array of stage objects */
+	public void writeJson(PrintWriter out)
+	{
+		List< StageMetrics > list = getStages();
+		out.println( "[" );
+		for ( int i = 0; i < list.size(); ++i )
+		{
+			StageMetrics m = list.get( i );
+			StringBuilder s = new StringBuilder( "  {\"stage\": " ).append( json( m.name ) ).append( ", \"parent\": " ).append( json( m.parent ) )
+				.append( ", \"iteration\": " ).append( m.iteration ).append( ", \"calls\": " ).append( m.calls )
+				.append( ", \"wall_ms\": " ).append( m.wallNanos / 1e6 ).append( ", \"cpu_ms\": " ).append( m.cpuNanos / 1e6 )
+				.append( ", \"allocated_bytes\": " ).append( m.allocatedBytes ).append( ", \"counters\": {" );
+			int n = 0;
+			for ( Map.Entry< String, Long > e : m.counters.entrySet() )
+				s.append( n++ == 0 ? "" : ", " ).append( json( e.getKey() ) ).append( ": " ).append( e.getValue() );
+			s.append( "}}" ).append( i < list.size() - 1 ? "," : "" );
+			out.println( s );
+		}
+		out.println( "]" );
+	}
+
+	private void record(StageMetrics m)
+	{
+		String key = m.parent + "/" + m.name + "#" + m.iteration;
+		synchronized ( stages )
+		{
+			StageMetrics sum = stages.get( key );
+			stages.put( key, sum == null ? m : sum.add( m ) );
+		}
+		for ( StitchingListener l : listeners )
+			l.stageFinished( m );
+	}
+
+	private static long threadCpu()
+	{
+		return cpuTime ? threads.getCurrentThreadCpuTime() : 0;
+	}
+
+	private static long threadBytes()
+	{
+		return allocations == null ? 0 : allocations.getThreadAllocatedBytes( Thread.currentThread().getId() );
+	}
+
+	private static com.sun.management.ThreadMXBean allocationBean()
+	{
+		try
+		{
+			if ( threads instanceof com.sun.management.ThreadMXBean )
+			{
+				com.sun.management.ThreadMXBean bean = ( com.sun.management.ThreadMXBean ) threads;
+				if ( bean.isThreadAllocatedMemorySupported() && bean.isThreadAllocatedMemoryEnabled() ) return bean;
+			}
+		}
+		catch ( LinkageError e )
+		{
+			/** Not a HotSpot JVM */
+		}
+		return null;
+	}
+
+	private static String quoted(String value)
+	{
+		return value.indexOf( ',' ) < 0 && value.indexOf( '"' ) < 0 ? value : "\"" + value.replace( "\"", "\"\"" ) + "\"";
+	}
+
+	private static String json(String value)
+	{
+		return "\"" + value.replace( "\\", "\\\\" ).replace( "\"", "\\\"" ) + "\"";
+	}
+}
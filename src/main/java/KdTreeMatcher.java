@@ -0,0 +1,361 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.lang.ref.WeakReference;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+* Descriptor matching through kd-trees built on the second feature list.
+*
+* With one tree and no limit on the number of checks the search is exact: it returns the nearest and
+* next nearest descriptors that a linear scan would find, with the same distances, so the ratio test
+* gives the same answer. With several randomized trees (split dimension drawn among the ones of
+* highest variance) and a limit on the number of descriptors compared, the trees are searched together
+* best bin first and the search is approximate (randomized kd-forest).
+*
+* As in FloatArray2DSIFT.createMatches, descriptors outside the scale ratio window of the query are not
+* candidates, so the exact tree gives the matches of BruteForceMatcher and the recall of the forest
+* measures its approximation only.
+*
+* The index of the last list searched is kept, so the front features of an overlap sweep are indexed once.
+* Indexed lists must not be modified.
+*/
+public class KdTreeMatcher implements FeatureMatcher
+{
+	final static private int LEAF_SIZE = 8;
+	final static private int TOP_DIMENSIONS = 5;
+	final static private int VARIANCE_SAMPLES = 128;
+
+	final private int trees;
+	final private int maxChecks;
+	final private long seed;
+
+	private WeakReference< List< Feature > > indexedList = new WeakReference< List< Feature > >( null );
+	private Index index = null;
+
+	/** Exact kd-tree */
+	public KdTreeMatcher()
+	{
+		this( 1, 0, 0 );
+	}
+
+	/**
+	@param number of trees, more than one gives randomized trees
+	@param maximal number of descriptors compared per feature, 0 for an exact search
+	@param seed of the randomized trees
+	*/
+	public KdTreeMatcher(int trees, int maxChecks, long seed)
+	{
+		this.trees = Math.max( 1, trees );
+		this.maxChecks = Math.max( 0, maxChecks );
+		this.seed = seed;
+	}
+
+	public String getName()
+	{
+		if ( maxChecks == 0 && trees == 1 ) return "exact kd-tree";
+		return "kd-forest (" + trees + " trees, " + ( maxChecks == 0 ? "exact" : maxChecks + " checks" ) + ")";
+	}
+
+	public Vector< PointMatch > match(List< Feature > fs1, List< Feature > fs2, double rod)
+	{
+		Vector< PointMatch > matches = new Vector< PointMatch >();
+		if ( fs2.size() < 2 ) return matches;
+
+		Index ix = index( fs2 );
+		Search search = new Search( ix );
+		for ( Feature f1 : fs1 )
+		{
+			search.run( f1.descriptor, f1.scale );
+			if ( search.best >= 0 && search.secondD < Double.MAX_VALUE &&
+				Math.sqrt( search.bestD ) / Math.sqrt( search.secondD ) < rod )
+			{
+				Feature best = fs2.get( search.best );
+				matches.addElement(
+						new DescriptorMatch(
+								new Point( new double[]{ f1.location[ 0 ], f1.location[ 1 ] } ),
+								new Point( new double[]{ best.location[ 0 ], best.location[ 1 ] } ),
+								( f1.scale + best.scale ) / 2.0,
+								Math.sqrt( search.bestD ) ) );
+			}
+		}
+		return removeAmbiguous( matches );
+	}
+
+	/** Index of the list, reused when it is the last one indexed */
+	private synchronized Index index(List< Feature > fs)
+	{
+		if ( indexedList.get() == fs && index != null && index.desc.length == fs.size() )
+			return index;
+
+		index = new Index( fs, trees, maxChecks > 0 || trees > 1, new Random( seed ) );
+		indexedList = new WeakReference< List< Feature > >( fs );
+		return index;
+	}
+
+	/** Drop every match whose P2 location is shared with another match, as createMatches does */
+	static Vector< PointMatch > removeAmbiguous(Vector< PointMatch > matches)
+	{
+		Map< String, Integer > count = new HashMap< String, Integer >();
+		for ( PointMatch m : matches )
+		{
+			String k = key( m );
+			Integer c = count.get( k );
+			count.put( k, c == null ? 1 : c + 1 );
+		}
+
+		Vector< PointMatch > unique = new Vector< PointMatch >();
+		for ( PointMatch m : matches )
+			if ( count.get( key( m ) ) == 1 ) unique.addElement( m );
+		return unique;
+	}
+
+	private static String key(PointMatch m)
+	{
+		double[] p2 = m.getP2().getL();
+		return p2[ 0 ] + "," + p2[ 1 ];
+	}
+
+	/** Squared descriptor distance, computed as Feature.descriptorDistance, given up once it exceeds limit */
+	private static double distance(float[] a, float[] b, double limit)
+	{
+		double d = 0;
+		for ( int i = 0; i < a.length; ++i )
+		{
+			final double x = a[ i ] - b[ i ];
+			d += x * x;
+			if ( d > limit ) return d;
+		}
+		return d;
+	}
+
+	static private class Node
+	{
+		int dim = -1;
+		float split;
+		Node left, right;
+		int start, end; // leaves, range of the permutation
+	}
+
+	static private class Index
+	{
+		final float[][] desc;
+		final double[] scales;
+		final int[][] perm;
+		final Node[] roots;
+
+		Index(List< Feature > fs, int trees, boolean randomized, Random rnd)
+		{
+			desc = new float[ fs.size() ][];
+			scales = new double[ desc.length ];
+			for ( int i = 0; i < desc.length; ++i )
+			{
+				Feature f = fs.get( i );
+				desc[ i ] = f.descriptor;
+				scales[ i ] = f.scale;
+			}
+
+			perm = new int[ trees ][];
+			roots = new Node[ trees ];
+			for ( int t = 0; t < trees; ++t )
+			{
+				perm[ t ] = new int[ desc.length ];
+				for ( int i = 0; i < desc.length; ++i )
+					perm[ t ][ i ] = i;
+				roots[ t ] = build( perm[ t ], 0, desc.length, randomized, rnd );
+			}
+		}
+
+		private Node build(int[] p, int start, int end, boolean randomized, Random rnd)
+		{
+			Node node = new Node();
+			node.start = start;
+			node.end = end;
+			int n = end - start;
+			if ( n <= LEAF_SIZE ) return node;
+
+			/** Mean and variance of each dimension over a sample of the range */
+			int dims = desc[ p[ start ] ].length;
+			int stride = Math.max( 1, n / VARIANCE_SAMPLES );
+			double[] mean = new double[ dims ];
+			double[] var = new double[ dims ];
+			int m = 0;
+			for ( int i = start; i < end; i += stride, ++m )
+				for ( int k = 0; k < dims; ++k )
+					mean[ k ] += desc[ p[ i ] ][ k ];
+			for ( int k = 0; k < dims; ++k )
+				mean[ k ] /= m;
+			for ( int i = start; i < end; i += stride )
+				for ( int k = 0; k < dims; ++k )
+				{
+					double x = desc[ p[ i ] ][ k ] - mean[ k ];
+					var[ k ] += x * x;
+				}
+
+			int dim = randomized ? topDimension( var, rnd ) : argmax( var );
+			float split = ( float ) mean[ dim ];
+
+			/** Partition, left below the split value, right at or above it */
+			int i = start;
+			int j = end - 1;
+			while ( i <= j )
+			{
+				if ( desc[ p[ i ] ][ dim ] < split ) ++i;
+				else
+				{
+					int tmp = p[ i ]; p[ i ] = p[ j ]; p[ j ] = tmp;
+					--j;
+				}
+			}
+			if ( i == start || i == end ) return node; // no spread in the sampled dimension
+
+			node.dim = dim;
+			node.split = split;
+			node.left = build( p, start, i, randomized, rnd );
+			node.right = build( p, i, end, randomized, rnd );
+			return node;
+		}
+
+		private static int argmax(double[] v)
+		{
+			int best = 0;
+			for ( int k = 1; k < v.length; ++k )
+				if ( v[ k ] > v[ best ] ) best = k;
+			return best;
+		}
+
+		/** One of the TOP_DIMENSIONS dimensions of highest variance, drawn at random */
+		private static int topDimension(double[] v, Random rnd)
+		{
+			int top = Math.min( TOP_DIMENSIONS, v.length );
+			int[] best = new int[ top ];
+			boolean[] used = new boolean[ v.length ];
+			for ( int t = 0; t < top; ++t )
+			{
+				int b = -1;
+				for ( int k = 0; k < v.length; ++k )
+					if ( !used[ k ] && ( b < 0 || v[ k ] > v[ b ] ) ) b = k;
+				used[ b ] = true;
+				best[ t ] = b;
+			}
+			return best[ rnd.nextInt( top ) ];
+		}
+	}
+
+	/** Unvisited side of a split, with a lower bound of its squared distance to the query */
+	static private class Branch implements Comparable< Branch >
+	{
+		final Node node;
+		final double bound;
+		final int tree;
+
+		Branch(Node node, double bound, int tree)
+		{
+			this.node = node;
+			this.bound = bound;
+			this.tree = tree;
+		}
+
+		public int compareTo(Branch o)
+		{
+			return Double.compare( bound, o.bound );
+		}
+	}
+
+	/** Best bin first search of the two nearest descriptors, one per thread and per call */
+	private class Search
+	{
+		final Index ix;
+		final int[] visited;
+		final PriorityQueue< Branch > queue = new PriorityQueue< Branch >();
+		int stamp = 0;
+		int checks;
+		float[] q;
+		double scale;
+		int best;
+		double bestD, secondD;
+
+		Search(Index ix)
+		{
+			this.ix = ix;
+			this.visited = new int[ ix.desc.length ];
+		}
+
+		/**
+		@param descriptor of the query
+		@param scale of the query, descriptors outside its scale ratio window are skipped
+		*/
+		void run(float[] query, double scale)
+		{
+			q = query;
+			this.scale = scale;
+			++stamp;
+			checks = 0;
+			best = -1;
+			bestD = secondD = Double.MAX_VALUE;
+			queue.clear();
+
+			for ( int t = 0; t < ix.roots.length; ++t )
+				descend( t, ix.roots[ t ], 0 );
+
+			while ( !queue.isEmpty() )
+			{
+				Branch b = queue.poll();
+				if ( b.bound >= secondD ) break;
+				if ( maxChecks > 0 && checks >= maxChecks ) break;
+				descend( b.tree, b.node, b.bound );
+			}
+		}
+
+		/** Go down to the leaf of the query, queueing the other sides with a lower bound of their distance */
+		private void descend(int tree, Node node, double bound)
+		{
+			while ( node.dim >= 0 )
+			{
+				double diff = q[ node.dim ] - node.split;
+				Node near = diff < 0 ? node.left : node.right;
+				Node far = diff < 0 ? node.right : node.left;
+				double farBound = Math.max( bound, diff * diff );
+				if ( farBound < secondD )
+					queue.add( new Branch( far, farBound, tree ) );
+				node = near;
+			}
+
+			int[] p = ix.perm[ tree ];
+			for ( int i = node.start; i < node.end; ++i )
+			{
+				int k = p[ i ];
+				if ( visited[ k ] == stamp ) continue;
+				visited[ k ] = stamp;
+				if ( !BruteForceMatcher.inScaleWindow( scale, ix.scales[ k ] ) ) continue;
+				++checks;
+
+				double d = distance( q, ix.desc[ k ], secondD );
+				if ( d < bestD )
+				{
+					secondD = bestD;
+					bestD = d;
+					best = k;
+				}
+				else if ( d < secondD )
+				{
+					secondD = d;
+				}
+			}
+		}
+	}
+}
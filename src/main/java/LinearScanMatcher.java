@@ -0,0 +1,148 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.Point;
+import mpicbg.models.PointMatch;
+
+/**
+* Exhaustive descriptor matching on FeatureStore arrays: every feature of the first list is compared
+* with the descriptors of the second one within the scale ratio window, stored contiguously, and each
+* distance is given up once it exceeds the next closest distance found so far. Candidates, distances,
+* ratio test and ambiguous matches are those of FloatArray2DSIFT.createMatches (BruteForceMatcher),
+* so float descriptors give its matches exactly.
+*
+* Float descriptors are compared by a DescriptorKernel, by default the Vector API one when it was
+* compiled in (vector profile) and the JVM provides jdk.incubator.vector, the scalar one otherwise;
+* both give the same matches. 8-bit descriptors are compared in integers by FeatureStore.
+*
+* Lists that are not stores are copied into one first, as float descriptors, or as 8-bit ones when
+* the other list is a quantized store. Stateless, so thread safe.
+*/
+public class LinearScanMatcher implements FeatureMatcher
+{
+	final static private String VECTOR_KERNEL = "VectorDescriptorKernel";
+	static private DescriptorKernel fastest = null;
+
+	final private DescriptorKernel kernel;
+
+	/** Matcher with the fastest kernel available */
+	public LinearScanMatcher()
+	{
+		this( fastestKernel() );
+	}
+
+	/**
+	@param kernel of float descriptors
+	*/
+	public LinearScanMatcher(DescriptorKernel kernel)
+	{
+		this.kernel = kernel;
+	}
+
+	/**
+	The Vector API kernel is looked up by name, it is compiled with the vector profile only, and loading
+	it fails without the jdk.incubator.vector module
+	@return Vector API kernel when it can run, scalar kernel otherwise
+	*/
+	public static synchronized DescriptorKernel fastestKernel()
+	{
+		if ( fastest == null )
+		{
+			try
+			{
+				fastest = ( DescriptorKernel ) Class.forName( VECTOR_KERNEL ).getDeclaredConstructor().newInstance();
+			}
+			catch ( ClassNotFoundException e )
+			{
+				fastest = new ScalarDescriptorKernel();
+			}
+			catch ( Exception e )
+			{
+				IJ.log( "(Warning) Vector API descriptor matching unavailable (" + e + "), using the scalar kernel" );
+				fastest = new ScalarDescriptorKernel();
+			}
+			catch ( LinkageError e )
+			{
+				IJ.log( "(Warning) Vector API descriptor matching needs --add-modules jdk.incubator.vector, using the scalar kernel" );
+				fastest = new ScalarDescriptorKernel();
+			}
+		}
+		return fastest;
+	}
+
+	public Vector< PointMatch > match(List< Feature > fs1, List< Feature > fs2, double rod)
+	{
+		Vector< PointMatch > matches = new Vector< PointMatch >();
+		if ( fs1.isEmpty() || fs2.size() < 2 ) return matches;
+
+		boolean quantized = isQuantized( fs1 ) || isQuantized( fs2 );
+		FeatureStore s1 = FeatureStore.of( fs1, quantized );
+		FeatureStore s2 = FeatureStore.of( fs2, quantized );
+		int dims = s1.getDimensions();
+		if ( s2.getDimensions() != dims )
+			throw new IllegalArgumentException( "Descriptors of " + dims + " and " + s2.getDimensions() + " components" );
+
+		int n2 = s2.size();
+		DescriptorKernel.Nearest nearest = new DescriptorKernel.Nearest();
+		for ( int i = 0; i < s1.size(); ++i )
+		{
+			if ( quantized ) nearest( s1, i, s2, nearest );
+			else kernel.nearest( s1.getDescriptors(), i * dims, s1.getScale( i ), s2.getDescriptors(), s2.getScales(), n2, dims, nearest );
+			int best = nearest.best;
+			double bestD = nearest.bestD, secondD = nearest.secondD;
+
+			if ( best >= 0 && secondD < Double.MAX_VALUE && Math.sqrt( bestD ) / Math.sqrt( secondD ) < rod )
+				matches.addElement(
+						new DescriptorMatch(
+								new Point( new double[]{ s1.getX( i ), s1.getY( i ) } ),
+								new Point( new double[]{ s2.getX( best ), s2.getY( best ) } ),
+								( s1.getScale( i ) + s2.getScale( best ) ) / 2.0,
+								Math.sqrt( bestD ) ) );
+		}
+		return KdTreeMatcher.removeAmbiguous( matches );
+	}
+
+	/** Nearest and next nearest 8-bit descriptors of s2 to feature i of s1 */
+	private static void nearest(FeatureStore s1, int i, FeatureStore s2, DescriptorKernel.Nearest result)
+	{
+		result.best = -1;
+		result.bestD = result.secondD = Double.MAX_VALUE;
+		double scale = s1.getScale( i );
+		for ( int j = 0; j < s2.size(); ++j )
+		{
+			if ( !BruteForceMatcher.inScaleWindow( scale, s2.getScale( j ) ) ) continue;
+			double d = s1.squaredDistance( i, s2, j, result.secondD );
+			if ( d < result.bestD )
+			{
+				result.secondD = result.bestD;
+				result.bestD = d;
+				result.best = j;
+			}
+			else if ( d < result.secondD )
+			{
+				result.secondD = d;
+			}
+		}
+	}
+
+	private static boolean isQuantized(List< Feature > fs)
+	{
+		return fs instanceof FeatureStore && ( ( FeatureStore ) fs ).isQuantized();
+	}
+
+	public String getName()
+	{
+		return "linear scan (" + kernel.getName() + ")";
+	}
+}
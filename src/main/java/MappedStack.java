@@ -0,0 +1,332 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImagePlus;
+import ij.VirtualStack;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+* Read only stack backed by a memory-mapped uncompressed TIFF or raw file. Slices are read from the
+* mapping when they are asked for and nothing is kept on the heap, the operating system pages the
+* file in and out, so stacks larger than the heap can be searched slice by slice.
+*
+* The file is mapped in segments of at most 1 GB, each extended by one slice so that every slice lies
+* in the segment of its first byte. 8-bit, 16-bit, 32-bit float and 24-bit RGB files are supported,
+* signed 16-bit values are shifted as ImageJ does. Slices can be read from several threads.
+*/
+public class MappedStack extends VirtualStack
+{
+	final static private long SEGMENT = 1L << 30;
+
+	final private FileChannel channel;
+	final private String path;
+	final private int width, height, fileType, bytesPerPixel;
+	final private long[] offsets;
+	final private ByteOrder order;
+	final private MappedByteBuffer[] segments;
+
+	/**
+	@param file
+	@param slice width
+	@param slice height
+	@param FileInfo type: GRAY8, GRAY16_UNSIGNED, GRAY16_SIGNED, GRAY32_FLOAT or RGB
+	@param byte offset of every slice in the file
+	@param true for little endian values
+	*/
+	public MappedStack(File file, int width, int height, int fileType, long[] offsets, boolean intelByteOrder) throws IOException
+	{
+		super( width, height, null, null );
+		this.path = file.getPath();
+		this.width = width;
+		this.height = height;
+		this.fileType = fileType;
+		this.bytesPerPixel = bytesPerPixel( fileType );
+		this.offsets = offsets.clone();
+		this.order = intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+
+		if ( sliceBytes() > Integer.MAX_VALUE - SEGMENT )
+			throw new IOException( "Slices of " + file + " are too large to be mapped" );
+
+		this.channel = new RandomAccessFile( file, "r" ).getChannel();
+		long size = channel.size();
+		long last = 0;
+		for ( long o : offsets )
+		{
+			if ( o < 0 || o + sliceBytes() > size )
+			{
+				channel.close();
+				throw new IOException( file + " is shorter than its slices" );
+			}
+			last = Math.max( last, o );
+		}
+		this.segments = new MappedByteBuffer[ ( int ) ( last / SEGMENT ) + 1 ];
+	}
+
+	/**
+	Memory-mapped view of an uncompressed TIFF file
+	@param path
+	@return image with the calibration of the file
+	*/
+	public static ImagePlus openTiff(String path) throws IOException
+	{
+		File file = new File( path );
+		String dir = file.getAbsoluteFile().getParent() + File.separator;
+		FileInfo[] info = new TiffDecoder( dir, file.getName() ).getTiffInfo();
+		if ( info == null || info.length == 0 )
+			throw new IOException( "Cannot read the TIFF header of " + path );
+
+		FileInfo fi = info[ 0 ];
+		long[] offsets;
+		if ( info.length == 1 && fi.nImages > 1 )
+		{
+			/** ImageJ stack, contiguous slices */
+			offsets = new long[ fi.nImages ];
+			long size = ( long ) fi.width * fi.height * bytesPerPixel( fi.fileType );
+			for ( int i = 0; i < offsets.length; ++i )
+				offsets[ i ] = fi.getOffset() + i * ( size + fi.gapBetweenImages );
+		}
+		else
+		{
+			offsets = new long[ info.length ];
+			for ( int i = 0; i < info.length; ++i )
+			{
+				if ( info[ i ].width != fi.width || info[ i ].height != fi.height || info[ i ].fileType != fi.fileType )
+					throw new IOException( path + ": pages of different size or type" );
+				if ( !contiguous( info[ i ] ) )
+					throw new IOException( path + ": compressed or scattered strips cannot be mapped" );
+				offsets[ i ] = info[ i ].getOffset();
+			}
+		}
+		if ( fi.compression > FileInfo.COMPRESSION_NONE )
+			throw new IOException( path + ": compressed TIFF files cannot be mapped" );
+
+		MappedStack stack = new MappedStack( file, fi.width, fi.height, fi.fileType, offsets, fi.intelByteOrder );
+		ImagePlus imp = new ImagePlus( file.getName(), stack );
+		Calibration c = new Calibration();
+		c.pixelWidth = fi.pixelWidth;
+		c.pixelHeight = fi.pixelHeight;
+		c.pixelDepth = fi.pixelDepth;
+		if ( fi.unit != null ) c.setUnit( fi.unit );
+		imp.setCalibration( c );
+
+		/** Hyperstack dimensions written by ImageJ */
+		int channels = dimension( fi.description, "channels" );
+		if ( channels > 1 )
+		{
+			imp.setDimensions( channels, dimension( fi.description, "slices" ), dimension( fi.description, "frames" ) );
+			imp.setOpenAsHyperStack( true );
+		}
+		return imp;
+	}
+
+	/**
+	Memory-mapped view of a raw file of contiguous slices
+	@param path
+	@param slice width
+	@param slice height
+	@param number of slices
+	@param FileInfo type
+	@param byte offset of the first slice
+	@param true for little endian values
+	@return image, uncalibrated
+	*/
+	public static ImagePlus openRaw(String path, int width, int height, int depth, int fileType, long offset, boolean intelByteOrder) throws IOException
+	{
+		long size = ( long ) width * height * bytesPerPixel( fileType );
+		long[] offsets = new long[ depth ];
+		for ( int i = 0; i < depth; ++i )
+			offsets[ i ] = offset + i * size;
+		File file = new File( path );
+		return new ImagePlus( file.getName(), new MappedStack( file, width, height, fileType, offsets, intelByteOrder ) );
+	}
+
+	/** @return value of key=value in the ImageJ description of a TIFF file, 1 if it is not there */
+	private static int dimension(String description, String key)
+	{
+		if ( description == null ) return 1;
+		for ( String line : description.split( "\n" ) )
+		{
+			if ( !line.startsWith( key + "=" ) ) continue;
+			try
+			{
+				return Integer.parseInt( line.substring( key.length() + 1 ).trim() );
+			}
+			catch ( NumberFormatException e )
+			{
+				return 1;
+			}
+		}
+		return 1;
+	}
+
+	private static int bytesPerPixel(int fileType) throws IOException
+	{
+		switch ( fileType )
+		{
+			case FileInfo.GRAY8: return 1;
+			case FileInfo.GRAY16_SIGNED:
+			case FileInfo.GRAY16_UNSIGNED: return 2;
+			case FileInfo.GRAY32_FLOAT: return 4;
+			case FileInfo.RGB: return 3;
+			default: throw new IOException( "Unsupported file type for mapping: " + fileType );
+		}
+	}
+
+	/** True if the strips of the page follow each other */
+	private static boolean contiguous(FileInfo fi)
+	{
+		if ( fi.compression > FileInfo.COMPRESSION_NONE ) return false;
+		if ( fi.stripOffsets == null || fi.stripOffsets.length <= 1 ) return true;
+		for ( int i = 1; i < fi.stripOffsets.length; ++i )
+			if ( fi.stripOffsets[ i ] != fi.stripOffsets[ i - 1 ] + fi.stripLengths[ i - 1 ] ) return false;
+		return true;
+	}
+
+	private long sliceBytes()
+	{
+		return ( long ) width * height * bytesPerPixel;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	public int getSize() { return offsets.length; }
+
+	public String getSliceLabel(int n) { return null; }
+
+	public int getBitDepth() { return fileType == FileInfo.GRAY8 ? 8 : fileType == FileInfo.GRAY32_FLOAT ? 32 : fileType == FileInfo.RGB ? 24 : 16; }
+
+	/** Mapped files are read only */
+	public void setPixels(Object pixels, int n) { }
+
+	public void addSlice(String name) { }
+
+	public void deleteSlice(int n) { }
+
+	/** @return path of the mapped file */
+	public String getPath() { return path; }
+
+	/** Close the file, slices that were not read yet can no longer be */
+	public void close() throws IOException
+	{
+		channel.close();
+	}
+
+	public ImageProcessor getProcessor(int n)
+	{
+		Object pixels = getPixels( n );
+		if ( pixels instanceof byte[] ) return new ByteProcessor( width, height, (byte[]) pixels, null );
+		if ( pixels instanceof short[] ) return new ShortProcessor( width, height, (short[]) pixels, null );
+		if ( pixels instanceof float[] ) return new FloatProcessor( width, height, (float[]) pixels, null );
+		return new ColorProcessor( width, height, (int[]) pixels );
+	}
+
+	/**
+	@param slice index (1-based)
+	@return new pixel array of the slice
+	*/
+	public Object getPixels(int n)
+	{
+		if ( n < 1 || n > offsets.length )
+			throw new IllegalArgumentException( "Slice out of range: " + n );
+
+		ByteBuffer b = slice( offsets[ n - 1 ] );
+		int size = width * height;
+		switch ( fileType )
+		{
+			case FileInfo.GRAY8:
+			{
+				byte[] pixels = new byte[ size ];
+				b.get( pixels );
+				return pixels;
+			}
+			case FileInfo.GRAY16_UNSIGNED:
+			case FileInfo.GRAY16_SIGNED:
+			{
+				short[] pixels = new short[ size ];
+				b.asShortBuffer().get( pixels );
+				if ( fileType == FileInfo.GRAY16_SIGNED )
+					for ( int i = 0; i < size; ++i )
+						pixels[ i ] = ( short ) ( pixels[ i ] + 32768 );
+				return pixels;
+			}
+			case FileInfo.GRAY32_FLOAT:
+			{
+				float[] pixels = new float[ size ];
+				b.asFloatBuffer().get( pixels );
+				return pixels;
+			}
+			default:
+			{
+				byte[] rgb = new byte[ 3 * size ];
+				b.get( rgb );
+				int[] pixels = new int[ size ];
+				for ( int i = 0, j = 0; i < size; ++i, j += 3 )
+					pixels[ i ] = 0xff000000 | ( ( rgb[ j ] & 0xff ) << 16 ) | ( ( rgb[ j + 1 ] & 0xff ) << 8 ) | ( rgb[ j + 2 ] & 0xff );
+				return pixels;
+			}
+		}
+	}
+
+	/** Buffer positioned at the slice, private to the caller */
+	private ByteBuffer slice(long offset)
+	{
+		int s = ( int ) ( offset / SEGMENT );
+		MappedByteBuffer segment;
+		synchronized ( segments )
+		{
+			segment = segments[ s ];
+			if ( segment == null )
+			{
+				long start = s * SEGMENT;
+				long length = Math.min( SEGMENT + sliceBytes(), size() - start );
+				try
+				{
+					segment = channel.map( FileChannel.MapMode.READ_ONLY, start, length );
+				}
+				catch ( IOException e )
+				{
+					throw new RuntimeException( "Cannot map " + path + ": " + e.getMessage(), e );
+				}
+				segments[ s ] = segment;
+			}
+		}
+		ByteBuffer b = segment.duplicate();
+		b.order( order );
+		b.position( ( int ) ( offset - s * SEGMENT ) );
+		return b;
+	}
+
+	private long size()
+	{
+		try
+		{
+			return channel.size();
+		}
+		catch ( IOException e )
+		{
+			throw new RuntimeException( e );
+		}
+	}
+}
@@ -0,0 +1,45 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.List;
+import java.util.Vector;
+
+import mpicbg.imagefeatures.Feature;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.PointMatch;
+
+/**
+* Outcome of one front/back comparison: the extracted features, the candidate correspondences,
+* the RANSAC inliers and the fitted model. Each call builds its own result, nothing is shared
+* between comparisons.
+*/
+public final class MatchResult
+{
+	public final List< Feature > frontFeatures;
+	public final List< Feature > backFeatures;
+	public final Vector< PointMatch > candidates;
+	public final Vector< PointMatch > inliers;
+	public final AbstractAffineModel2D< ? > model;
+	public final boolean modelFound;
+
+	public MatchResult(List< Feature > frontFeatures, List< Feature > backFeatures, Vector< PointMatch > candidates, Vector< PointMatch > inliers, AbstractAffineModel2D< ? > model, boolean modelFound)
+	{
+		this.frontFeatures = frontFeatures;
+		this.backFeatures = backFeatures;
+		this.candidates = candidates;
+		this.inliers = inliers;
+		this.model = model;
+		this.modelFound = modelFound;
+	}
+
+	/** @return number of inliers, 0 if no model was found */
+	public int getInlierCount()
+	{
+		return modelFound ? inliers.size() : 0;
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import mpicbg.ij.SIFT;
+import mpicbg.imagefeatures.Feature;
+import mpicbg.imagefeatures.FloatArray2DSIFT;
+import mpicbg.models.AbstractAffineModel2D;
+import mpicbg.models.AffineModel2D;
+import mpicbg.models.RigidModel2D;
+import mpicbg.models.SimilarityModel2D;
+import mpicbg.models.TranslationModel2D;
+
+/**
+* Immutable set of SIFT and matching parameters shared by every comparison of a stitching job.
+* It can be handed to several threads or several jobs at once: the SIFT parameters are copied
+* on the way in and on the way out.
+*/
+public final class MatchingParameters
+{
+	/** SIFT parameters, private copy */
+	private final FloatArray2DSIFT.Param sift;
+	private final String siftKey;
+
+	/** Closest/next closest neighbor distance ratio */
+	public final float rod;
+
+	/** Maximal allowed alignment error in px */
+	public final float maxEpsilon;
+
+	/** Inlier/candidates ratio */
+	public final float minInlierRatio;
+
+	/** 0: Translation, 1: Rigid, 2: Similarity, 3: Affine */
+	public final int modelIndex;
+
+	/** Maximal number of RANSAC iterations */
+	public final int ransacIterations;
+
+	/** Probability that RANSAC drew an outlier free sample before it stops */
+	public final double ransacConfidence;
+
+	/** Draw RANSAC samples among the most distinctive candidates first */
+	public final boolean prosac;
+
+	/** Descriptor matching backend */
+	public final FeatureMatcher matcher;
+
+	/** Also run brute force matching and log the recall of the matcher */
+	public final boolean reportRecall;
+
+	/** Feature lists, 0: Feature objects, 1: FeatureStore of float descriptors, 2: FeatureStore of 8-bit descriptors */
+	public final int featureStorage;
+
+	public MatchingParameters(FloatArray2DSIFT.Param sift, float rod, float maxEpsilon, float minInlierRatio, int modelIndex, int ransacIterations)
+	{
+		this( sift, rod, maxEpsilon, minInlierRatio, modelIndex, ransacIterations, 0.99, true, new BruteForceMatcher(), false );
+	}
+
+	public MatchingParameters(FloatArray2DSIFT.Param sift, float rod, float maxEpsilon, float minInlierRatio, int modelIndex,
+			int ransacIterations, double ransacConfidence, boolean prosac, FeatureMatcher matcher, boolean reportRecall)
+	{
+		this( sift, rod, maxEpsilon, minInlierRatio, modelIndex, ransacIterations, ransacConfidence, prosac, matcher, reportRecall, 0 );
+	}
+
+	public MatchingParameters(FloatArray2DSIFT.Param sift, float rod, float maxEpsilon, float minInlierRatio, int modelIndex,
+			int ransacIterations, double ransacConfidence, boolean prosac, FeatureMatcher matcher, boolean reportRecall, int featureStorage)
+	{
+		this.sift = sift.clone();
+		this.siftKey = sift.initialSigma + "/" + sift.steps + "/" + sift.minOctaveSize + "/" + sift.maxOctaveSize + "/" + sift.fdSize + "/" + sift.fdBins;
+		this.rod = rod;
+		this.maxEpsilon = maxEpsilon;
+		this.minInlierRatio = minInlierRatio;
+		this.modelIndex = modelIndex;
+		this.ransacIterations = ransacIterations;
+		this.ransacConfidence = ransacConfidence;
+		this.prosac = prosac;
+		this.matcher = matcher;
+		this.reportRecall = reportRecall;
+		this.featureStorage = featureStorage;
+	}
+
+	/** @return a copy of the SIFT parameters */
+	public FloatArray2DSIFT.Param getSIFTParam()
+	{
+		return sift.clone();
+	}
+
+	/** @return string identifying the SIFT parameters, two extractions with equal keys give the same features */
+	public String getSIFTKey()
+	{
+		return siftKey;
+	}
+
+	/** @return empty feature list of the configured storage, for SIFT to extract into */
+	public List< Feature > newFeatureList()
+	{
+		if ( featureStorage == 0 ) return new ArrayList< Feature >();
+		return new FeatureStore( featureStorage == 2 );
+	}
+
+	/**
+	New SIFT object. FloatArray2DSIFT keeps per-image state, so every thread needs its own.
+	@return SIFT object with these parameters
+	*/
+	public SIFT createSIFT()
+	{
+		return new SIFT( new FloatArray2DSIFT( sift.clone() ) );
+	}
+
+	/**
+	SIFT object of the calling thread, kept from one call to the next while the SIFT parameters are the
+	same, so long-lived worker threads (batch jobs) reuse their FloatArray2DSIFT and its buffers.
+	It must not be handed to another thread.
+	@return SIFT object with these parameters
+	*/
+	public SIFT workerSIFT()
+	{
+		WorkerSIFT w = workerSIFT.get();
+		if ( w == null || !w.key.equals( siftKey ) )
+		{
+			w = new WorkerSIFT( siftKey, createSIFT() );
+			workerSIFT.set( w );
+		}
+		return w.sift;
+	}
+
+	final static private ThreadLocal< WorkerSIFT > workerSIFT = new ThreadLocal< WorkerSIFT >();
+
+	static private class WorkerSIFT
+	{
+		final String key;
+		final SIFT sift;
+
+		WorkerSIFT(String key, SIFT sift)
+		{
+			this.key = key;
+			this.sift = sift;
+		}
+	}
+
+	/**
+	New RANSAC estimator, seeded identically for every comparison so scores are reproducible
+	@return estimator with these parameters
+	*/
+	public AdaptiveRansac createRansac()
+	{
+		return new AdaptiveRansac( ransacIterations, ransacConfidence, prosac, 0 );
+	}
+
+	/** @return a new, unfitted 2D model of the configured type */
+	public AbstractAffineModel2D< ? > createModel()
+	{
+		switch ( modelIndex )
+		{
+			case 0: return new TranslationModel2D();
+			case 1: return new RigidModel2D();
+			case 2: return new SimilarityModel2D();
+			case 3: return new AffineModel2D();
+			default: return new RigidModel2D();
+		}
+	}
+}
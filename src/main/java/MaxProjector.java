@@ -0,0 +1,202 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.process.ImageProcessor;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+* Maximum intensity projections computed directly on the slice pixel arrays of 8-bit, 16-bit,
+* 32-bit and RGB stacks, without temporary ImagePlus or the WindowManager, so it also runs headless.
+*
+* Blocks of a partial MIP are projected in parallel. For a stack that does not change between calls,
+* like the front stack, the block MIPs of the last call are kept, one slice per block, and the blocks
+* of the next call that start at the same slice with the same size are copied instead of projected
+* again: the registration steps of one iteration compare the same overlap. The blocks are read once
+* each, so projecting costs one max operation per voxel, and clear drops them once the search is done.
+*/
+public class MaxProjector
+{
+	final private int numThreads;
+
+	/** Block MIPs of the last call with reuse, by first slice of the block */
+	private WeakReference< ImageStack > cachedSource = new WeakReference< ImageStack >( null );
+	private int cachedStep = 0;
+	private Map< Integer, Object > cachedBlocks = new HashMap< Integer, Object >();
+
+	/**
+	@param number of threads used to project the blocks
+	*/
+	public MaxProjector(int numThreads)
+	{
+		this.numThreads = Math.max( 1, numThreads );
+	}
+
+	/**
+	Compute the partial MIP stack, the last block also takes the remaining slices
+	@param stack
+	@param MIP size
+	@return MIP stack of size/step slices
+	*/
+	public ImageStack createMIP(ImageStack stack, int step)
+	{
+		return createMIP( stack, 1, stack.getSize(), step, false );
+	}
+
+	/**
+	Compute the partial MIP stack of a range of slices, the last block also takes the remaining slices
+	@param stack
+	@param first slice of the range (1-based)
+	@param last slice of the range
+	@param MIP size
+	@param reuse true if the stack does not change between calls, the blocks of the previous call are then reused
+	@return MIP stack of (last - first + 1)/step slices, owned by the caller
+	*/
+	public ImageStack createMIP(final ImageStack stack, final int first, int last, final int step, final boolean reuse)
+	{
+		final int Zmax = ( last - first + 1 ) / step;
+		final int extra = ( last - first + 1 ) - Zmax * step;
+		ImageStack myMIP = new ImageStack( stack.getWidth(), stack.getHeight() );
+		if ( Zmax == 0 ) return myMIP;
+
+		Instrumentation.Probe stage = Instrumentation.begin( "MIP creation" );
+
+		final Map< Integer, Object > cached;
+		synchronized ( this )
+		{
+			cached = reuse && cachedSource.get() == stack && cachedStep == step ? cachedBlocks : new HashMap< Integer, Object >();
+		}
+		/** Projection of each block without the extra slices, private to the cache */
+		final Object[] blocks = new Object[ Zmax ];
+
+		List< Callable< Object > > tasks = new ArrayList< Callable< Object > >();
+		for ( int j = 0; j < Zmax; ++j )
+		{
+			final int block = j;
+			tasks.add( new Callable< Object >()
+			{
+				public Object call()
+				{
+					int b0 = first + block * step;
+					int b1 = b0 + step - 1;
+					if ( !reuse )
+						return project( stack, b0, block == Zmax - 1 ? b1 + extra : b1 ).getPixels();
+
+					Object pixels = cached.get( b0 );
+					if ( pixels == null ) pixels = project( stack, b0, b1 ).getPixels();
+					blocks[ block ] = pixels;
+					pixels = copy( pixels );
+					if ( block == Zmax - 1 && extra != 0 ) maxInto( pixels, stack, b1 + 1, b1 + extra );
+					return pixels;
+				}
+			} );
+		}
+
+		List< Object > pixels = ParallelTasks.run( tasks, numThreads );
+		for ( int j = 0; j < Zmax; ++j )
+		{
+			myMIP.addSlice( null, pixels.get( j ) );
+		}
+
+		if ( reuse )
+		{
+			/** Only the blocks of this call are kept */
+			Map< Integer, Object > kept = new HashMap< Integer, Object >();
+			for ( int j = 0; j < Zmax; ++j )
+				kept.put( first + j * step, blocks[ j ] );
+			synchronized ( this )
+			{
+				cachedSource = new WeakReference< ImageStack >( stack );
+				cachedStep = step;
+				cachedBlocks = kept;
+			}
+		}
+		Instrumentation.count( "slices", last - first + 1 );
+		Instrumentation.end( stage );
+		return myMIP;
+	}
+
+	/** Drop the block MIPs kept for reuse */
+	public synchronized void clear()
+	{
+		cachedSource = new WeakReference< ImageStack >( null );
+		cachedBlocks = new HashMap< Integer, Object >();
+	}
+
+	/**
+	MIP of a range of slices
+	@param stack
+	@param first slice (1-based)
+	@param last slice
+	@return projection, same type as the stack
+	*/
+	public static ImageProcessor project(ImageStack stack, int first, int last)
+	{
+		ImageProcessor ip = stack.getProcessor( first ).duplicate();
+		maxInto( ip.getPixels(), stack, first + 1, last );
+		return ip;
+	}
+
+	/** Maximum of target and slices first..last of the stack, stored in target */
+	private static Object maxInto(Object target, ImageStack stack, int first, int last)
+	{
+		for ( int z = first; z <= last; ++z )
+		{
+			maxInto( target, stack.getPixels( z ) );
+		}
+		return target;
+	}
+
+	/** Pixelwise maximum of two slices, stored in target */
+	private static Object maxInto(Object target, Object source)
+	{
+		if ( target instanceof byte[] )
+		{
+			byte[] t = (byte[]) target; byte[] s = (byte[]) source;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( s[ i ] & 0xff ) > ( t[ i ] & 0xff ) ) t[ i ] = s[ i ];
+		}
+		else if ( target instanceof short[] )
+		{
+			short[] t = (short[]) target; short[] s = (short[]) source;
+			for ( int i = 0; i < t.length; ++i )
+				if ( ( s[ i ] & 0xffff ) > ( t[ i ] & 0xffff ) ) t[ i ] = s[ i ];
+		}
+		else if ( target instanceof float[] )
+		{
+			float[] t = (float[]) target; float[] s = (float[]) source;
+			for ( int i = 0; i < t.length; ++i )
+				if ( s[ i ] > t[ i ] ) t[ i ] = s[ i ];
+		}
+		else
+		{
+			/** RGB, maximum of each channel */
+			int[] t = (int[]) target; int[] s = (int[]) source;
+			for ( int i = 0; i < t.length; ++i )
+			{
+				int a = t[ i ]; int b = s[ i ];
+				t[ i ] = ( a & 0xff000000 ) | Math.max( a & 0xff0000, b & 0xff0000 ) | Math.max( a & 0xff00, b & 0xff00 ) | Math.max( a & 0xff, b & 0xff );
+			}
+		}
+		return target;
+	}
+
+	private static Object copy(Object pixels)
+	{
+		if ( pixels instanceof byte[] ) return ( (byte[]) pixels ).clone();
+		if ( pixels instanceof short[] ) return ( (short[]) pixels ).clone();
+		if ( pixels instanceof float[] ) return ( (float[]) pixels ).clone();
+		return ( (int[]) pixels ).clone();
+	}
+}
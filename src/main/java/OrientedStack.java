@@ -0,0 +1,225 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.models.AffineModel3D;
+
+/**
+* Read only view of a stack rotated by multiples of 90 degrees and/or with its slice order reversed.
+* Slices are computed from the source on demand and the last few are kept, nothing else is copied:
+* a view over a substack of the overlap only ever touches the overlap.
+*
+* A slice that lies in one source slice (rotation around z, reversal) reads that slice only. Other
+* slices read a line of every source slice, their source pixel arrays are then fetched once and kept.
+* Views can be read from several threads.
+*/
+public class OrientedStack extends VirtualStack
+{
+	final private ImageStack source;
+	final private int Rx, Ry, Rz;
+	final private StackRotator rotator;
+	final private boolean reverse;
+	final private int width, height, depth;
+	final private int cacheSize;
+
+	/** Source pixel arrays, kept when every output slice reads every source slice */
+	final private Object[] sourcePixels;
+	final private boolean keepSource;
+
+	final private LinkedHashMap< Integer, Object > cache;
+	private ImageStack materialized = null;
+
+	/**
+	@param source stack
+	@param rotation around x in degrees
+	@param rotation around y in degrees
+	@param rotation around z in degrees
+	@param true to reverse the slice order after the rotation
+	@param number of computed slices kept
+	*/
+	public OrientedStack(ImageStack source, int Rx, int Ry, int Rz, boolean reverse, final int cacheSize)
+	{
+		super( size( source, Rx, Ry, Rz )[ 0 ], size( source, Rx, Ry, Rz )[ 1 ], source.getColorModel(), null );
+		this.source = source;
+		this.Rx = Rx;
+		this.Ry = Ry;
+		this.Rz = Rz;
+		this.rotator = new StackRotator( Rx, Ry, Rz );
+		int[] size = rotator.getSize( source.getWidth(), source.getHeight(), source.getSize() );
+		this.width = size[ 0 ];
+		this.height = size[ 1 ];
+		this.depth = size[ 2 ];
+		this.reverse = reverse;
+		this.cacheSize = Math.max( 0, cacheSize );
+		this.sourcePixels = new Object[ source.getSize() ];
+		this.keepSource = rotator.getSourceSlice( 0 ) < 0;
+		this.cache = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry< Integer, Object > eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	/**
+	@param source stack
+	@param rotation around x in degrees
+	@param rotation around y in degrees
+	@param rotation around z in degrees
+	@param true to reverse the slice order after the rotation
+	*/
+	public OrientedStack(ImageStack source, int Rx, int Ry, int Rz, boolean reverse)
+	{
+		this( source, Rx, Ry, Rz, reverse, 4 );
+	}
+
+	private static int[] size(ImageStack source, int Rx, int Ry, int Rz)
+	{
+		return new StackRotator( Rx, Ry, Rz ).getSize( source.getWidth(), source.getHeight(), source.getSize() );
+	}
+
+	/**
+	View of an image with the calibration of the rotated axes
+	@param image
+	@param rotation around x in degrees
+	@param rotation around y in degrees
+	@param rotation around z in degrees
+	@param true to reverse the slice order after the rotation
+	@return image backed by an OrientedStack
+	*/
+	public static ImagePlus view(ImagePlus imp, int Rx, int Ry, int Rz, boolean reverse)
+	{
+		OrientedStack stack = new OrientedStack( imp.getStack(), Rx, Ry, Rz, reverse );
+		ImagePlus imp2 = new ImagePlus( imp.getTitle(), stack );
+		imp2.setCalibration( stack.rotator.rotate( imp.getCalibration() ) );
+		return imp2;
+	}
+
+	public ImageStack getSource() { return source; }
+
+	/**
+	@return transform from source voxel coordinates to view voxel coordinates, an exact permutation
+	*/
+	public AffineModel3D getSourceToView()
+	{
+		double[] m = new StackRotator( Rx, Ry, Rz ).getMatrix( source.getWidth(), source.getHeight(), source.getSize(), reverse );
+		AffineModel3D t = new AffineModel3D();
+		t.set( m[ 0 ], m[ 1 ], m[ 2 ], m[ 3 ], m[ 4 ], m[ 5 ], m[ 6 ], m[ 7 ], m[ 8 ], m[ 9 ], m[ 10 ], m[ 11 ] );
+		return t;
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	public int getSize() { return depth; }
+
+	public String getSliceLabel(int n) { return null; }
+
+	public int getBitDepth() { return source.getBitDepth(); }
+
+	/** Views are read only */
+	public void setPixels(Object pixels, int n) { }
+
+	public void addSlice(String name) { }
+
+	public void deleteSlice(int n) { }
+
+	public ImageProcessor getProcessor(int n)
+	{
+		Object pixels = getPixels( n );
+		if ( pixels instanceof byte[] ) return new ByteProcessor( width, height, (byte[]) pixels, getColorModel() );
+		if ( pixels instanceof short[] ) return new ShortProcessor( width, height, (short[]) pixels, getColorModel() );
+		if ( pixels instanceof float[] ) return new FloatProcessor( width, height, (float[]) pixels, getColorModel() );
+		return new ColorProcessor( width, height, (int[]) pixels );
+	}
+
+	/**
+	@param slice index (1-based)
+	@return pixel array of the slice, shared with the slice cache so it must not be modified
+	*/
+	public Object getPixels(int n)
+	{
+		if ( n < 1 || n > depth )
+			throw new IllegalArgumentException( "Slice out of range: " + n );
+
+		if ( materialized != null ) return materialized.getPixels( n );
+
+		Integer key = Integer.valueOf( n );
+		synchronized ( this )
+		{
+			Object pixels = cache.get( key );
+			if ( pixels != null ) return pixels;
+		}
+
+		int nz = reverse ? depth - n : n - 1;
+		Object pixels = rotator.getSlice( sourceFor( nz ), source.getWidth(), nz );
+
+		synchronized ( this )
+		{
+			if ( cacheSize > 0 ) cache.put( key, pixels );
+		}
+		return pixels;
+	}
+
+	/** Source pixel arrays read by output slice nz */
+	private Object[] sourceFor(int nz)
+	{
+		if ( keepSource )
+		{
+			synchronized ( sourcePixels )
+			{
+				for ( int z = 0; z < sourcePixels.length; ++z )
+					if ( sourcePixels[ z ] == null ) sourcePixels[ z ] = source.getPixels( z + 1 );
+			}
+			return sourcePixels;
+		}
+
+		Object[] src = new Object[ sourcePixels.length ];
+		int z = rotator.getSourceSlice( nz );
+		src[ z ] = source.getPixels( z + 1 );
+		return src;
+	}
+
+	/**
+	In-memory copy of the view, computed once, for consumers that read every slice as a whole
+	@param number of threads
+	@return stack holding every slice
+	*/
+	public synchronized ImageStack materialize(int numThreads)
+	{
+		if ( materialized != null ) return materialized;
+
+		ImageStack rotated = rotator.rotate( source, numThreads, null );
+		if ( reverse )
+		{
+			ImageStack reversed = new ImageStack( width, height );
+			for ( int z = depth; z >= 1; --z )
+				reversed.addSlice( null, rotated.getPixels( z ) );
+			rotated = reversed;
+		}
+		materialized = rotated;
+		cache.clear();
+		return materialized;
+	}
+}
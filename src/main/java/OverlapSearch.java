@@ -0,0 +1,264 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.IJ;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+* Search of the back slice with the most correspondences with the front slice. The correspondence
+* curve is expected to be bell shaped around the overlap, so instead of scoring every slice it can be
+* sampled coarsely, the peak bracketed by its neighbouring samples and the bracket refined on finer
+* grids down to single slices. A flat or multimodal coarse curve falls back to scoring every slice.
+*
+* A ranked candidate list from a cheaper pre-localization can also be verified instead; when none of
+* the candidates is verified the range is searched coarse to fine.
+*
+* Every slice is scored at most once, the scores are kept for the correspondence plot. Ties go to
+* the last slice, as in the exhaustive sweep. A scorer may return NaN for a slice it knows cannot be
+* the best one: the slice counts as evaluated but is left out of the curve and of the best slice.
+*/
+public class OverlapSearch
+{
+	/** Scores a batch of slices, usually in parallel */
+	public interface Scorer
+	{
+		/**
+		@param slice indices (1-based)
+		@return score of each slice, in the same order
+		*/
+		public float[] score(int[] slices);
+	}
+
+	/** Ranges shorter than this are swept */
+	final static private int MIN_RANGE = 32;
+	final static private int COARSE_SAMPLES = 16;
+	final static private int REFINE_SAMPLES = 8;
+
+	/** Slices scored on each side of the best verified candidate */
+	final static private int CANDIDATE_RADIUS = 2;
+
+	/** The coarse peak must stand above the median by this factor */
+	final static private float FLAT_RATIO = 1.25f;
+
+	/** A second coarse peak above this fraction of the maximum, separated by a dip, makes the curve multimodal */
+	final static private float SECOND_PEAK = 0.8f;
+	final static private float DIP = 0.5f;
+
+	final private Scorer scorer;
+	final private TreeMap< Integer, Float > scores = new TreeMap< Integer, Float >();
+
+	public OverlapSearch(Scorer scorer)
+	{
+		this.scorer = scorer;
+	}
+
+	/**
+	Score every slice of the range
+	@return best slice
+	*/
+	public int exhaustive(int start, int end)
+	{
+		evaluateRange( start, end, 1 );
+		return best( start, end );
+	}
+
+	/**
+	Coarse sampling of the range, then refinement around the peak
+	@return best slice
+	*/
+	public int coarseToFine(int start, int end)
+	{
+		int n = end - start + 1;
+		if ( n < MIN_RANGE ) return exhaustive( start, end );
+
+		/** The coarse samples are the first batch of the search, a scorer has no bound to skip them with yet */
+		int step = Math.max( 2, n / COARSE_SAMPLES );
+		List< Integer > coarse = evaluateRange( start, end, step );
+		if ( !unimodal( coarse ) )
+		{
+			IJ.log( "(Info) Correspondence curve flat or multimodal, every slice is scored" );
+			return exhaustive( start, end );
+		}
+
+		int peak = best( start, end );
+		int lo = Math.max( start, peak - step );
+		int hi = Math.min( end, peak + step );
+		while ( true )
+		{
+			step = Math.max( 1, ( hi - lo ) / REFINE_SAMPLES );
+			evaluateRange( lo, hi, step );
+			if ( step == 1 ) break;
+			peak = best( lo, hi );
+			lo = Math.max( start, peak - step );
+			hi = Math.min( end, peak + step );
+		}
+		return best( start, end );
+	}
+
+	/**
+	Score a ranked candidate list, then every slice close to the best candidate. If no candidate scores
+	above 0 the pre-localization missed the overlap, and the range is searched coarse to fine.
+	@param candidate slices, from a cheaper pre-localization
+	@param first slice of the range
+	@param last slice of the range
+	@return best slice
+	*/
+	public int candidates(int[] candidates, int start, int end)
+	{
+		List< Integer > list = new ArrayList< Integer >();
+		for ( int c : candidates )
+			list.add( c );
+		evaluate( list );
+
+		float top = 0;
+		for ( Integer c : list )
+			if ( scores.get( c ) > top ) top = scores.get( c );
+		if ( top <= 0 )
+		{
+			IJ.log( "(Info) No pre-localized candidate verified, the range is searched coarse to fine" );
+			return coarseToFine( start, end );
+		}
+
+		int peak = getBest();
+		evaluateRange( Math.max( start, peak - CANDIDATE_RADIUS ), Math.min( end, peak + CANDIDATE_RADIUS ), 1 );
+		return getBest();
+	}
+
+	/** @return best scored slice, 1 if none was scored */
+	public int getBest()
+	{
+		return scores.isEmpty() ? 1 : best( scores.firstKey(), scores.lastKey() );
+	}
+
+	/** @return number of slices scored */
+	public int getEvaluated()
+	{
+		return scores.size();
+	}
+
+	/** @return scored slices, in increasing order, without the NaN ones */
+	public float[] getSlices()
+	{
+		float[] x = new float[ getScored() ];
+		int i = 0;
+		for ( Map.Entry< Integer, Float > e : scores.entrySet() )
+			if ( !e.getValue().isNaN() ) x[ i++ ] = e.getKey().floatValue();
+		return x;
+	}
+
+	/** @return scores of the slices of getSlices */
+	public float[] getScores()
+	{
+		float[] y = new float[ getScored() ];
+		int i = 0;
+		for ( Float v : scores.values() )
+			if ( !v.isNaN() ) y[ i++ ] = v.floatValue();
+		return y;
+	}
+
+	/** @return number of slices with a score, NaN excluded */
+	private int getScored()
+	{
+		int n = 0;
+		for ( Float v : scores.values() )
+			if ( !v.isNaN() ) ++n;
+		return n;
+	}
+
+	/** Log the number of slices scored against a sweep of the range */
+	public void logStatistics(int start, int end)
+	{
+		IJ.log( "(Info) Overlap search scored " + scores.size() + " of " + ( end - start + 1 ) + " slices" );
+	}
+
+	/**
+	Score the slices of a range on a grid, the last slice included
+	@return grid slices
+	*/
+	private List< Integer > evaluateRange(int start, int end, int step)
+	{
+		List< Integer > grid = new ArrayList< Integer >();
+		if ( end < start ) return grid;
+		for ( int s = start; s <= end; s += step )
+			grid.add( s );
+		if ( grid.get( grid.size() - 1 ) != end ) grid.add( end );
+		evaluate( grid );
+		return grid;
+	}
+
+	/** Score the slices not scored yet, in one batch */
+	private void evaluate(List< Integer > slices)
+	{
+		List< Integer > missing = new ArrayList< Integer >();
+		for ( Integer s : slices )
+			if ( !scores.containsKey( s ) && !missing.contains( s ) ) missing.add( s );
+		if ( missing.isEmpty() ) return;
+
+		int[] batch = new int[ missing.size() ];
+		for ( int i = 0; i < batch.length; ++i )
+			batch[ i ] = missing.get( i );
+		float[] values = scorer.score( batch );
+		for ( int i = 0; i < batch.length; ++i )
+			scores.put( batch[ i ], values[ i ] );
+	}
+
+	/** Best scored slice of a range, the last one on ties, start if none was scored; NaN never compares greater */
+	private int best(int start, int end)
+	{
+		int ind = start;
+		float max = 0;
+		for ( Map.Entry< Integer, Float > e : scores.subMap( start, end + 1 ).entrySet() )
+		{
+			if ( e.getValue() >= max )
+			{
+				ind = e.getKey();
+				max = e.getValue();
+			}
+		}
+		return ind;
+	}
+
+	/** True if the samples show one prominent peak, NaN samples (skipped, lower than the best) are left out */
+	private boolean unimodal(List< Integer > grid)
+	{
+		List< Float > scored = new ArrayList< Float >();
+		for ( Integer s : grid )
+			if ( !scores.get( s ).isNaN() ) scored.add( scores.get( s ) );
+		if ( scored.isEmpty() ) return false;
+
+		float[] v = new float[ scored.size() ];
+		int k = 0;
+		for ( int i = 0; i < v.length; ++i )
+		{
+			v[ i ] = scored.get( i );
+			if ( v[ i ] >= v[ k ] ) k = i;
+		}
+		float max = v[ k ];
+
+		float[] sorted = v.clone();
+		Arrays.sort( sorted );
+		float median = sorted[ sorted.length / 2 ];
+		if ( max <= 0 || max <= FLAT_RATIO * median ) return false;
+
+		/** Another high sample, with a dip between it and the peak */
+		for ( int i = 0; i < v.length; ++i )
+		{
+			if ( Math.abs( i - k ) < 2 || v[ i ] < SECOND_PEAK * max ) continue;
+			float dip = max;
+			for ( int j = Math.min( i, k ) + 1; j < Math.max( i, k ); ++j )
+				dip = Math.min( dip, v[ j ] );
+			if ( dip < DIP * max ) return false;
+		}
+		return true;
+	}
+}
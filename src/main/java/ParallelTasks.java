@@ -0,0 +1,103 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+* Runs independent tasks on a fixed pool of threads, in the calling thread when one thread is asked.
+* Failures are rethrown as RuntimeException.
+*/
+public class ParallelTasks
+{
+	private ParallelTasks() {}
+
+	/**
+	@param tasks
+	@param number of threads
+	@return results in the order of the tasks
+	*/
+	public static < T > List< T > run(List< Callable< T > > tasks, int numThreads)
+	{
+		List< T > results = new ArrayList< T >();
+		if ( numThreads <= 1 || tasks.size() <= 1 )
+		{
+			for ( Callable< T > task : tasks )
+			{
+				try
+				{
+					results.add( task.call() );
+				}
+				catch ( RuntimeException e )
+				{
+					throw e;
+				}
+				catch ( Exception e )
+				{
+					throw new RuntimeException( e );
+				}
+			}
+			return results;
+		}
+
+		/** Tasks run in the stage of the caller, see Instrumentation */
+		List< Callable< T > > measured = new ArrayList< Callable< T > >();
+		for ( Callable< T > task : tasks )
+			measured.add( Instrumentation.propagate( task ) );
+
+		ExecutorService pool = Executors.newFixedThreadPool( Math.min( numThreads, tasks.size() ) );
+		try
+		{
+			for ( Future< T > f : pool.invokeAll( measured ) )
+			{
+				results.add( f.get() );
+			}
+		}
+		catch ( InterruptedException e )
+		{
+			Thread.currentThread().interrupt();
+			throw new RuntimeException( e );
+		}
+		catch ( ExecutionException e )
+		{
+			if ( e.getCause() instanceof RuntimeException ) throw (RuntimeException) e.getCause();
+			throw new RuntimeException( e.getCause() );
+		}
+		finally
+		{
+			pool.shutdownNow();
+		}
+		return results;
+	}
+
+	/**
+	Fixed pool of daemon threads, for workers kept between calls: they do not hold the JVM if the pool is never shut down
+	@param number of threads
+	@return pool
+	*/
+	public static ExecutorService newPool(int numThreads)
+	{
+		return Executors.newFixedThreadPool( Math.max( 1, numThreads ), new ThreadFactory()
+		{
+			final private ThreadFactory threads = Executors.defaultThreadFactory();
+
+			public Thread newThread(Runnable r)
+			{
+				Thread t = threads.newThread( r );
+				t.setDaemon( true );
+				return t;
+			}
+		} );
+	}
+}
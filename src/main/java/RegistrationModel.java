@@ -0,0 +1,196 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Properties;
+
+import mpicbg.models.AffineModel3D;
+
+/**
+* Result of a registration: the affine model of the back stack, the overlap size and the orientation
+* they hold for, with the quality of the last comparison. It is saved as a small properties file, so a
+* later run on the same rig or the next time point can start from it or apply it as it is.
+*
+* The affine model is written row by row (m00 m01 m02 m03 m10 ... m23), in the voxel coordinates of
+* the oriented stacks; stack sizes are those of the oriented front and back stacks.
+*/
+public class RegistrationModel
+{
+	final static private int VERSION = 1;
+
+	final private AffineModel3D model;
+	final private int overlap;
+	final private String orientation;
+	final private int[] frontSize, backSize;
+	final private int inliers, candidates;
+	final private double meanError;
+
+	/**
+	@param affine model of the back stack, copied
+	@param overlap size in slices
+	@param stitching orientation, one of SIFT_Volume_Stitching.stitchingModelStrings
+	@param width, height and depth of the oriented front stack
+	@param width, height and depth of the oriented back stack
+	@param inliers of the last comparison
+	@param candidates of the last comparison
+	@param mean error of the inliers of the last comparison in px
+	*/
+	public RegistrationModel(AffineModel3D model, int overlap, String orientation, int[] frontSize, int[] backSize, int inliers, int candidates, double meanError)
+	{
+		this.model = model.copy();
+		this.overlap = overlap;
+		this.orientation = orientation;
+		this.frontSize = frontSize.clone();
+		this.backSize = backSize.clone();
+		this.inliers = inliers;
+		this.candidates = candidates;
+		this.meanError = meanError;
+	}
+
+	/** @return copy of the affine model */
+	public AffineModel3D getModel() { return model.copy(); }
+
+	public int getOverlap() { return overlap; }
+
+	public String getOrientation() { return orientation; }
+
+	public int[] getFrontSize() { return frontSize.clone(); }
+
+	public int[] getBackSize() { return backSize.clone(); }
+
+	public int getInliers() { return inliers; }
+
+	public int getCandidates() { return candidates; }
+
+	public double getMeanError() { return meanError; }
+
+	/**
+	@param file to write
+	*/
+	public void save(File file) throws IOException
+	{
+		double[] d = new double[ 12 ];
+		model.toArray( d );
+		/** toArray is column by column */
+		double[] rows = new double[]{ d[ 0 ], d[ 3 ], d[ 6 ], d[ 9 ], d[ 1 ], d[ 4 ], d[ 7 ], d[ 10 ], d[ 2 ], d[ 5 ], d[ 8 ], d[ 11 ] };
+
+		Properties p = new Properties();
+		p.setProperty( "version", String.valueOf( VERSION ) );
+		p.setProperty( "orientation", orientation );
+		p.setProperty( "overlap", String.valueOf( overlap ) );
+		p.setProperty( "affine", join( rows ) );
+		p.setProperty( "front_size", join( frontSize ) );
+		p.setProperty( "back_size", join( backSize ) );
+		p.setProperty( "inliers", String.valueOf( inliers ) );
+		p.setProperty( "candidates", String.valueOf( candidates ) );
+		p.setProperty( "mean_error", String.valueOf( meanError ) );
+
+		OutputStream out = new FileOutputStream( file );
+		try
+		{
+			p.store( out, "SIFT_Volume_Stitching registration model" );
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	/**
+	@param file written by save
+	@return model of the file
+	*/
+	public static RegistrationModel load(File file) throws IOException
+	{
+		Properties p = new Properties();
+		InputStream in = new FileInputStream( file );
+		try
+		{
+			p.load( in );
+		}
+		finally
+		{
+			in.close();
+		}
+
+		try
+		{
+			int version = Integer.parseInt( required( p, "version", file ) );
+			if ( version > VERSION )
+				throw new IOException( file + ": registration model version " + version + " is not supported" );
+
+			double[] r = doubles( required( p, "affine", file ), 12, file );
+			AffineModel3D model = new AffineModel3D();
+			model.set( r[ 0 ], r[ 1 ], r[ 2 ], r[ 3 ], r[ 4 ], r[ 5 ], r[ 6 ], r[ 7 ], r[ 8 ], r[ 9 ], r[ 10 ], r[ 11 ] );
+
+			return new RegistrationModel( model,
+					Integer.parseInt( required( p, "overlap", file ) ),
+					required( p, "orientation", file ),
+					ints( p.getProperty( "front_size", "0 0 0" ), file ),
+					ints( p.getProperty( "back_size", "0 0 0" ), file ),
+					Integer.parseInt( p.getProperty( "inliers", "0" ) ),
+					Integer.parseInt( p.getProperty( "candidates", "0" ) ),
+					Double.parseDouble( p.getProperty( "mean_error", "0" ) ) );
+		}
+		catch ( NumberFormatException e )
+		{
+			throw new IOException( file + ": invalid registration model, " + e.getMessage() );
+		}
+	}
+
+	private static String required(Properties p, String key, File file) throws IOException
+	{
+		String value = p.getProperty( key );
+		if ( value == null )
+			throw new IOException( file + ": no " + key + " in the registration model" );
+		return value.trim();
+	}
+
+	private static double[] doubles(String value, int n, File file) throws IOException
+	{
+		String[] s = value.trim().split( "\\s+" );
+		if ( s.length != n )
+			throw new IOException( file + ": " + n + " values expected, " + s.length + " found" );
+		double[] d = new double[ n ];
+		for ( int i = 0; i < n; ++i )
+			d[ i ] = Double.parseDouble( s[ i ] );
+		return d;
+	}
+
+	private static int[] ints(String value, File file) throws IOException
+	{
+		double[] d = doubles( value, 3, file );
+		return new int[]{ ( int ) d[ 0 ], ( int ) d[ 1 ], ( int ) d[ 2 ] };
+	}
+
+	private static String join(double[] values)
+	{
+		StringBuilder s = new StringBuilder();
+		for ( double v : values )
+			s.append( s.length() == 0 ? "" : " " ).append( v );
+		return s.toString();
+	}
+
+	private static String join(int[] values)
+	{
+		StringBuilder s = new StringBuilder();
+		for ( int v : values )
+			s.append( s.length() == 0 ? "" : " " ).append( v );
+		return s.toString();
+	}
+
+	public String toString()
+	{
+		return orientation + ", overlap " + overlap + " slices, " + inliers + "/" + candidates + " inliers, mean error " + meanError + " px";
+	}
+}
@@ -21,14 +21,19 @@ import ij.*;
 import java.awt.*;
 import ij.measure.*;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.awt.Color;
 import java.awt.TextField;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 
-import stitching.ImageInformation;
 import static stitching.CommonFunctions.LIN_BLEND;
 import static stitching.CommonFunctions.methodListCollection;
 
@@ -50,9 +55,17 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 	 * For debugging, it is convenient to have a method that starts ImageJ, loads an
 	 * image and calls the plugin, e.g. after setting breakpoints.
 	 *
-	 * @param args unused
+	 * With arguments, the stitching runs headless instead, see HeadlessStitching.
+	 *
+	 * @param args key=value options of HeadlessStitching, none for debugging
 	 */
 	public static void main(String[] args) {
+		if ( args.length > 0 )
+		{
+			HeadlessStitching.main( args );
+			return;
+		}
+
 		// set the plugins.dir property to make the plugin appear in the Plugins menu
 		Class<?> clazz = SIFT_Volume_Stitching.class;
 		String url = clazz.getResource("/" + clazz.getName().replace('.', '/') + ".class").toString();
@@ -72,31 +85,70 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		IJ.runPlugIn(clazz.getName(), "");
 	}
 
-    private List< Feature > fsf = new ArrayList< Feature >();
-    private List< Feature > fsb = new ArrayList< Feature >();
 	private ImagePlus impf; // Original Front Stack
 	private ImagePlus impb; // Original Back Stack
     private ImagePlus impAlignedZYX; // Aligned Back Stack
 	private ImagePlus frontTemplate;
 	private ImagePlus backTemplate;
-	private ImagePlus channel2front;
-	private ImagePlus channel2back;
-	private ImagePlus channel3front;
-	private ImagePlus channel3back;
-    private boolean modelFound;
+	/** Additional channels, from channel 2 on, null where a channel is not set */
+	private List< ImagePlus > channelFronts = new ArrayList< ImagePlus >();
+	private List< ImagePlus > channelBacks = new ArrayList< ImagePlus >();
+	/** Channel number of each stack returned by stitch */
+	private int[] fusedChannels = new int[ 0 ];
+	private ImagePlus frontFiltered;
+	private ImagePlus backFiltered;
 	private AffineModel3D BestModel3D = new AffineModel3D();
 	public boolean Reg3D = true;
 	boolean template_bool = false;
+	public boolean c2 = false, c3 = false; // Additional channels of the dialog
+	
+	/** Overlap detection and registration settings */
+	public int ov = 100; // Estimated overlap size (Slice-by-Slice)
+	public int split = 5; // Number of blocks per level (Block-by-Block)
+	public int it = 2; // Number of registration iterations
+	public int MIP = 50; // MIP size
+	
+	/** Saved registration model, used as the starting point of a narrow refinement or as the final transform */
+	final static public String[] modelUses = new String[]{ "None", "Starting point", "Final transform" };
+	public String modelUse = "None";
+	public int refineRange = 25; // Overlap search range around a saved overlap (slices)
+	private RegistrationModel savedModel = null;
+	private RegistrationModel registration = null;
 	final static public String[] stitchingModelStrings = new String[]{ "Front - Back", "Back - Front", "Left - Right", "Right - Left", "Top - Bottom", "Bottom - Top" };
 	public String stitchingMethod = "Front - Back";
 	final static public String[] OVMethod = new String[]{ "Slice-by-Slice", "Block-by-Block" };
 	public String myOVMethod = "Slice-by-Slice";
+	final static public String[] searchStrategies = new String[]{ "Exhaustive", "Coarse-to-fine", "Correlation pre-localization" };
+	public String mySearchStrategy = "Exhaustive";
+	
+	/** Descriptor matching */
+	final static public String[] matcherStrings = new String[]{ "Brute force", "Kd-tree (exact)", "Kd-forest (approximate)", "Linear scan (feature arrays)" };
+	public String matcherMethod = "Brute force";
+	public boolean reportMatchingRecall = false;
+	/** Reference of the recall reports, shared so that the front features are expanded once per sweep */
+	final static private BruteForceMatcher recallReference = new BruteForceMatcher();
+	/** Feature lists as Feature objects, or as FeatureStore arrays of float or 8-bit descriptors */
+	final static public String[] featureStorages = new String[]{ "Feature objects", "Float arrays", "8-bit arrays" };
+	public String featureStorage = "Feature objects";
+	
+	/** Number of worker threads for the overlap search (1: sequential) */
+	public int numThreads = Runtime.getRuntime().availableProcessors();
+	
+	/** Slices scored between two updates of the inlier count a slice must beat, at least numThreads */
+	final static private int SKIP_BATCH = 32;
+	
+	/** Workers scoring the back slices, each one keeping its SIFT object (MatchingParameters.workerSIFT) */
+	private ExecutorService scoringPool = null;
+	private boolean ownsScoringPool = false;
 	
 	/** Fusion method*/
 	public String fusionMethod = methodListCollection[LIN_BLEND];
 	public double alpha = 1.5;
+	/** Fuse slab by slab when the slices are read (FusedStack) instead of in memory, slab size in slices */
+	public boolean streamingFusion = false;
+	public int fusionSlab = 16;
     
-	/** Class for SIFT parameters*/
+	/** Class for SIFT parameters, as set in the dialog*/
     static private class Param
     {        
 		public FloatArray2DSIFT.Param sift = new FloatArray2DSIFT.Param();
@@ -111,24 +163,59 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
         public float minInlierRatio = 0.05f;
                 
         public int modelIndex = 1;
+        
+        Param()
+        {
+        	sift.steps = 5;
+        	sift.initialSigma = 1.6f;
+        }
+        
+        /** RANSAC stops once an outlier free sample was drawn with this probability */
+        public double ransacConfidence = 0.99;
+        
+        /** RANSAC samples the most distinctive candidates first */
+        public boolean prosac = true;
 		
     }
 	
-	static Param p = new Param();
+	private final Param p = new Param();
+	
+	/** Frozen copy of p, shared by every comparison of the job */
+	private MatchingParameters params;
+	
+	/** Features of unchanged slices, reused across overlap searches and iterations */
+	private FeatureCache featureCache;
+	public long featureCacheBudget = 256L << 20;
+	
+	/** MIP construction, keeps the sliding-window MIP of the front stack */
+	private MaxProjector mipProjector;
+	
+	/** Correspondence plots and alignment info, shown in windows by default */
+	private Diagnostics diagnostics = new Diagnostics( null );
+	
+	/** Time, CPU, allocations and counts of the stages of stitch */
+	final private Instrumentation instrumentation = new Instrumentation();
     
 	/**
 	 * Main method of the plugin
-	 * @param args unused
+	 * @param args key=value options of HeadlessStitching to run without the dialog, empty otherwise
 	 */
     final public void run( final String args )
     {
-        fsf.clear();
-        fsb.clear();
-                
         if ( IJ.versionLessThan( "1.41n" ) ) return;
 		
-		/** Estimated Overlap size*/
-		int ov = 100;
+		if ( args != null && args.trim().length() > 0 )
+		{
+			try
+			{
+				HeadlessStitching.run( args );
+			}
+			catch ( Exception e )
+			{
+				IJ.log( "(Error) " + e.getMessage() );
+			}
+			return;
+		}
 				
 		/**Image Choice Dialog Box*/
 		Font myfont = new Font("SansSerif", Font.BOLD, 12);
@@ -158,12 +245,13 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		gd.addMessage( "* Overlap Detection Method", myfont );
 		
 		gd.addChoice( "Method Selection", OVMethod, OVMethod[ 0 ] );
+		gd.addChoice( "Slice_Search", searchStrategies, mySearchStrategy );
 		WindowManager.getCurrentImage().getStackSize(); 
-		gd.addNumericField( "Split (Block-by-Block)", 5, 0, 4, "" );
-		gd.addNumericField( "Overlap Size (Slice-by-Slice)", 100, 0, 4, "" );
+		gd.addNumericField( "Split (Block-by-Block)", split, 0, 4, "" );
+		gd.addNumericField( "Overlap Size (Slice-by-Slice)", ov, 0, 4, "" );
+		gd.addNumericField( "Number_Of_Threads", numThreads, 0, 4, "" );
 		
 		
-		boolean c2 = false; boolean c3 = false;
 		gd.addMessage( "* Additional Channels", myfont );
 		gd.addCheckbox( "Channel 2", c2 );
 		gd.addChoice( "Channel_2_Front_Image", titles, current );
@@ -172,18 +260,22 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		gd.addChoice( "Channel_3_Front_Image", titles, current );
 		gd.addChoice( "Channel_3_Back_Image", titles, current.equals( titles[ 0 ] ) ? titles[ 1 ] : titles[ 0 ] );
 		
-		int it = 2; int MIP = 50;
 		gd.addMessage( "* 3D Registration Parameters", myfont );
 		gd.addCheckbox( "3D Registration", Reg3D );
 		gd.addNumericField( "Number_Of_Iterations", it, 0, 4, "" );
 		gd.addNumericField( "MIP size", MIP, 0, 4, "Slices" );
+		gd.addChoice( "Saved_Model", modelUses, modelUse );
+		gd.addStringField( "Model_File", "", 30 );
+		gd.addStringField( "Save_Model_To", "", 30 );
 		
-	    p.sift.steps = 5; p.sift.initialSigma = 1.6f;
 		gd.addMessage( "* SIFT Parameters", myfont );
 		gd.addNumericField( "Initial_Gaussian_Blur :", p.sift.initialSigma, 1, 4, "pixels" ); 
 		gd.addNumericField( "Steps_Per_Scales_Octave", p.sift.steps, 0, 4, "" );
 		gd.addNumericField( "Minimum_Image_Size :", p.sift.minOctaveSize, 0, 4, "pixels" );
 		gd.addNumericField( "Maximum_Image_Size :", p.sift.maxOctaveSize, 0, 4, "pixels" );
+		gd.addChoice( "Descriptor_Matching", matcherStrings, matcherMethod );
+		gd.addChoice( "Feature_Storage", featureStorages, featureStorage );
+		gd.addCheckbox( "Report_Matching_Recall", reportMatchingRecall );
 		
 		gd.addMessage( "* Filtered Image Selection", myfont );
 		gd.addCheckbox( "Compare Filtered Images", template_bool );
@@ -192,50 +284,334 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 
 		gd.addMessage( "* Fusion Method", myfont );
 		gd.addChoice( "Method", methodListCollection, fusionMethod );
+		gd.addCheckbox( "Streaming_Fusion (virtual fused stack)", streamingFusion );
 		
 		gd.showDialog();
 		if (gd.wasCanceled()) return;
 		
-		long start_time = System.currentTimeMillis();
-		
 		impf = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
 		impb = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
 
 		
 		stitchingMethod = stitchingModelStrings[ gd.getNextChoiceIndex() ];
 		
-		myOVMethod = stitchingModelStrings[ gd.getNextChoiceIndex() ];
-		int split = (int) gd.getNextNumber();
+		myOVMethod = OVMethod[ gd.getNextChoiceIndex() ];
+		mySearchStrategy = searchStrategies[ gd.getNextChoiceIndex() ];
+		split = (int) gd.getNextNumber();
 		ov = (int) gd.getNextNumber();
-		
-		int indb = impb.getStackSize();
+		numThreads = Math.max( 1, (int) gd.getNextNumber() );
 		
 		c2 = gd.getNextBoolean();
-		channel2front = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
-		channel2back = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		ImagePlus channel2front = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		ImagePlus channel2back = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
 		c3 = gd.getNextBoolean();
-		channel3front = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
-		channel3back = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
-		
-		if ( stitchingMethod != "Front - Back"){
-			impf = stackOrientation(impf, stitchingMethod); 
-			impb = stackOrientation(impb, stitchingMethod);
-			channel2front = stackOrientation(channel2front, stitchingMethod); 
-			channel2back = stackOrientation(channel2back, stitchingMethod);
-			channel3front = stackOrientation(channel3front, stitchingMethod); 
-			channel3back = stackOrientation(channel3back, stitchingMethod);
-		}
+		ImagePlus channel3front = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		ImagePlus channel3back = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		setChannel( 2, c2 ? channel2front : null, c2 ? channel2back : null );
+		setChannel( 3, c3 ? channel3front : null, c3 ? channel3back : null );
 		
 		Reg3D = gd.getNextBoolean();
 		it = (int) gd.getNextNumber();
 		MIP = (int) gd.getNextNumber();
-		
-		template_bool = gd.getNextBoolean();
+		modelUse = modelUses[ gd.getNextChoiceIndex() ];
+		String modelFile = gd.getNextString().trim();
+		String saveModelTo = gd.getNextString().trim();
 		
 		p.sift.initialSigma = (float) gd.getNextNumber();
 	    p.sift.steps = (int) gd.getNextNumber();
 		p.sift.minOctaveSize = (int) gd.getNextNumber();
 	    p.sift.maxOctaveSize = (int) gd.getNextNumber();
+		matcherMethod = matcherStrings[ gd.getNextChoiceIndex() ];
+		featureStorage = featureStorages[ gd.getNextChoiceIndex() ];
+		reportMatchingRecall = gd.getNextBoolean();
+		
+		template_bool = gd.getNextBoolean();
+		
+		/** Always read, so that the fusion method is the next choice */
+		frontFiltered = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		backFiltered = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+		
+		fusionMethod = gd.getNextChoice(  );
+		streamingFusion = gd.getNextBoolean();
+		
+		ImagePlus[] fused;
+		try
+		{
+			if ( modelUse != "None" ) setSavedModel( RegistrationModel.load( new java.io.File( modelFile ) ), modelUse );
+			fused = stitch();
+		}
+		catch ( IllegalArgumentException e )
+		{
+			IJ.showMessage( e.getMessage() );
+			return;
+		}
+		catch ( java.io.IOException e )
+		{
+			IJ.showMessage( e.getMessage() );
+			return;
+		}
+		
+		if ( saveModelTo.length() > 0 )
+		{
+			try
+			{
+				registration.save( new java.io.File( saveModelTo ) );
+				IJ.log( "(Info) Registration model written to " + saveModelTo );
+			}
+			catch ( java.io.IOException e )
+			{
+				IJ.log( "(Error) Cannot write the registration model: " + e.getMessage() );
+			}
+		}
+		
+		for ( ImagePlus imp : fused )
+		{
+			imp.show(); imp.draw();
+		}
+		Toolkit.getDefaultToolkit().beep();
+    }
+	
+	/**
+	Set the stacks to stitch, when the plugin is used without its dialog
+	@param front stack
+	@param back stack
+	*/
+	public void setImages(ImagePlus front, ImagePlus back)
+	{
+		impf = front;
+		impb = back;
+	}
+	
+	/**
+	Compare filtered stacks instead of the stacks to stitch, the stacks set with setImages are then fused
+	@param filtered front stack, null to compare the stacks themselves
+	@param filtered back stack
+	*/
+	public void setFilteredImages(ImagePlus front, ImagePlus back)
+	{
+		frontFiltered = front;
+		backFiltered = back;
+		template_bool = front != null;
+	}
+	
+	/**
+	Additional channel, fused with the model of the stitched stacks. Hyperstacks need none: their
+	channels are split, the first one is registered and the others follow it. The channels set are
+	numbered after those of a hyperstack: channel 2 of a 3 channel hyperstack is fused as channel 4.
+	@param channel number, from 2 on
+	@param front stack of the channel, null for none
+	@param back stack of the channel
+	*/
+	public void setChannel(int channel, ImagePlus front, ImagePlus back)
+	{
+		if ( channel < 2 )
+			throw new IllegalArgumentException( "Unknown channel: " + channel );
+		while ( channelFronts.size() < channel - 1 )
+		{
+			channelFronts.add( null );
+			channelBacks.add( null );
+		}
+		channelFronts.set( channel - 2, front );
+		channelBacks.set( channel - 2, back );
+	}
+	
+	/**
+	Saved registration model to reuse
+	@param model, null for none
+	@param use, one of modelUses: as the starting point of a narrow refinement or as the final transform
+	*/
+	public void setSavedModel(RegistrationModel model, String use)
+	{
+		savedModel = model;
+		modelUse = use;
+	}
+	
+	/** @return channel number of each fused stack returned by stitch, 1 for the registered one */
+	public int[] getFusedChannels()
+	{
+		return fusedChannels.clone();
+	}
+	
+	/** @return model of the last registration, null before stitch is called */
+	public RegistrationModel getRegistrationModel()
+	{
+		return registration;
+	}
+	
+	/** @return measures of the stages of the stitch calls so far */
+	public Instrumentation getInstrumentation()
+	{
+		return instrumentation;
+	}
+	
+	/**
+	@param listener receiving the measures of every stage of stitch as it finishes
+	*/
+	public void addListener(StitchingListener listener)
+	{
+		instrumentation.addListener( listener );
+	}
+	
+	/** @return SIFT parameters, to be set before stitch is called */
+	public FloatArray2DSIFT.Param getSiftParam()
+	{
+		return p.sift;
+	}
+	
+	/**
+	@param directory receiving the correspondence plots (CSV) and alignment info (TIFF), null to show them in windows
+	*/
+	public void setDiagnostics(java.io.File dir)
+	{
+		diagnostics = new Diagnostics( dir );
+	}
+	
+	/**
+	@param diagnostics of the run, Diagnostics.discard() for none
+	*/
+	public void setDiagnostics(Diagnostics diagnostics)
+	{
+		this.diagnostics = diagnostics;
+	}
+	
+	/**
+	@param workers scoring the back slices, kept by the caller from one stitch to the next (BatchStitching);
+	null for numThreads workers of the plugin, created at the first scoring and stopped when stitch ends
+	*/
+	public synchronized void setScoringPool(ExecutorService pool)
+	{
+		releaseScoringPool();
+		scoringPool = pool;
+		ownsScoringPool = false;
+	}
+	
+	/** @return workers scoring the back slices, the ones of the plugin are created at the first call */
+	private synchronized ExecutorService scoringPool()
+	{
+		if ( scoringPool == null )
+		{
+			scoringPool = ParallelTasks.newPool( numThreads );
+			ownsScoringPool = true;
+		}
+		return scoringPool;
+	}
+	
+	/** Stop the scoring workers of the plugin, the ones set by the caller are left running */
+	private synchronized void releaseScoringPool()
+	{
+		if ( ownsScoringPool )
+		{
+			scoringPool.shutdownNow();
+			scoringPool = null;
+		}
+		ownsScoringPool = false;
+	}
+	
+	/**
+	Set the matching parameters and MIP projector from the current settings. stitch calls it, callers of
+	the comparison methods (CompareCrossSection, searchBestInliers) without stitch call it first.
+	@return matching parameters
+	*/
+	public MatchingParameters prepareMatching()
+	{
+	    /** SIFT parameters Setting */	
+		p.modelIndex = 3; // 1: Rigid Model, 3 : Affine Model (include the scale)
+	    p.sift.fdSize = 4; 
+	    p.sift.fdBins = 8; // Number of tested directions
+	    p.rod = 0.92f;
+
+	    p.maxEpsilon = 25.0f;
+	    p.minInlierRatio = 0.05f;
+	    
+	    params = new MatchingParameters( p.sift, p.rod, p.maxEpsilon, p.minInlierRatio, p.modelIndex, 1000, p.ransacConfidence, p.prosac, createMatcher( matcherMethod ), reportMatchingRecall, storageIndex( featureStorage ) );
+	    mipProjector = new MaxProjector( numThreads );
+	    return params;
+	}
+	
+	/**
+	Register and fuse the stacks with the current settings. Nothing is shown, the fused stacks are returned.
+	The images set are replaced by their oriented views, so an instance stitches once.
+	@return fused stack, followed by the fused additional channels, in order (see getFusedChannels)
+	*/
+	public ImagePlus[] stitch()
+	{
+		Instrumentation.Probe run = instrumentation.start( "stitch", 0 );
+		try
+		{
+			return stitchStages();
+		}
+		finally
+		{
+			releaseScoringPool();
+			run.stop();
+		}
+	}
+	
+	private ImagePlus[] stitchStages()
+	{
+		if ( impf == null || impb == null )
+			throw new IllegalArgumentException( "The front and back images must be set." );
+		if ( template_bool && ( frontFiltered == null || backFiltered == null ) )
+			throw new IllegalArgumentException( "Both filtered images must be set." );
+		for ( int c = 0; c < channelFronts.size(); ++c )
+			if ( ( channelFronts.get( c ) == null ) != ( channelBacks.get( c ) == null ) )
+				throw new IllegalArgumentException( "Both stacks of an additional channel must be set." );
+		if ( modelUse != "None" && savedModel == null )
+			throw new IllegalArgumentException( "No saved registration model set." );
+		if ( modelUse != "None" && !savedModel.getOrientation().equals( stitchingMethod ) )
+			throw new IllegalArgumentException( "The saved registration model is for the " + savedModel.getOrientation() + " orientation." );
+		
+		long start_time = System.currentTimeMillis();
+		
+		Instrumentation.Probe stage = instrumentation.start( "orientation", 0 );
+		/** Hyperstacks: the first channel is registered, the other ones come before the channels set */
+		List< ImagePlus > fronts = new ArrayList< ImagePlus >();
+		List< ImagePlus > backs = new ArrayList< ImagePlus >();
+		List< Integer > channels = new ArrayList< Integer >();
+		int registered = 1;
+		if ( impf.getNChannels() > 1 || impb.getNChannels() > 1 )
+		{
+			ImagePlus[] cf = splitChannels( impf );
+			ImagePlus[] cb = splitChannels( impb );
+			if ( cf.length != cb.length )
+				throw new IllegalArgumentException( "The front and back hyperstacks have different numbers of channels." );
+			impf = cf[ 0 ];
+			impb = cb[ 0 ];
+			for ( int c = 1; c < cf.length; ++c )
+			{
+				fronts.add( cf[ c ] );
+				backs.add( cb[ c ] );
+				channels.add( c + 1 );
+			}
+			registered = cf.length;
+			IJ.log( "(Info) Hyperstacks of " + cf.length + " channels, registered on channel 1" );
+		}
+		for ( int c = 0; c < channelFronts.size(); ++c )
+		{
+			if ( channelFronts.get( c ) == null ) continue;
+			fronts.add( channelFronts.get( c ) );
+			backs.add( channelBacks.get( c ) );
+			channels.add( registered + c + 1 );
+		}
+		fusedChannels = new int[ fronts.size() + 1 ];
+		fusedChannels[ 0 ] = 1;
+		for ( int c = 0; c < channels.size(); ++c )
+			fusedChannels[ c + 1 ] = channels.get( c );
+		
+		if ( stitchingMethod != "Front - Back"){
+			impf = stackOrientation(impf, stitchingMethod); 
+			impb = stackOrientation(impb, stitchingMethod);
+			for ( int c = 0; c < fronts.size(); ++c )
+			{
+				fronts.set( c, stackOrientation( fronts.get( c ), stitchingMethod ) );
+				backs.set( c, stackOrientation( backs.get( c ), stitchingMethod ) );
+			}
+		}
+		stage.stop();
+		
+		int indb = impb.getStackSize();
+		int ov = this.ov;
+		int MIP = this.MIP;
 		
 		backTemplate = null; frontTemplate = null;
 		if (template_bool)
@@ -246,8 +622,8 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			frontTemplate = new ImagePlus( impf.getTitle(), impf.getStack() );
 			backTemplate = new ImagePlus( impb.getTitle(), impb.getStack() );
 			
-			impf = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
-			impb = WindowManager.getImage( ids[ gd.getNextChoiceIndex() ] );
+			impf = frontFiltered;
+			impb = backFiltered;
 	
 
 			if ( stitchingMethod != "Front - Back"){
@@ -266,20 +642,11 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 		if ( impb.getStackSize() < ov )
 		{
-			IJ.showMessage( "The expected overlap exceed the back stack size." );
-			return;
+			throw new IllegalArgumentException( "The expected overlap exceed the back stack size." );
 		}
-		
-		fusionMethod = gd.getNextChoice(  );
-
-	    /** SIFT parameters Setting */	
-		p.modelIndex = 3; // 1: Rigid Model, 3 : Affine Model (include the scale)
-	    p.sift.fdSize = 4; 
-	    p.sift.fdBins = 8; // Number of tested directions
-	    p.rod = 0.92f;
 
-	    p.maxEpsilon = 25.0f;
-	    p.minInlierRatio = 0.05f;
+	    prepareMatching();
+	    featureCache = new FeatureCache( featureCacheBudget );
 
 	    /** Divers Variables*/
 		ImagePlus impAlignedZYX2;
@@ -295,11 +662,13 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 		IJ.log("Stitching Orientation " + stitchingMethod);
 		IJ.log("MIP Size " + MIP);
+		IJ.log("Slice Search " + mySearchStrategy);
+		IJ.log("Descriptor Matching " + params.matcher.getName());
+		IJ.log("Feature Storage " + featureStorage);
 		IJ.log( " " );
 		
-		/** SIFT Object */
-		FloatArray2DSIFT sift = new FloatArray2DSIFT( p.sift );
-		SIFT ijSIFT = new SIFT( sift );
+		/** SIFT Object, reused by the next job of this thread */
+		SIFT ijSIFT = params.workerSIFT();
 		
 		
 		
@@ -307,42 +676,55 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 		double[] data = new double[12];
 		
-		if ( Reg3D ){
+		boolean refineSaved = modelUse == "Starting point";
+		boolean applySaved = modelUse == "Final transform";
+		if ( refineSaved || applySaved )
+		{
+			IJ.log( "(Info) Saved registration model, " + modelUse + ": " + savedModel );
+			int[] size = savedModel.getBackSize();
+			if ( size[ 0 ] != impb.getWidth() || size[ 1 ] != impb.getHeight() || size[ 2 ] != impb.getStackSize() )
+				IJ.log( "(Warning) The saved registration model is for a back stack of " + size[ 0 ] + "x" + size[ 1 ] + "x" + size[ 2 ] );
+			BestModel3D.set( savedModel.getModel() );
+			indb = Math.min( savedModel.getOverlap(), impb.getStackSize() );
+			if ( refineSaved ) impAlignedZYX = Rotation3D(impb, BestModel3D);
+		}
+		
+		if ( Reg3D && !refineSaved && !applySaved ){
 		for (int l = 1; l<=it; ++l) // Iterations
 		{
 		
 		ImageStack stackZf = impf.getStack();
 		ImageStack stackZb = impAlignedZYX.getStack();
 			
-		fsf.clear();
-        fsb.clear();
-			
 		int l2 = 3*l-2;
 		IJ.log("STEP " + l2 + ": BEST Z ROTATION");
 		
 		/** Find Back Image Overlap */
 		
+		stage = instrumentation.start( "overlap search", l );
 		if (myOVMethod == "Slice-by-Slice"){indb = OverlapFinderSbS(stackZf, stackZb, ijSIFT, ov);}
-		else if (myOVMethod == "Block-by-Block"){indb = recursiveOverlapFinder(stackZf, stackZb, ijSIFT, stackZb.getSize(), split);}
+		else if (myOVMethod == "Block-by-Block"){indb = OverlapFinderBbB(stackZf, stackZb, ijSIFT, split);}
+		stage.stop();
 		
 		IJ.log(" Overlap Size " + indb );
+		featureCache.logStatistics();
 		
-		ImageStack subStackZf = stackZf.crop(0, 0, stackZf.getSize() - indb, stackZf.getWidth(), stackZf.getHeight(), indb);
-		ImageStack subStackZb = stackZb.crop(0, 0, 0, stackZb.getWidth(), stackZb.getHeight(), indb);
-		fsf.clear();
-		fsb.clear();
+		stage = instrumentation.start( "Z registration", l );
+		ImageStack subStackZb = makeSubstack(stackZb, 1, indb);
 		
-		AbstractAffineModel2D< ? > BestModelZ = CompareCrossSection(subStackZf, subStackZb, ijSIFT, MIP);
+		MatchResult BestModelZ = CompareCrossSection(stackZf, stackZf.getSize() - indb + 1, true, subStackZb, ijSIFT, MIP);
 		IJ.log("STEP 2");
 		/** Back Substack Affine Registration */ 
-		if ( modelFound )
+		if ( BestModelZ.modelFound )
 		{
-			Model3D(null, null, BestModelZ);
+			Model3D(null, null, BestModelZ.model);
 			impAlignedZYX = Rotation3D(impb, BestModel3D);
 		}
         else{
             IJ.log( "No model found for the data" );
         }
+		stage.count( "inliers", BestModelZ.getInlierCount() );
+		stage.stop();
 
 		/** Show intermediate steps */
 		
@@ -359,42 +741,32 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		IJ.log(" ");
 		IJ.log("STEP " + l2 + ": BEST X ROTATION");
 		
-		/** Parameter setting */
-		fsf.clear();
-        fsb.clear();	
-		
-		/** Rotation of the front substack around y */
-		impf = StackRotation(impf, 0, 90, 0);
-		ImageStack stackYf = impf.getStack();
-		
-		/** Rotation of the back substack around y */
-		impAlignedZYX = StackRotation(impAlignedZYX, 0, 90, 0);
-		ImageStack stackYb = impAlignedZYX.getStack();
-		
-		/** Cropping the overlap */		
-		ImageStack subStackYf = stackYf.crop(stackYf.getWidth()-indb,0,0,indb,stackYf.getHeight(),stackYf.getSize());
-		ImageStack subStackYb = stackYb.crop(0, 0, 0, indb, stackYb.getHeight(), stackYb.getSize());
+		stage = instrumentation.start( "X registration", l );
+		/** Views of the overlap rotated around y, the overlap slices of the front and back stacks become their first x columns */
+		ImageStack subStackYf = new OrientedStack(makeSubstack(stackZf, stackZf.getSize()-indb+1, stackZf.getSize()), 0, 90, 0, false);
+		ImageStack subStackYb = new OrientedStack(makeSubstack(impAlignedZYX.getStack(), 1, indb), 0, 90, 0, false);
 		
 		/** Comparison */
-		AbstractAffineModel2D< ? > BestModelX = CompareCrossSection(subStackYf, subStackYb, ijSIFT, MIP);
+		MatchResult BestModelX = CompareCrossSection(subStackYf, subStackYb, ijSIFT, MIP);
 		
 		/** Alignment */
-		if ( modelFound )
+		if ( BestModelX.modelFound )
 		{
-			Model3D(BestModelX, null, null);
+			Model3D(BestModelX.model, null, null);
 			impAlignedZYX = Rotation3D(impb, BestModel3D);
 			if (showStep)
 			{
 				impAlignedZYX2 = StackRotation(impAlignedZYX, 0, 90, 0);
 				impAlignedZYX2.setTitle(String.valueOf( l2 ));
-				impAlignedZYX2.show();
+				diagnostics.image( impAlignedZYX2 );
 			}
 		}
 		else
 		{
 			IJ.log( "No model found for the data" );
-			impAlignedZYX = StackRotation(impAlignedZYX, 0, -90, 0);
 		}
+		stage.count( "inliers", BestModelX.getInlierCount() );
+		stage.stop();
 		
 		BestModel3D.toArray(data);
 		IJ.log("1| "+ data[0] + "\t| " + data[3] + "\t| " + data[6] + "\t| " + data[9]);
@@ -411,42 +783,31 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		IJ.log(" ");
 		IJ.log("STEP " + 3*l + ": BEST Y ROTATION");
 		
-		/** Parameter setting */
-		fsf.clear();
-        fsb.clear();
-		
-		/** Rotation of the front substack around x */
-		impf = StackRotation(impf2, -90, 0, 0);
-		ImageStack stackXf = impf.getStack();
-		
-		/** Rotation of the back substack around x */
-		impAlignedZYX = StackRotation(impAlignedZYX, -90, 0, 0);
-		ImageStack stackXb = impAlignedZYX.getStack();
-		
-		/** Cropping the overlap */
-		ImageStack subStackXf = stackXf.crop(0, stackXf.getHeight()-indb, 0, stackXf.getWidth(), indb, stackXf.getSize());
-		ImageStack subStackXb = stackXb.crop(0, 0, 0, stackXb.getWidth(), indb, stackXb.getSize());
+		stage = instrumentation.start( "Y registration", l );
+		/** Views of the overlap rotated around x, the overlap slices become the first y rows */
+		ImageStack subStackXf = new OrientedStack(makeSubstack(stackZf, stackZf.getSize()-indb+1, stackZf.getSize()), -90, 0, 0, false);
+		ImageStack subStackXb = new OrientedStack(makeSubstack(impAlignedZYX.getStack(), 1, indb), -90, 0, 0, false);
 		
 		/** Comparison */
-		AbstractAffineModel2D < ? > BestModelY = CompareCrossSection(subStackXf, subStackXb, ijSIFT, MIP);
+		MatchResult BestModelY = CompareCrossSection(subStackXf, subStackXb, ijSIFT, MIP);
 		
-		if ( modelFound )
+		if ( BestModelY.modelFound )
 		{
-			Model3D(null, BestModelY, null);
+			Model3D(null, BestModelY.model, null);
 			impAlignedZYX = Rotation3D(impb, BestModel3D);
 			if (showStep)
 			{
 				impAlignedZYX2 = StackRotation(impAlignedZYX, -90, 0, 0);
 				impAlignedZYX2.setTitle(String.valueOf( 3*l ));
-				impAlignedZYX2.show();
+				diagnostics.image( impAlignedZYX2 );
 			}
 		}
 		else
 		{
 			IJ.log( "No model found for the data" );
-			impAlignedZYX = StackRotation(impAlignedZYX, 90, 0, 0);
-
 		}
+		stage.count( "inliers", BestModelY.getInlierCount() );
+		stage.stop();
 		
 		BestModel3D.toArray(data);
 		IJ.log("1| "+ data[0] + "\t| " + data[3] + "\t| " + data[6] + "\t| " + data[9]);
@@ -457,7 +818,8 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 
 		/** -------------------------- REFORMAT IMAGE AS AT BEGINNING -------------------------- */
 
-		impf = impf2.duplicate();
+		impf = impf2; // impf2 is never modified, keeping its stack lets the feature cache recognize it
+		// The X and Y steps only read views, impAlignedZYX keeps the Z orientation
 
 
 		}// Loop end
@@ -465,60 +827,88 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 		/** -------------------------- LAST OVERLAP EXTRACTION -------------------------- */
 		
-		int l2 = 3*it + 1;
-		IJ.log("STEP " + l2 + ": BEST Z ROTATION");
-		
-		fsf.clear();
-        fsb.clear();
+		int inliers = 0, candidates = 0;
+		double meanError = 0;
+		if ( applySaved )
+		{
+			/** Resampling only */
+			IJ.log( "STEP: SAVED FINAL TRANSFORM" );
+			impAlignedZYX = Rotation3D( template_bool ? backTemplate : impb, BestModel3D );
+			if ( template_bool )
+			{
+				impf = new ImagePlus( frontTemplate.getTitle(), frontTemplate.getStack() );
+			}
+			inliers = savedModel.getInliers();
+			candidates = savedModel.getCandidates();
+			meanError = savedModel.getMeanError();
+		}
+		else
+		{
+			int l2 = 3*it + 1;
+			IJ.log("STEP " + l2 + ": BEST Z ROTATION");
 		
-		ImageStack stackZf = impf.getStack();
-		ImageStack stackZb = impAlignedZYX.getStack();
+			ImageStack stackZf = impf.getStack();
+			ImageStack stackZb = impAlignedZYX.getStack();
 		
-		/** Find Back Image Overlap */
-		fsf.clear();
-		fsb.clear();
-		int start = 1; int end = stackZb.getSize();
-		if ( Reg3D == true){
-			start = indb - 250;
-			if ( start < 10 ){ start = 1; }
-			end = indb + 250;
-			if ( end > stackZb.getSize() ){ end = stackZb.getSize(); }
-		}
+			/** Find Back Image Overlap */
+			int start = 1; int end = stackZb.getSize();
+			if ( refineSaved ){
+				start = Math.max( 1, indb - refineRange );
+				end = Math.min( stackZb.getSize(), indb + refineRange );
+			}
+			else if ( Reg3D == true){
+				start = indb - 250;
+				if ( start < 10 ){ start = 1; }
+				end = indb + 250;
+				if ( end > stackZb.getSize() ){ end = stackZb.getSize(); }
+			}
 
-		indb = OverlapFinder(stackZf, stackZb, ijSIFT, start, end);
+			stage = instrumentation.start( "overlap search", it + 1 );
+			indb = OverlapFinder(stackZf, stackZb, ijSIFT, start, end);
+			stage.stop();
+			featureCache.logStatistics();
 		
-		/** Cropping the overlap */
-		ImageStack subStackZf = stackZf.crop(0, 0, stackZf.getSize() - indb, stackZf.getWidth(), stackZf.getHeight(), indb);
-		ImageStack subStackZb = stackZb.crop(0, 0, 0, stackZb.getWidth(), stackZb.getHeight(), indb);
+			stage = instrumentation.start( "Z registration", it + 1 );
+			/** Cropping the overlap */
+			ImageStack subStackZb = makeSubstack(stackZb, 1, indb);
 		
-		/** Comparison */
-		fsf.clear();
-		fsb.clear();
-		if ( indb < MIP )
-		{
-			MIP = indb;
-		}
-		AbstractAffineModel2D< ? > BestModelZ = CompareCrossSection(subStackZf, subStackZb, ijSIFT, MIP);
+			/** Comparison */
+			if ( indb < MIP )
+			{
+				MIP = indb;
+			}
+			MatchResult BestModelZ = CompareCrossSection(stackZf, stackZf.getSize() - indb + 1, true, subStackZb, ijSIFT, MIP);
+			inliers = BestModelZ.getInlierCount();
+			candidates = BestModelZ.candidates.size();
+			meanError = BestModelZ.modelFound ? BestModelZ.model.getCost() : 0;
 		
-		if ( modelFound )
-		{
-			Model3D(null, null, BestModelZ);
-			impAlignedZYX = Rotation3D(impb, BestModel3D);
-			if (template_bool)
+			if ( BestModelZ.modelFound )
 			{
-				impAlignedZYX = Rotation3D(backTemplate, BestModel3D);
-				impf = new ImagePlus( frontTemplate.getTitle(),frontTemplate.getStack() );
+				Model3D(null, null, BestModelZ.model);
+				impAlignedZYX = Rotation3D(impb, BestModel3D);
+				if (template_bool)
+				{
+					impAlignedZYX = Rotation3D(backTemplate, BestModel3D);
+					impf = new ImagePlus( frontTemplate.getTitle(),frontTemplate.getStack() );
+				}
 			}
-		}
-		else
-		{
-			IJ.log( "No model found for the data" );
+			else
+			{
+				IJ.log( "No model found for the data" );
+			}
+			stage.count( "inliers", inliers );
+			stage.stop();
+		
+			BestModel3D.toArray(data);
+			IJ.log("1| "+ data[0] + "\t|" + data[3] + "\t|" + data[6] + "\t|" + data[9]);
+			IJ.log("2| "+ data[1] + "\t|" + data[4] + "\t|" + data[7] + "\t|" + data[10]);
+			IJ.log("3| "+ data[2] + "\t|" + data[5] + "\t|" + data[8] + "\t|" + data[11]);
 		}
 		
-		BestModel3D.toArray(data);
-		IJ.log("1| "+ data[0] + "\t|" + data[3] + "\t|" + data[6] + "\t|" + data[9]);
-		IJ.log("2| "+ data[1] + "\t|" + data[4] + "\t|" + data[7] + "\t|" + data[10]);
-		IJ.log("3| "+ data[2] + "\t|" + data[5] + "\t|" + data[8] + "\t|" + data[11]);
+		registration = new RegistrationModel( BestModel3D, indb, stitchingMethod,
+				new int[]{ impf2.getWidth(), impf2.getHeight(), impf2.getStackSize() },
+				new int[]{ impb.getWidth(), impb.getHeight(), impb.getStackSize() }, inliers, candidates, meanError );
+		IJ.log( "(Info) Registration: " + registration );
 		
 		/** Show final back stack */
 		//impAlignedZYX.setTitle("Final Back Stack"); 
@@ -526,49 +916,52 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 		/** -------------------------- IMAGE FUSION -------------------------- */
 		
+		/** The front MIPs are no longer compared */
+		mipProjector().clear();
+		
 		IJ.log(" ");
 		IJ.log( "STEP: IMAGE FUSION" );
 		
+		List< ImagePlus > fused = new ArrayList< ImagePlus >();
 		String title = "Fused Image";
-		if ( c2 || c3 )
+		if ( !fronts.isEmpty() )
 		{
 			title = title + " Channel1";
 		}
 		
+		if ( streamingFusion && stitchingMethod != "Front - Back" && stitchingMethod != "Back - Front" )
+		{
+			IJ.log( "(Warning) The fused stack is rotated back to the " + stitchingMethod + " orientation in memory" );
+		}
+		
+		stage = instrumentation.start( "fusion", 0 );
 		ImagePlus FinalImg = fuseImages(impf, impAlignedZYX, indb, fusionMethod, title); 
 		if ( stitchingMethod != "Front - Back"){
 				FinalImg = reverseStackOrientation(FinalImg, stitchingMethod);
 			}
-		FinalImg.show(); FinalImg.draw();
-		
-		if (c2)
-		{
-			ImagePlus impAligned2 = Rotation3D(channel2back, BestModel3D);
-			ImagePlus FinalImg2 = fuseImages(channel2front, impAligned2, indb, fusionMethod, "Fused Image Channel2"); 
-			if ( stitchingMethod != "Front - Back"){
-				FinalImg2 = reverseStackOrientation(FinalImg2, stitchingMethod);
-			}
-			FinalImg2.show(); FinalImg2.draw();
-		}
+		fused.add( FinalImg );
 		
-		if (c3)
+		/** The channels are independent once the model is known: they are aligned together */
+		ImagePlus[] aligned = alignChannels( backs, BestModel3D );
+		for ( int c = 0; c < aligned.length; ++c )
 		{
-			ImagePlus impAligned3 = Rotation3D(channel3back, BestModel3D);
-			ImagePlus FinalImg3 = fuseImages(channel3front, impAligned3, indb, fusionMethod, "Fused Image Channel3"); 
+			ImagePlus channelImg = fuseImages( fronts.get( c ), aligned[ c ], indb, fusionMethod, "Fused Image Channel" + channels.get( c ) );
 			if ( stitchingMethod != "Front - Back"){
-				FinalImg3 = reverseStackOrientation(FinalImg3, stitchingMethod);
+				channelImg = reverseStackOrientation( channelImg, stitchingMethod );
 			}
-			FinalImg3.show(); FinalImg3.draw();
+			fused.add( channelImg );
 		}
+		stage.stop();
 		
-		fsf.clear();
-        fsb.clear();
+		featureCache.clear();
 		
+		for ( StageMetrics m : instrumentation.getStages() )
+			if ( m.parent.equals( "stitch" ) ) IJ.log( "(Info) " + m );
 		IJ.log( " took " + ( System.currentTimeMillis() - start_time ) + "ms" );
 	
 		IJ.log( "* Done *" );
 		IJ.log(" ");
-		Toolkit.getDefaultToolkit().beep();
+		return fused.toArray( new ImagePlus[ fused.size() ] );
     }
 	
 		/** Functions */
@@ -585,37 +978,17 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		public int OverlapFinder(ImageStack stackf, ImageStack stackb, SIFT ijSIFT, int start, int end)
 		{
 		
-			ImageProcessor ipb;
 			ImageProcessor ipf = stackf.getProcessor( stackf.getSize() );
             
 			/** Features extraction of the last slice of the front substack */
 			//long start_time = System.currentTimeMillis();
-			ijSIFT.extractFeatures( ipf, fsf );// fsf stores the features
+			List< Feature > fsf = sliceFeatures( stackf, stackf.getSize(), ijSIFT );// fsf stores the features
 		
-			float[] bestModelInliers = new float[end - start + 1]; //number of matches
-			float[] sliceNumber = new float[end - start + 1];
-			int ind = 1; //maximum indice
-			float max = 0; //maximum value 
-			
 			/** Comparison with slices from the back stack */
-			for ( int i = start; i <= end; ++i )
-			{
-				ipb = stackb.getProcessor( i );
-				Vector< PointMatch > inliers = searchBestInliers(ipf, ipb, ijSIFT, false);	
-			
-				bestModelInliers[i - start] = (float) inliers.size(); 
-				sliceNumber[i - start] = (float) i;
-				
-				/** Best model index computation */
-				if ( inliers.size() >= max) 
-				{
-					ind = i;
-					max = inliers.size();
-				}
-			}
+			OverlapSearch search = searchSlices(ipf, stackb, fsf, ijSIFT, start, end);
+			int ind = search.getBest(); //maximum indice
 
-			Plot myplot = new Plot("Correspondence","Slice Number","Correspondence",sliceNumber,bestModelInliers);
-			myplot.show();
+			diagnostics.plot("Correspondence","Slice Number","Correspondence",search.getSlices(),search.getScores());
 		
 			/*final GenericDialog gd2 = new GenericDialog( "Warning" );
 			gd2.addMessage( "If the correspondence graph is not a bell-shaped curve, the registration may not be accurate. In such case try to increase the overlap size." );
@@ -626,7 +999,7 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			IJ.log( "(Info) Image Overlap Size : " + ind + " pixels");
 
 			
-			searchBestInliers(ipf, stackb.getProcessor(ind), ijSIFT, true);
+			searchBestInliers(ipf, fsf, stackb, ind, ijSIFT, true);
 			
         	return ind;
     		}
@@ -638,33 +1011,52 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		@param back substack
 		@param sift object with parameters set as detailed in run method
 		@param MIP size
-		@return computed model
+		@return features, inliers and computed model
 		*/
-		public AbstractAffineModel2D< ? > CompareCrossSection(ImageStack subStack1, ImageStack subStack2, SIFT ijSIFT, int MIP)
+		public MatchResult CompareCrossSection(ImageStack subStack1, ImageStack subStack2, SIFT ijSIFT, int MIP)
 		{
-			/** Copy of the substacks */
-			ImageStack frontCOPY = subStack1.duplicate(); 
-			ImageStack backCOPY = subStack2.duplicate();
+			return CompareCrossSection(subStack1, 1, false, subStack2, ijSIFT, MIP);
+		}
+		
+		/**
+		Compute the best 2D model between a range of the front stack and the back substack
+		@param front stack
+		@param first front slice of the overlap, the range has the size of the back substack
+		@param true if the front stack does not change between calls, its MIPs are then reused
+		@param back substack
+		@param sift object with parameters set as detailed in run method
+		@param MIP size
+		@return features, inliers and computed model
+		*/
+		public MatchResult CompareCrossSection(ImageStack stack1, int first1, boolean reuse1, ImageStack subStack2, SIFT ijSIFT, int MIP)
+		{
+			int depth = subStack2.getSize();
+			ImageStack subStack1;
 			
 			/** MIP construction */
 			if ( MIP > 1 )
 			{
 				int step = MIP;
 				
-				if ( MIP > subStack1.getSize() )
+				if ( MIP > depth )
 				{
-					step = subStack1.getSize();
+					step = depth;
 				}
-				subStack1 = createMIP(subStack1, step);
+				subStack1 = mipProjector().createMIP(stack1, first1, first1 + depth - 1, step, reuse1);
 				subStack2 = createMIP(subStack2, step);
 			}
+			else
+			{
+				subStack1 = makeSubstack(stack1, first1, first1 + depth - 1);
+			}
 			
 			/** Parameters initialization */
 			ImageProcessor ip2;
 			ImageProcessor ip1;
 			
-			fsf.clear();
-			fsb.clear(); 
+			/** Features of every MIP of the overlap, the largest lists of the job */
+			List< Feature > fsf = params.newFeatureList();
+			List< Feature > fsb = params.newFeatureList();
 		
 			int taille = subStack2.getSize();
 				
@@ -672,187 +1064,369 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			for ( int i = 1; i <= taille; ++i )
 			{	
 				ip1 = subStack1.getProcessor( i );
-				ijSIFT.extractFeatures( ip1, fsf );
+				FeatureCache.extract( ijSIFT, ip1, fsf );
 			
 				ip2 = subStack2.getProcessor( i );
-				ijSIFT.extractFeatures( ip2, fsb);
+				FeatureCache.extract( ijSIFT, ip2, fsb );
 			}
 			
-			System.out.print( "identifying correspondences using brute force ..." );
-			Vector< PointMatch > candidates = FloatArray2DSIFT.createMatches( fsb, fsf, 1.5f, null, Float.MAX_VALUE, p.rod );
-
-			Vector< PointMatch > inliers = new Vector< PointMatch >();
-               
-			AbstractAffineModel2D< ? > BestModel;
-			switch ( p.modelIndex )
-			{
-				case 0: BestModel = new TranslationModel2D();
-						break;
-				case 1: BestModel = new RigidModel2D();
-						break;
-				case 2: BestModel = new SimilarityModel2D();
-						break;
-				case 3: BestModel = new AffineModel2D();
-						break;
-				default: BestModel = new RigidModel2D();
-			}
-		
-			try
-			{
-				modelFound = BestModel.filterRansac(candidates,inliers,1000,p.maxEpsilon,p.minInlierRatio );
-			}
-			catch ( Exception e )
-			{
-            	modelFound = false;
-            	System.err.println( e.getMessage() );
-        	}
+			MatchResult result = matchFeatures( fsf, fsb, params );
 			
-			if ( modelFound )
+			if ( result.modelFound )
 			{
 				double[][] data = new double[2][3];
-				BestModel.toMatrix(data);
+				result.model.toMatrix(data);
 				IJ.log("Rotation : "+ Math.acos(data[0][0])*(180/Math.PI)+"°");
 				IJ.log("Horizontal Translation : "+ data[0][2]+"pixels");
 				IJ.log("Vertical Translation : "+ data[1][1]+"pixels");
 				
-				ip1 = createMIP(frontCOPY, frontCOPY.getSize()).getProcessor(1);
-				ip2 = createMIP(backCOPY, backCOPY.getSize()).getProcessor(1);
-				displayFeatures( ip1, ip2, candidates, inliers, modelFound );
+				/** MIP of the whole overlap, max of the block MIPs */
+				ip1 = MaxProjector.project(subStack1, 1, subStack1.getSize());
+				ip2 = MaxProjector.project(subStack2, 1, subStack2.getSize());
+				displayFeatures( ip1, ip2, result.candidates, result.inliers, result.modelFound );
 				
-				IJ.log( "(Info) Number of Matching Features : " + inliers.size() );
+				IJ.log( "(Info) Number of Matching Features : " + result.inliers.size() );
 			}
 			
-			return BestModel;
+			return result;
 		}
 		
 		/**
 		Compute the partial MIP stack
 		@param stack
 		@param MIP size
-		@return the real overlap size
+		@return MIP stack, the last block also takes the remaining slices
 		*/
 		public ImageStack createMIP(ImageStack myStack, int step)
 		{
-
-			ImagePlus myIM = new ImagePlus( "myStack", myStack ); 
-			ImageProcessor myIP = myIM.getProcessor();
-				
-			ImageStack myMIP = new ImageStack( myIM.getWidth(), myIM.getHeight() ); 
-
-			int Zmax = myIM.getStackSize()/step;
-			int extra = myIM.getStackSize() - Zmax*step;
-			for (int j = 0; j < Zmax; j++)
+			return mipProjector().createMIP( myStack, step );
+		}
+		
+		private MaxProjector mipProjector()
+		{
+			if ( mipProjector == null )
 			{
-				ImageStack myTemp = new ImageStack( myIM.getWidth(), myIM.getHeight() );
-				ImagePlus imTemp;
-				for ( int i = 1; i <= step; i++ )
-				{
-					myIM.setSlice( i+step*j );
-					myTemp.addSlice( myIP );
-				}
-				if ( (j == Zmax - 1 ) && ( extra != 0 ) )
-				{
-					for ( int i = 1; i <= extra; i++ )
-					{
-						myIM.setSlice( i+step*Zmax );
-						myTemp.addSlice( myIP );
-					}
-				}
-				imTemp = new ImagePlus( "myTemp", myTemp );
-				IJ.run(imTemp, "Z Project...", "projection=[Max Intensity]");
-				imTemp = WindowManager.getCurrentImage();
-				imTemp.setSlice(1);
-				myMIP.addSlice( imTemp.getProcessor( ) );
-				imTemp.hide();	
+				mipProjector = new MaxProjector( numThreads );
 			}
-			return myMIP;
+			return mipProjector;
 		}
 	
-    	public Vector< PointMatch > searchBestInliers(ImageProcessor ip1, ImageProcessor ip2, SIFT ijSIFT, boolean showInfoBoolean)
+		/**
+		Match the back slice against the front features
+		@param front slice, only used for display
+		@param features of the front slice (read only)
+		@param back slice
+		@param sift object owned by the calling thread
+		@param show the alignment info
+		@return features, inliers and model of this comparison
+		*/
+    	public MatchResult searchBestInliers(ImageProcessor ip1, List< Feature > fsf, ImageProcessor ip2, SIFT ijSIFT, boolean showInfoBoolean)
+		{
+			List< Feature > fsb = params.newFeatureList();
+			FeatureCache.extract( ijSIFT, ip2, fsb );
+			
+			return searchBestInliers(ip1, fsf, ip2, fsb, showInfoBoolean);
+		}
+		
+		/**
+		Match a slice of the back stack against the front features, the slice features come from the feature cache
+		@param front slice, only used for display
+		@param features of the front slice (read only)
+		@param back stack
+		@param back slice index
+		@param sift object owned by the calling thread
+		@param show the alignment info
+		@return features, inliers and model of this comparison
+		*/
+		public MatchResult searchBestInliers(ImageProcessor ip1, List< Feature > fsf, ImageStack stackb, int slice, SIFT ijSIFT, boolean showInfoBoolean)
+		{
+			List< Feature > fsb = sliceFeatures( stackb, slice, ijSIFT );
+			
+			return searchBestInliers(ip1, fsf, showInfoBoolean ? stackb.getProcessor( slice ) : null, fsb, showInfoBoolean);
+		}
+		
+		private MatchResult searchBestInliers(ImageProcessor ip1, List< Feature > fsf, ImageProcessor ip2, List< Feature > fsb, boolean showInfoBoolean)
 		{
+			MatchResult result = matchFeatures( fsf, fsb, params );
 			
-			fsb.clear();
+			if ( result.modelFound && showInfoBoolean )
+			{
+				displayFeatures( ip1, ip2, result.candidates, result.inliers, result.modelFound );
+            }
 			
-			ijSIFT.extractFeatures( ip2, fsb);
-			System.out.print( "identifying correspondences using brute force ..." );
-			Vector< PointMatch > candidates = FloatArray2DSIFT.createMatches( fsb, fsf, 1.5f, null, Float.MAX_VALUE, p.rod );
+        	return result;
+    	}
 
-			Vector< PointMatch > inliers = new Vector< PointMatch >();
-                        
-			AbstractAffineModel2D< ? > BestModel;
-			switch ( p.modelIndex )
+    	public MatchResult searchBestModel(List< Feature > fsf, ImageProcessor ipb, SIFT ijSIFT)
+		{
+			return searchBestInliers(null, fsf, ipb, ijSIFT, false);
+    	}
+		
+		/**
+		Features of one stack slice, through the feature cache when there is one
+		@param stack
+		@param slice index
+		@param sift object owned by the calling thread
+		@return features of the slice, read only
+		*/
+		public List< Feature > sliceFeatures(ImageStack stack, int slice, SIFT ijSIFT)
+		{
+			if ( featureCache != null )
 			{
-				case 0: BestModel = new TranslationModel2D();
-						break;
-				case 1: BestModel = new RigidModel2D();
-						break;
-				case 2: BestModel = new SimilarityModel2D();
-						break;
-				case 3: BestModel = new AffineModel2D();
-						break;
-				default: BestModel = new RigidModel2D();
+				return featureCache.getFeatures( stack, slice, params, ijSIFT );
 			}
+			List< Feature > features = params.newFeatureList();
+			FeatureCache.extract( ijSIFT, stack.getProcessor( slice ), features );
+			return features;
+		}
+		
+		/**
+		@param name of the matching method, one of matcherStrings
+		@return matcher
+		*/
+		public static FeatureMatcher createMatcher(String method)
+		{
+			if ( method.equals( matcherStrings[ 1 ] ) ) return new KdTreeMatcher();
+			if ( method.equals( matcherStrings[ 2 ] ) ) return new KdTreeMatcher( 4, 256, 0 );
+			if ( method.equals( matcherStrings[ 3 ] ) ) return new LinearScanMatcher();
+			return new BruteForceMatcher();
+		}
+		
+		/**
+		@param name of the feature storage, one of featureStorages
+		@return featureStorage of MatchingParameters
+		*/
+		private static int storageIndex(String storage)
+		{
+			for ( int i = 0; i < featureStorages.length; ++i )
+				if ( featureStorages[ i ].equals( storage ) ) return i;
+			return 0;
+		}
+		
+		/**
+		Correspondences and RANSAC model between two feature lists. Only local state is used,
+		so it can be called from several threads at once.
+		@param front features
+		@param back features
+		@param matching parameters
+		@return candidates, inliers and model
+		*/
+		public static MatchResult matchFeatures(List< Feature > fsf, List< Feature > fsb, MatchingParameters mp)
+		{
+			return matchFeatures( fsf, fsb, mp, 0 );
+		}
 		
+		/**
+		Correspondences and RANSAC model between two feature lists, RANSAC is skipped when there are
+		fewer candidates than the inliers of a better comparison
+		@param front features
+		@param back features
+		@param matching parameters
+		@param inlier count to beat, 0 to always estimate the model
+		@return candidates, inliers and model
+		*/
+		public static MatchResult matchFeatures(List< Feature > fsf, List< Feature > fsb, MatchingParameters mp, int mustBeat)
+		{
+			Instrumentation.Probe stage = Instrumentation.begin( "matching" );
+			Vector< PointMatch > candidates = mp.matcher.match( fsb, fsf, mp.rod );
+			Instrumentation.count( "candidates", candidates.size() );
+			Instrumentation.end( stage );
+			if ( mp.reportRecall && !( mp.matcher instanceof BruteForceMatcher ) )
+			{
+				Vector< PointMatch > reference = recallReference.match( fsb, fsf, mp.rod );
+				IJ.log( "(Info) Matching recall " + IJ.d2s( 100 * BruteForceMatcher.recall( reference, candidates ), 1 ) + "% (" +
+					candidates.size() + " candidates, " + reference.size() + " by brute force)" );
+			}
+
+			Vector< PointMatch > inliers = new Vector< PointMatch >();
+			AbstractAffineModel2D< ? > model = mp.createModel();
+			if ( candidates.size() < mustBeat )
+			{
+				return new MatchResult( fsf, fsb, candidates, inliers, model, false );
+			}
+			/** Too few candidates to fit the model, usual for slices that do not match: no model, nothing to report */
+			if ( candidates.size() < model.getMinNumMatches() )
+			{
+				return new MatchResult( fsf, fsb, candidates, inliers, model, false );
+			}
+			
+			boolean found;
+			stage = Instrumentation.begin( "RANSAC" );
 			try
 			{
-				modelFound = BestModel.filterRansac(candidates,inliers,1000,p.maxEpsilon,p.minInlierRatio );
+				found = mp.createRansac().filterRansac( model, candidates, inliers, mp.maxEpsilon, mp.minInlierRatio );
 			}
 			catch ( Exception e )
 			{
-            	modelFound = false;
-            	System.err.println( e.getMessage() );
+            	/** Unexpected, the candidates are enough to fit the model */
+            	found = false;
+            	IJ.log( "(Warning) RANSAC failed (" + e + "), no model for this comparison" );
         	}
+			Instrumentation.count( "inliers", inliers.size() );
+			Instrumentation.end( stage );
 			
-			if ( modelFound )
+			return new MatchResult( fsf, fsb, candidates, inliers, model, found );
+		}
+		
+		/**
+		Score every back slice of a range, see the scoreSlices below
+		@return number of inliers for each slice from start to end, NaN for the slices skipped
+		*/
+		public float[] scoreSlices(ImageStack stackb, List< Feature > features, SIFT ijSIFT, int start, int end)
+		{
+			int[] slices = new int[end - start + 1];
+			for ( int i = start; i <= end; ++i )
 			{
-				if ( showInfoBoolean )
+				slices[i - start] = i;
+			}
+			AtomicInteger skipped = new AtomicInteger( 0 );
+			float[] scores = scoreSlices(stackb, features, ijSIFT, slices, new AtomicInteger( 0 ), skipped);
+			IJ.log( "(Info) RANSAC skipped on " + skipped.get() + " of " + scores.length + " slices" );
+			return scores;
+		}
+		
+		/**
+		Score candidate back slices against the features of the front slice. Each slice is
+		independent, so with numThreads > 1 the slices are scored concurrently, every worker
+		using its own SIFT instance and its own feature list. A slice with fewer candidates than
+		the best inlier count cannot win: its RANSAC is skipped and it scores NaN, so it is left out
+		of the correspondence curve and of the best slice. The slices are scored in batches and the
+		best count only moves between batches, so the skipped slices do not depend on the order in
+		which the workers finish.
+		@param back stack
+		@param features of the front slice (read only)
+		@param sift object with parameters set as detailed in run method
+		@param slices to score
+		@param best inlier count so far, shared by successive calls of one search
+		@param incremented for each slice whose RANSAC was skipped
+		@return number of inliers for each slice, NaN when skipped
+		*/
+		private float[] scoreSlices(final ImageStack stackb, final List< Feature > features, SIFT ijSIFT, final int[] slices, final AtomicInteger best, final AtomicInteger skipped)
+		{
+			final float[] scores = new float[slices.length];
+			Instrumentation.count( "slices evaluated", slices.length );
+			final int batch = Math.max( SKIP_BATCH, numThreads );
+			
+			/** One SIFT object per worker, FloatArray2DSIFT is not thread safe */
+			final MatchingParameters mp = params;
+			final boolean parallel = numThreads > 1 && slices.length > 1;
+			final ExecutorService pool = parallel ? scoringPool() : null;
+			final List< Future< Float > > tasks = new ArrayList< Future< Float > >();
+			try
+			{
+				for ( int b0 = 0; b0 < slices.length; b0 += batch )
 				{
-					double[][] data = new double[2][3];
-					BestModel.toMatrix(data);
-					displayFeatures( ip1, ip2, candidates, inliers, modelFound );
+					final int b1 = Math.min( slices.length, b0 + batch );
+					final int mustBeat = best.get();
+					if ( !parallel )
+					{
+						for ( int i = b0; i < b1; ++i )
+						{
+							scores[i] = scoreSlice(stackb, slices[i], features, ijSIFT, mustBeat, skipped);
+						}
+					}
+					else
+					{
+						tasks.clear();
+						for ( int i = b0; i < b1; ++i )
+						{
+							final int slice = slices[i];
+							tasks.add( pool.submit( Instrumentation.propagate( new Callable< Float >()
+							{
+								public Float call()
+								{
+									return scoreSlice(stackb, slice, features, mp.workerSIFT(), mustBeat, skipped);
+								}
+							} ) ) );
+						}
+						
+						for ( int i = b0; i < b1; ++i )
+						{
+							try
+							{
+								scores[i] = tasks.get( i - b0 ).get().floatValue();
+							}
+							catch ( ExecutionException e )
+							{
+								IJ.log( "(Warning) Scoring of back slice " + slices[i] + " failed (" + e.getCause() + "), it scores 0" );
+							}
+						}
+					}
+					
+					/** The bound of the next batch, NaN never compares greater */
+					for ( int i = b0; i < b1; ++i )
+					{
+						if ( scores[i] > best.get() ) best.set( (int) scores[i] );
+					}
 				}
-            }
+			}
+			catch ( InterruptedException e )
+			{
+				/** The workers outlive the search, its remaining slices are dropped */
+				for ( Future< Float > task : tasks )
+					task.cancel( true );
+				Thread.currentThread().interrupt();
+			}
 			
-        	return inliers;
-    	}
-
-    	public AbstractAffineModel2D< ? > searchBestModel(ImageProcessor ipb, SIFT ijSIFT)
+			return scores;
+		}
+		
+		/**
+		Search the back slice with the most inliers with the front slice, with the configured strategy
+		@param front slice
+		@param back stack
+		@param features of the front slice (read only)
+		@param sift object with parameters set as detailed in run method
+		@param first slice of the range
+		@param last slice of the range
+		@return search holding the scored slices and the best one
+		*/
+		public OverlapSearch searchSlices(ImageProcessor ipf, final ImageStack stackb, final List< Feature > features, final SIFT ijSIFT, int start, int end)
 		{
-			fsb.clear();
-			ijSIFT.extractFeatures( ipb, fsb );
-                        
-			System.out.print( "identifying correspondences using brute force ..." );
-			Vector< PointMatch > candidates = FloatArray2DSIFT.createMatches( fsb, fsf, 1.5f, null, Float.MAX_VALUE, p.rod );
-
-			Vector< PointMatch > inliers = new Vector< PointMatch >();
-                        
-			AbstractAffineModel2D< ? > BestModel;
-			switch ( p.modelIndex )
+			final AtomicInteger best = new AtomicInteger( 0 );
+			final AtomicInteger skipped = new AtomicInteger( 0 );
+			OverlapSearch search = new OverlapSearch( new OverlapSearch.Scorer()
 			{
-				case 0: BestModel = new TranslationModel2D();
-						break;
-				case 1: BestModel = new RigidModel2D();
-						break;
-				case 2: BestModel = new SimilarityModel2D();
-						break;
-				case 3: BestModel = new AffineModel2D();
-						break;
-				default: BestModel = new RigidModel2D();
-			}
+				public float[] score(int[] slices)
+				{
+					return scoreSlices(stackb, features, ijSIFT, slices, best, skipped);
+				}
+			} );
 			
-			try
+			if ( mySearchStrategy == "Coarse-to-fine" )
 			{
-				modelFound = BestModel.filterRansac(candidates,inliers,1000,p.maxEpsilon,p.minInlierRatio );
+				search.coarseToFine( start, end );
 			}
-			catch ( Exception e )
+			else if ( mySearchStrategy == "Correlation pre-localization" )
 			{
-            	modelFound = false;
-            	System.err.println( e.getMessage() );
-        	}
-
-        	return BestModel;
-    	}
-
+				/** Only the best correlated slices are verified with SIFT */
+				int[] ranked = end < start ? new int[ 0 ] : new CorrelationLocalizer( numThreads ).rank( ipf, stackb, start, end, Math.max( 8, ( end - start + 1 ) / 25 ) );
+				IJ.log( "(Info) Correlation pre-localization : " + ( ranked.length > 0 ? "best slice " + ranked[ 0 ] + ", " : "" ) + ranked.length + " candidates" );
+				search.candidates( ranked, start, end );
+			}
+			else
+			{
+				search.exhaustive( start, end );
+			}
+			
+			search.logStatistics( start, end );
+			IJ.log( "(Info) RANSAC skipped on " + skipped.get() + " of " + search.getEvaluated() + " slices" );
+			return search;
+		}
+		
+		/** Inlier count of one back slice, NaN if it has fewer candidates than mustBeat and RANSAC was skipped */
+		private float scoreSlice(ImageStack stackb, int slice, List< Feature > features, SIFT ijSIFT, int mustBeat, AtomicInteger skipped)
+		{
+			List< Feature > fsb = sliceFeatures( stackb, slice, ijSIFT );
+			MatchResult result = matchFeatures( features, fsb, params, mustBeat );
+			if ( result.candidates.size() < mustBeat )
+			{
+				skipped.incrementAndGet();
+				return Float.NaN;
+			}
+			return result.getInlierCount();
+		}
+		
         public void keyPressed(KeyEvent e)
         {
             if (
@@ -869,155 +1443,53 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 	private ImagePlus fuseImages(ImagePlus imp1, ImagePlus imp2, int ov, String fusionMethod, String name)
 			{              
 			
-            final int dim = 3;
-               
-            ImageInformation i1 = new ImageInformation(dim, 1, null); //
-            i1.closeAtEnd = false;
-            i1.imp = imp1;
-            i1.size[0] = imp1.getWidth();
-            i1.size[1] = imp1.getHeight();
-            i1.size[2] = imp1.getStack().getSize();
-            i1.position = new float[dim];
-            i1.position[0] = i1.position[1] = i1.position[2] = 0;
-            i1.imageName = imp1.getTitle();
-            i1.invalid = false;
-            i1.imageType = imp1.getType();
-			
-            ImageInformation i2 = new ImageInformation(dim, 2, null);
-            i2.closeAtEnd = false;
-            i2.imp = imp2;
-            i2.size[0] = imp2.getWidth();
-            i2.size[1] = imp2.getHeight();
-            i2.size[2] = imp2.getStack().getSize();
-            i2.position = new float[dim];
-            i2.position[0] = 0;
-            i2.position[1] = 0;
-            i2.position[2] = imp1.getStack().getSize() - ov;
-            i2.imageName = imp2.getTitle();
-            i2.invalid = false;
-			i2.imageType = imp2.getType();
-
-            ArrayList<ImageInformation> imageInformationList = new ArrayList<ImageInformation>();
-            imageInformationList.add(i1);
-            imageInformationList.add(i2);
-               
-            float[] maximum = getAndApplyMinMax(imageInformationList, dim);
-            ImagePlus image = Stitch_Image_Collection.fuseImages(imageInformationList, maximum, name, fusionMethod, "rgb", dim, alpha, true);
+            /** Two stacks offset along Z only: slices outside the overlap are copied, the overlap is blended */
+            FusedStack stack = new FusedStack( imp1.getStack(), imp2.getStack(), ov, fusionMethod, alpha, fusionSlab, numThreads );
+            ImagePlus image;
+            if ( streamingFusion )
+            {
+            	/** Slices are fused when they are read, the inputs stay virtual */
+            	image = new ImagePlus( name, stack );
+            }
+            else
+            {
+            	image = new ImagePlus( name, stack.materialize( numThreads ) );
+            }
+            image.setCalibration( imp1.getCalibration() );
+            Instrumentation.count( "slices", stack.getSize() );
             return image;
         }
 		
-		float[] getAndApplyMinMax(final ArrayList<ImageInformation> imageInformationList, final int dim)
-        {
-                float min[] = new float[dim];
-                float max[] = new float[dim];
-                for (int i = 0; i < min.length; i++)
-                {
-                        min[i] = Float.MAX_VALUE;
-                        max[i] = Float.MIN_VALUE;
-                }
-               
-                for (ImageInformation iI : imageInformationList)
-                        for (int i = 0; i < min.length; i++)
-                        {
-                                if (iI.position[i] < min[i])
-                                        min[i] = iI.position[i];
-                       
-                                if (iI.position[i] + iI.size[i] > max[i])
-                                        max[i] = iI.position[i] + iI.size[i];
-                        }
-               
-                for (ImageInformation iI : imageInformationList)
-                        for (int i = 0; i < min.length; i++)
-                                iI.position[i] -= min[i];
-
-                for (int i = 0; i < min.length; i++)
-                {
-                        max[i] -= min[i];
-                        min[i] = 0;
-                }
-
-                return max;
-        }
-		
-		/** Rotation 90°, 180° and 270° only of the image stack */ 
-		public ImagePlus StackRotation ( ImagePlus imp, int Rx, int Ry, int Rz)
-		{	
-			/** Parameters */
-			int Xm = imp.getWidth(); int Ym = imp.getHeight(); int Zm = imp.getStackSize();
-			ImageStack impStack = imp.getStack();
-			int x = Xm; int y = Ym; int z = Zm;
-		
-			int cosRx = (int) Math.round(Math.cos(Math.toRadians(Rx)));
-			int sinRx = (int) Math.round(Math.sin(Math.toRadians(Rx)));
-			
-			int cosRy = (int) Math.round(Math.cos(Math.toRadians(Ry)));
-			int sinRy = (int) Math.round(Math.sin(Math.toRadians(Ry)));
-			
-			int cosRz = (int) Math.round(Math.cos(Math.toRadians(Rz)));
-			int sinRz = (int) Math.round(Math.sin(Math.toRadians(Rz)));
-			
-			/** New Stack Size */
-			int newZm = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*cosRy - (x*cosRz - y*sinRz)*sinRy;
-			int newXm = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*sinRy + (x*cosRz - y*sinRz)*cosRy;
-			int newYm = (x*sinRz + y*cosRz)*cosRx - z*sinRx;
-		
-			/** Image Creation */
-			ImagePlus impR = NewImage.createImage("Rotation", Math.abs(newXm), Math.abs(newYm), Math.abs(newZm), imp.getBitDepth(), 1);
-			ImageStack imgR = impR.getStack();
-			
-			/** Calibration */
-			Calibration cal = new Calibration();
-			double Cx = imp.getCalibration().pixelWidth; double Cy = imp.getCalibration().pixelHeight; double Cz = imp.getCalibration().pixelDepth;
-			
-			double newCz = Math.abs(((Cx*sinRz + Cy*cosRz)*sinRx + Cz*cosRx)*cosRy - (Cx*cosRz - Cy*sinRz)*sinRy);
-			double newCx = Math.abs(((Cx*sinRz + Cy*cosRz)*sinRx + Cz*cosRx)*sinRy + (Cx*cosRz - Cy*sinRz)*cosRy);
-			double newCy = Math.abs((Cx*sinRz + Cy*cosRz)*cosRx - Cz*sinRx);
-			
-			cal.pixelWidth = newCx;
-			cal.pixelHeight = newCy;
-			cal.pixelDepth = newCz;
-			
-			cal.setUnit( imp.getCalibration().getUnit() );
-
-			/** Rotation */
-			int max = 0;
-			int newX = 0; int newY = 0; int newZ = 0;
-			for ( z = 0; z <= Zm; z++ )
-			{
-				for ( x = 0; x <= Xm; x++ )
-				{
-					for ( y = 0; y <= Ym; y++ )
-					{
-				
-						newZ = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*cosRy - (x*cosRz - y*sinRz)*sinRy;
-						if ( newZm < 0 ){ newZ = newZ - newZm - 1; }
-						newX = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*sinRy + (x*cosRz - y*sinRz)*cosRy;
-						if ( newXm < 0 ){ newX = newX - newXm - 1; }
-						newY = (x*sinRz + y*cosRz)*cosRx - z*sinRx;
-						if ( newYm < 0 ){ newY = newY - newYm - 1; }
-				
-						imgR.setVoxel(newX, newY, newZ, impStack.getVoxel(x, y, z) );
-						
-						if ( impStack.getVoxel(x, y, z) > max ){ max = (int) impStack.getVoxel(x, y, z); }
-					}
-				}
-			}
-	
-			ImagePlus imp2 = new ImagePlus( "imp", imgR );
-			imp2.setCalibration(cal);
+		/** @return the image itself, or an in-memory copy of a view or virtual stack */
+		private ImagePlus inMemory(ImagePlus imp)
+		{
+			ImageStack stack = imp.getStack();
+			if ( !stack.isVirtual() ) return imp;
 			
-			/** 12 bit Images */
-			if ( 255 < max && max <= 4095 )
+			if ( stack instanceof OrientedStack ) stack = ( (OrientedStack) stack ).materialize( numThreads );
+			else if ( stack instanceof TransformedStack ) stack = ( (TransformedStack) stack ).materialize( numThreads );
+			else
 			{
-				ImagePlus.setDefault16bitRange(12);
+				ImageStack copy = new ImageStack( stack.getWidth(), stack.getHeight() );
+				for ( int i = 1; i <= stack.getSize(); ++i )
+					copy.addSlice( null, stack.getPixels( i ) );
+				stack = copy;
 			}
-
+			ImagePlus imp2 = new ImagePlus( imp.getTitle(), stack );
+			imp2.setCalibration( imp.getCalibration() );
 			return imp2;
 		}
 		
+		/** Rotation 90°, 180° and 270° only of the image stack */ 
+		public ImagePlus StackRotation ( ImagePlus imp, int Rx, int Ry, int Rz)
+		{	
+			return StackRotator.rotate( imp, Rx, Ry, Rz, numThreads );
+		}
+		
 
 		public ImagePlus Rotation3D(ImagePlus imp, AffineModel3D model)
 		{
+			Instrumentation.Probe stage = Instrumentation.begin( "Rotation3D" );
 			Calibration c = imp.getCalibration();
 			float zFactor = ( float )( c.pixelDepth / c.pixelWidth );
 			AffineModel3D unScale = new AffineModel3D();
@@ -1032,38 +1504,126 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			centerUnShift.set( imp.getWidth() / 2, imp.getHeight() / 2, imp.getStack().getSize() / 2 * zFactor );
 
 			AffineModel3D transform = new AffineModel3D();
-			transform.preConcatenate( model );
+			ImageStack source = alignmentSource( imp, model, transform );
 
 			/* bounding volume */
 			int w = imp.getWidth();
 			int h = imp.getHeight();
 			int d = imp.getStackSize();
 
-			/* render target stack */
-			mpicbg.ij.stack.InverseTransformMapping<AffineModel3D> mapping = new mpicbg.ij.stack.InverseTransformMapping<AffineModel3D>( transform );
+			/* render target stack, slices in parallel, or on demand for a virtual source */
+			ImageStack targetStack;
+			if ( source.isVirtual() )
+				targetStack = new TransformedStack( source, transform, w, h, d, 4 );
+			else
+				targetStack = new AffineRenderer( numThreads ).render( source, transform, w, h, d );
 
-			ImageProcessor ip = imp.getStack().getProcessor( 1 ).createProcessor( imp.getWidth(), imp.getHeight() );
-			ImageStack targetStack = new ImageStack( w, h );
+			/* set proper calibration (it's isotropic at the former x,y-scale now) */
+			ImagePlus impTarget = new ImagePlus( "target", targetStack );
+			Instrumentation.count( "voxels", ( long ) w * h * d );
+			Instrumentation.end( stage );
 
-			for ( int s = 0; s < d; ++s )
+		return impTarget;
+		}
+		
+		/**
+		Oriented views are resampled from their original source, the orientation is folded into the transform
+		@param stack to align
+		@param model
+		@param identity transform, receives the transform from the returned stack to the aligned stack
+		@return stack the transform applies to
+		*/
+		private ImageStack alignmentSource(ImagePlus imp, AffineModel3D model, AffineModel3D transform)
+		{
+			transform.preConcatenate( model );
+			ImageStack source = imp.getStack();
+			while ( source instanceof OrientedStack )
+			{
+				transform.concatenate( ( (OrientedStack) source ).getSourceToView() );
+				source = ( (OrientedStack) source ).getSource();
+			}
+			return source;
+		}
+		
+		/**
+		Align the back stacks of the additional channels with the final model. Channels of the same size
+		and orientation, in memory, are rendered together: the source coordinates of every voxel are
+		computed once for all of them. Others are aligned one by one as Rotation3D does.
+		@param back stacks of the channels
+		@param model
+		@return aligned stacks, in the order of the channels
+		*/
+		private ImagePlus[] alignChannels(List< ImagePlus > backs, AffineModel3D model)
+		{
+			ImagePlus[] aligned = new ImagePlus[ backs.size() ];
+			if ( aligned.length == 0 ) return aligned;
+			
+			ImagePlus first = backs.get( 0 );
+			ImageStack[] sources = new ImageStack[ aligned.length ];
+			double[][] transforms = new double[ aligned.length ][ 12 ];
+			AffineModel3D transform = null;
+			boolean together = true;
+			for ( int c = 0; c < aligned.length; ++c )
+			{
+				ImagePlus imp = backs.get( c );
+				AffineModel3D t = new AffineModel3D();
+				sources[ c ] = alignmentSource( imp, model, t );
+				t.toArray( transforms[ c ] );
+				if ( c == 0 ) transform = t;
+				together &= !sources[ c ].isVirtual()
+						&& imp.getWidth() == first.getWidth() && imp.getHeight() == first.getHeight() && imp.getStackSize() == first.getStackSize()
+						&& sources[ c ].getWidth() == sources[ 0 ].getWidth() && sources[ c ].getHeight() == sources[ 0 ].getHeight()
+						&& sources[ c ].getSize() == sources[ 0 ].getSize() && Arrays.equals( transforms[ c ], transforms[ 0 ] );
+			}
+			
+			if ( !together )
 			{
-				ip = ip.createProcessor( w, h );
-				mapping.setSlice( s );
-				try
+				for ( int c = 0; c < aligned.length; ++c )
+					aligned[ c ] = Rotation3D( backs.get( c ), model );
+				return aligned;
+			}
+			
+			Instrumentation.Probe stage = Instrumentation.begin( "channel alignment" );
+			ImageStack[] stacks = new AffineRenderer( numThreads ).render( sources, transform, first.getWidth(), first.getHeight(), first.getStackSize() );
+			for ( int c = 0; c < aligned.length; ++c )
+				aligned[ c ] = new ImagePlus( "target", stacks[ c ] );
+			Instrumentation.count( "voxels", ( long ) aligned.length * first.getWidth() * first.getHeight() * first.getStackSize() );
+			Instrumentation.end( stage );
+			return aligned;
+		}
+		
+		/**
+		Channels of a hyperstack, of its first frame only. They share the pixels of the hyperstack, or
+		are views of it when it is virtual.
+		@param hyperstack
+		@return one image per channel
+		*/
+		private static ImagePlus[] splitChannels(ImagePlus imp)
+		{
+			int nc = imp.getNChannels();
+			int nz = imp.getNSlices();
+			if ( imp.getNFrames() > 1 )
+				IJ.log( "(Warning) " + imp.getTitle() + ": only the first frame is stitched" );
+			
+			ImageStack stack = imp.getStack();
+			ImagePlus[] channels = new ImagePlus[ nc ];
+			for ( int c = 1; c <= nc; ++c )
+			{
+				ImageStack channel;
+				if ( stack.isVirtual() )
 				{
-					mapping.mapInterpolated( imp.getStack(), ip );
+					channel = new SubstackView( stack, c, c + ( nz - 1 ) * nc, nc );
 				}
-				catch ( Exception e )
+				else
 				{
-					e.printStackTrace();
+					channel = new ImageStack( stack.getWidth(), stack.getHeight(), stack.getColorModel() );
+					for ( int z = 0; z < nz; ++z )
+						channel.addSlice( stack.getSliceLabel( c + z * nc ), stack.getPixels( c + z * nc ) );
 				}
-				targetStack.addSlice( "", ip );
+				channels[ c - 1 ] = new ImagePlus( imp.getTitle() + " C" + c, channel );
+				channels[ c - 1 ].setCalibration( imp.getCalibration() );
 			}
-
-			/* set proper calibration (it's isotropic at the former x,y-scale now) */
-			ImagePlus impTarget = new ImagePlus( "target", targetStack );
-
-		return impTarget;
+			return channels;
 		}
 		
 		public AffineModel3D Model3D(AbstractAffineModel2D< ? > modelX, AbstractAffineModel2D< ? > modelY, AbstractAffineModel2D< ? > modelZ)
@@ -1168,7 +1728,7 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 				tmp.insert( ip2wf, 0, 0 );
 				stackInfo.addSlice( null, tmp );
 				ImagePlus impInfo = new ImagePlus( "Alignment info", stackInfo );
-				impInfo.show();
+				diagnostics.image( impInfo );
 			}
 		}
 		
@@ -1177,6 +1737,8 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		
 			ImageProcessor ipb;
 			ImageProcessor ipf;
+			List< Feature > fsf = new ArrayList< Feature >();
+			List< Feature > fsb = new ArrayList< Feature >();
             
 			/** Features extraction of the last slice of the front substack */
 		
@@ -1188,40 +1750,45 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			for ( int i = 1; i <= ov; ++i )
 			{
 				ipf = stackf.getProcessor( i );
-				ijSIFT.extractFeatures( ipf, fsf );
+				FeatureCache.extract( ijSIFT, ipf, fsf );
 				front[i-1] = (float) fsf.size();
 				fsf.clear();
 				ipb = stackb.getProcessor( i );
-				ijSIFT.extractFeatures( ipb, fsb );
+				FeatureCache.extract( ijSIFT, ipb, fsb );
 				back[i-1] = (float) fsb.size();
 				sliceNumber[i-1] = (float) i;
 				fsb.clear();
 			}
 			
-			Plot myplot = new Plot("fsf", "Slice Number", "fsf", sliceNumber, front);
-			Plot myplot2 = new Plot("fsb", "Slice Number", "fsb", sliceNumber, back);
-			myplot.show(); myplot2.show();
+			diagnostics.plot("fsf", "Slice Number", "fsf", sliceNumber, front);
+			diagnostics.plot("fsb", "Slice Number", "fsb", sliceNumber, back);
 			return;
 		
 		}
 		
+		/**
+		Orient a stack so that the stitching direction is along z, as a view computed on demand
+		@param image
+		@param stitching orientation
+		@return view of the image, or the image itself for "Front - Back"
+		*/
 		public ImagePlus stackOrientation(ImagePlus imp, String orientation)
 		{
 			
 			if ( orientation == "Back - Front"){
-				imp.revert();
+				imp = OrientedStack.view(imp, 0, 0, 0, true);
 			}
 			else if ( orientation == "Left - Right"){
-				imp = StackRotation(imp, 0, -90, 0);
+				imp = OrientedStack.view(imp, 0, -90, 0, false);
 			}
 			else if ( orientation == "Right - Left"){
-				imp = StackRotation(imp, 0, 90, 0);
+				imp = OrientedStack.view(imp, 0, 90, 0, false);
 			}
 			else if ( orientation == "Top - Bottom"){
-				imp = StackRotation(imp, 90, 0, 0); 
+				imp = OrientedStack.view(imp, 90, 0, 0, false); 
 			}
 			else if ( orientation == "Bottom - Top"){
-				imp = StackRotation(imp, -90, 0, 0); 
+				imp = OrientedStack.view(imp, -90, 0, 0, false); 
 			}
 		
 			return imp;
@@ -1231,7 +1798,8 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		{
 			
 			if ( orientation == "Back - Front"){
-				imp.revert();
+				imp = OrientedStack.view(imp, 0, 0, 0, true);
+				if ( !streamingFusion ) imp = inMemory(imp);
 			}
 			else if ( orientation == "Left - Right"){
 				imp = StackRotation(imp, 0, 90, 0);
@@ -1249,85 +1817,96 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 			return imp;
 		}
 		
-		public int recursiveOverlapFinder(ImageStack stackf, ImageStack stackb, SIFT ijSIFT, int Cov, int split)
+		/**
+		Coarse-to-fine overlap search. At each level the current back range is split into blocks,
+		each block is reduced to its MIP and compared with the MIP of the last front slices; the
+		best block becomes the range of the next level. Every level is projected once and every
+		projection has its features extracted once.
+		@param front stack
+		@param back stack
+		@param sift object with parameters set as detailed in run method
+		@param number of blocks per level
+		@return real overlap size
+		*/
+		public int OverlapFinderBbB(ImageStack stackf, ImageStack stackb, SIFT ijSIFT, int split)
 		{
-
-			int sb = stackb.getSize();
 			int sf = stackf.getSize();
+			int b0 = 1; int b1 = stackb.getSize(); // current back range
+			int Cov = stackb.getSize();
+			int level = 0; int extractions = 0;
 			
-			ImageStack subStackf = new ImageStack();
-			ImageStack subStackb = new ImageStack();
-			
-			int myMIP = (int) sb/split;
-			if ( myMIP > 1 )
+			while ( true )
 			{
-				subStackb = createMIP(stackb, myMIP);
-				if ( sf >= (int) sb/split )
+				++level;
+				int sb = b1 - b0 + 1;
+				int myMIP = (int) sb/split;
+				
+				ImageStack subStackb;
+				ImageStack subStackf;
+				if ( myMIP > 1 )
 				{
-					subStackf = makeSubstack(stackf, (int) sf-sb/split + 1, sf);
-					subStackf = createMIP( subStackf, subStackf.getSize() );	
+					subStackb = createMIP( makeSubstack( stackb, b0, b1 ), myMIP );
+					subStackf = createMIP( makeSubstack( stackf, Math.max( 1, sf - myMIP + 1 ), sf ), Math.min( myMIP, sf ) );
 				}
-				else{
-					subStackf = createMIP( stackf, stackf.getSize() );	
+				else
+				{
+					subStackb = makeSubstack( stackb, b0, b1 );
+					subStackf = stackf;
 				}
-			}
-			else if ( myMIP <= 1) {
-				subStackb = stackb;
-				subStackf = stackf; 
-			}
-			
-			/** Parameters initialization */
-			ImageProcessor ipf;
-			ImageProcessor ipb;
-			fsf.clear();
-			fsb.clear();	
-
-			/** Comparisons */
-			int taille = subStackb.getSize();
-			ipf = subStackf.getProcessor( subStackf.getSize() ); // Last slice of the front stack
-			ijSIFT.extractFeatures( ipf, fsf );
-			int ind = 1; int max = 0;
-			
-			for ( int i = 1; i <= taille; ++i ) // Find the best match
-			{	
-				ipb = subStackb.getProcessor( i );
-				ijSIFT.extractFeatures( ipb, fsb );
-				Vector< PointMatch > inliers = searchBestInliers(ipf, ipb, ijSIFT, false);
-				if ( inliers.size() >= max) 
+				
+				/** Comparisons, each block extracted once */
+				int taille = subStackb.getSize();
+				List< Feature > fsf = params.newFeatureList();
+				FeatureCache.extract( ijSIFT, subStackf.getProcessor( subStackf.getSize() ), fsf ); // Last slice of the front stack
+				float[] inliers = scoreSlices( subStackb, fsf, ijSIFT, 1, taille );
+				
+				int ind = 1; float max = 0;
+				for ( int i = 1; i <= taille; ++i ) // Find the best match
 				{
-					ind = i;
-					max = inliers.size();
+					if ( inliers[i-1] >= max )
+					{
+						ind = i;
+						max = inliers[i-1];
+					}
+				}
+				
+				IJ.log( "(Info) Block-by-Block level " + level + " : " + taille + " blocks of " + Math.max( myMIP, 1 ) + " slices, " + ( taille + 1 ) + " SIFT extractions" );
+				extractions += taille + 1;
+				
+				if ( myMIP > 1 )
+				{
+					Cov = (int) (Cov - sb + ind*sb/split);
+					b0 = b0 + (ind-1)*myMIP;
+					b1 = b0 + myMIP - 1;
+					sf = Math.min( sf, myMIP );
+					stackf = makeSubstack( stackf, stackf.getSize() - sf + 1, stackf.getSize() );
+				}
+				else
+				{
+					Cov = (int) (Cov - sb + ind);
 				}
-			}
-			
-			if ( myMIP > 1 )
-			{
-				Cov = (int) (Cov - sb + ind*sb/split);
-				stackb = makeSubstack( stackb, (int) ((ind-1)*(myMIP) + 1), (int) (ind*myMIP) );
-				stackf = makeSubstack( stackf, (int) sf-myMIP + 1, sf );
-			}
-			else 
-			{
-				Cov = (int) (Cov - sb + ind);
-				stackb = makeSubstack( stackb, (int) ((ind-1)*(sb/taille) + 1), (int) (ind*sb/taille) );
-				stackf = makeSubstack( stackf, (int) sf-sb/taille, sf );
 				
+				if ( myMIP <= 1 || split == 1 )
+				{
+					break;
+				}
 			}
 			
-			if ( sb <= split || split == 1)
-			{
-				IJ.log("Return OV: " + Cov);
-				return Cov;
-			}
-			else
-			{
-				Cov = recursiveOverlapFinder(stackf, stackb, ijSIFT, Cov, split);
-				return Cov;
-			}
+			IJ.log( "(Info) Block-by-Block : " + level + " levels, " + extractions + " SIFT extractions" );
+			IJ.log("Return OV: " + Cov);
+			return Cov;
     	}
 		
+		/**
+		@param stack
+		@param first slice
+		@param last slice
+		@return slices z1 to z2, a view for virtual stacks so that they are only read when used
+		*/
 		public ImageStack makeSubstack(ImageStack stack, int z1, int z2)
 		{
+			if ( stack.isVirtual() ) return new SubstackView( stack, z1, z2 );
+			
 			ImageStack substack = new ImageStack( stack.getWidth(), stack.getHeight() );
 			
 			for (int i = z1; i<= z2; ++i )
@@ -1341,44 +1920,20 @@ public class SIFT_Volume_Stitching implements PlugIn, KeyListener
 		public int OverlapFinderSbS(ImageStack stackf, ImageStack stackb, SIFT ijSIFT, int ov)
 		{
 		
-			ImageProcessor ipb;
 			ImageProcessor ipf = stackf.getProcessor( stackf.getSize() );
             
 			/** Features extraction of the last slice of the front substack */
-			ijSIFT.extractFeatures( ipf, fsf );// fsf stores the features
-		
-			float[] bestModelInliers = new float[ov]; //number of matches
-			float[] bestModelInliers2 = new float[ov];
-			//percentage of matches respect to the number of matches in the last slice of the front stack
-			float[] sliceNumber = new float[ov];//x in graph
-			int ind = 1; 
-			float max = 0; 
-			
+			List< Feature > fsf = sliceFeatures( stackf, stackf.getSize(), ijSIFT );// fsf stores the features
+		
 			/** Comparison with slices from the back stack */
-			for ( int i = 1; i <= ov; ++i )
-			{
-				ipb = stackb.getProcessor( i );
-				Vector< PointMatch > inliers = searchBestInliers(ipf, ipb, ijSIFT, false);	
-			
-				bestModelInliers[i-1] = (float) inliers.size(); 
-				bestModelInliers2[i-1] = (float) inliers.size()*100/fsf.size();
-				sliceNumber[i-1] = (float) i;
-				
-				/** Best model index computation */
-				if ( inliers.size() >= max) 
-				{
-					ind = i;
-					max = inliers.size();
-				}
-				
-			}
+			OverlapSearch search = searchSlices(ipf, stackb, fsf, ijSIFT, 1, ov);
+			int ind = search.getBest();
 
-			Plot myplot = new Plot("Correspondence","Slice Number","Correspondence",sliceNumber,bestModelInliers);
-			myplot.show();
+			diagnostics.plot("Correspondence","Slice Number","Correspondence",search.getSlices(),search.getScores());
 		
 			IJ.log( "(Info) Image Overlap Size : " + ind + " pixels");
 			
-			searchBestInliers(ipf, stackb.getProcessor(ind), ijSIFT, true);
+			searchBestInliers(ipf, fsf, stackb, ind, ijSIFT, true);
 			
         	return ind;
     		}
@@ -0,0 +1,66 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+* Reference DescriptorKernel: one descriptor after the other, in the order of createMatches, distances
+* summed in double as Feature.descriptorDistance does and given up once they exceed the next closest
+* distance.
+*/
+public class ScalarDescriptorKernel implements DescriptorKernel
+{
+	public void nearest(float[] queries, int offset, double scale, float[] data, double[] scales, int count, int dims, Nearest result)
+	{
+		int best = -1;
+		double bestD = Double.MAX_VALUE, secondD = Double.MAX_VALUE;
+		for ( int j = 0, o = 0; j < count; ++j, o += dims )
+		{
+			if ( !BruteForceMatcher.inScaleWindow( scale, scales[ j ] ) ) continue;
+			double d = squaredDistance( queries, offset, data, o, dims, secondD );
+			if ( d < bestD )
+			{
+				secondD = bestD;
+				bestD = d;
+				best = j;
+			}
+			else if ( d < secondD )
+			{
+				secondD = d;
+			}
+		}
+		result.best = best;
+		result.bestD = bestD;
+		result.secondD = secondD;
+	}
+
+	/**
+	Squared distance between two float descriptors, given up once it exceeds limit
+	@param descriptors
+	@param offset of the first one
+	@param descriptors
+	@param offset of the second one
+	@param components of a descriptor
+	@param limit
+	@return squared distance, or a partial sum above limit
+	*/
+	public static double squaredDistance(float[] a, int ai, float[] b, int bi, int dims, double limit)
+	{
+		double d = 0;
+		for ( int k = 0; k < dims; ++k )
+		{
+			final double v = a[ ai + k ] - b[ bi + k ];
+			d += v * v;
+			if ( d > limit ) return d;
+		}
+		return d;
+	}
+
+	public String getName()
+	{
+		return "scalar";
+	}
+}
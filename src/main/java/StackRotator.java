@@ -0,0 +1,353 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.measure.Calibration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+/**
+* Rotations of an image stack by multiples of 90 degrees around x, y and z, computed on the raw
+* pixel arrays of each bit depth. A 90 degrees rotation only permutes and flips the axes, so every
+* output voxel is read from exactly one source voxel. Output slices are filled in parallel, in tiles
+* so that the strided reads of a transposition stay in cache.
+*
+* The output size, calibration and voxel values are the ones of the original voxel-by-voxel
+* StackRotation.
+*/
+public class StackRotator
+{
+	final static private int TILE = 64;
+
+	/** Source axis (0: x, 1: y, 2: z) read along each output axis, with its direction and offset */
+	final private int[] axis = new int[ 3 ];
+	final private int[] sign = new int[ 3 ];
+	final private int[] offset = new int[ 3 ];
+	final private int[] newSize = new int[ 3 ];
+
+	final private int cosRx, sinRx, cosRy, sinRy, cosRz, sinRz;
+
+	/**
+	@param rotation around x in degrees
+	@param rotation around y in degrees
+	@param rotation around z in degrees
+	@throws IllegalArgumentException if an angle is not a multiple of 90 degrees
+	*/
+	public StackRotator(int Rx, int Ry, int Rz)
+	{
+		if ( Rx % 90 != 0 || Ry % 90 != 0 || Rz % 90 != 0 )
+			throw new IllegalArgumentException( "Rotation 90, 180 and 270 degrees only" );
+
+		cosRx = (int) Math.round(Math.cos(Math.toRadians(Rx)));
+		sinRx = (int) Math.round(Math.sin(Math.toRadians(Rx)));
+		cosRy = (int) Math.round(Math.cos(Math.toRadians(Ry)));
+		sinRy = (int) Math.round(Math.sin(Math.toRadians(Ry)));
+		cosRz = (int) Math.round(Math.cos(Math.toRadians(Rz)));
+		sinRz = (int) Math.round(Math.sin(Math.toRadians(Rz)));
+	}
+
+	/** Output coordinates of a source voxel before the shift into the positive range, as in StackRotation */
+	private int[] forward(int x, int y, int z)
+	{
+		int newZ = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*cosRy - (x*cosRz - y*sinRz)*sinRy;
+		int newX = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*sinRy + (x*cosRz - y*sinRz)*cosRy;
+		int newY = (x*sinRz + y*cosRz)*cosRx - z*sinRx;
+		return new int[]{ newX, newY, newZ };
+	}
+
+	private double[] forward(double x, double y, double z)
+	{
+		double newZ = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*cosRy - (x*cosRz - y*sinRz)*sinRy;
+		double newX = ((x*sinRz + y*cosRz)*sinRx + z*cosRx)*sinRy + (x*cosRz - y*sinRz)*cosRy;
+		double newY = (x*sinRz + y*cosRz)*cosRx - z*sinRx;
+		return new double[]{ newX, newY, newZ };
+	}
+
+	/** Invert the axis permutation for a source of the given size */
+	private void setSize(int Xm, int Ym, int Zm)
+	{
+		int[][] unit = { forward( 1, 0, 0 ), forward( 0, 1, 0 ), forward( 0, 0, 1 ) };
+		int[] size = forward( Xm, Ym, Zm );
+		for ( int t = 0; t < 3; ++t )
+		{
+			for ( int a = 0; a < 3; ++a )
+			{
+				if ( unit[ a ][ t ] != 0 )
+				{
+					axis[ t ] = a;
+					sign[ t ] = unit[ a ][ t ];
+				}
+			}
+			newSize[ t ] = Math.abs( size[ t ] );
+			offset[ t ] = size[ t ] < 0 ? - size[ t ] - 1 : 0;
+		}
+	}
+
+	/** @return width, height and depth of the rotated stack */
+	public int[] getSize(int Xm, int Ym, int Zm)
+	{
+		setSize( Xm, Ym, Zm );
+		return newSize.clone();
+	}
+
+	/**
+	Rotation as an affine transform from source to rotated voxel coordinates, with the shift into the positive range
+	@param source width
+	@param source height
+	@param source depth
+	@param true to also reverse the slice order of the rotated stack
+	@return row-major 3x4 matrix, in the order of AffineModel3D.set
+	*/
+	public double[] getMatrix(int Xm, int Ym, int Zm, boolean reverse)
+	{
+		int[][] unit = { forward( 1, 0, 0 ), forward( 0, 1, 0 ), forward( 0, 0, 1 ) };
+		setSize( Xm, Ym, Zm );
+		double[] m = new double[ 12 ];
+		for ( int t = 0; t < 3; ++t )
+		{
+			for ( int a = 0; a < 3; ++a )
+			{
+				m[ 4 * t + a ] = unit[ a ][ t ];
+			}
+			m[ 4 * t + 3 ] = offset[ t ];
+		}
+		if ( reverse )
+		{
+			for ( int a = 0; a < 4; ++a )
+			{
+				m[ 8 + a ] = -m[ 8 + a ];
+			}
+			m[ 11 ] += newSize[ 2 ] - 1;
+		}
+		return m;
+	}
+
+	/**
+	Rotate a stack
+	@param image
+	@param number of threads
+	@return rotated image with its calibration
+	*/
+	public static ImagePlus rotate(ImagePlus imp, int Rx, int Ry, int Rz, int numThreads)
+	{
+		StackRotator rotator = new StackRotator( Rx, Ry, Rz );
+		final int[] max = new int[ 1 ];
+		ImageStack imgR = rotator.rotate( imp.getStack(), numThreads, max );
+
+		ImagePlus imp2 = new ImagePlus( "imp", imgR );
+		imp2.setCalibration( rotator.rotate( imp.getCalibration() ) );
+
+		/** 12 bit Images */
+		if ( 255 < max[ 0 ] && max[ 0 ] <= 4095 )
+		{
+			ImagePlus.setDefault16bitRange(12);
+		}
+		return imp2;
+	}
+
+	/** @return calibration of the rotated stack */
+	public Calibration rotate(Calibration c)
+	{
+		double[] newC = forward( c.pixelWidth, c.pixelHeight, c.pixelDepth );
+		Calibration cal = new Calibration();
+		cal.pixelWidth = Math.abs( newC[ 0 ] );
+		cal.pixelHeight = Math.abs( newC[ 1 ] );
+		cal.pixelDepth = Math.abs( newC[ 2 ] );
+		cal.setUnit( c.getUnit() );
+		return cal;
+	}
+
+	/**
+	Rotate a stack
+	@param stack
+	@param number of threads
+	@param if not null, receives the maximum voxel value at index 0
+	@return rotated stack
+	*/
+	public ImageStack rotate(ImageStack stack, int numThreads, int[] max)
+	{
+		setSize( stack.getWidth(), stack.getHeight(), stack.getSize() );
+		final int d = stack.getSize();
+		final Object[] src = new Object[ d ];
+		for ( int z = 0; z < d; ++z )
+		{
+			src[ z ] = stack.getPixels( z + 1 );
+		}
+
+		final int W = stack.getWidth();
+		final int[] axis = this.axis.clone();
+		final int[] sign = this.sign.clone();
+		final int[] offset = this.offset.clone();
+		final int nw = newSize[ 0 ];
+		final int nh = newSize[ 1 ];
+
+		List< Callable< Integer > > tasks = new ArrayList< Callable< Integer > >();
+		final Object[] out = new Object[ newSize[ 2 ] ];
+		for ( int nz = 0; nz < newSize[ 2 ]; ++nz )
+		{
+			final int slice = nz;
+			tasks.add( new Callable< Integer >()
+			{
+				public Integer call()
+				{
+					out[ slice ] = newSlice( src[ 0 ], nw * nh );
+					return Integer.valueOf( rotateSlice( src, W, out[ slice ], nw, nh, slice, axis, sign, offset ) );
+				}
+			} );
+		}
+
+		int m = 0;
+		for ( Integer sliceMax : ParallelTasks.run( tasks, numThreads ) )
+		{
+			m = Math.max( m, sliceMax.intValue() );
+		}
+		if ( max != null ) max[ 0 ] = m;
+
+		ImageStack imgR = new ImageStack( nw, nh );
+		for ( int nz = 0; nz < out.length; ++nz )
+		{
+			imgR.addSlice( null, out[ nz ] );
+		}
+		return imgR;
+	}
+
+	/**
+	Source slice holding output slice nz, for rotations that keep slices within slices
+	@param output slice index (0-based)
+	@return source slice index (0-based), or -1 if the output slice reads every source slice
+	*/
+	public int getSourceSlice(int nz)
+	{
+		if ( axis[ 0 ] == 2 || axis[ 1 ] == 2 ) return -1;
+		return sign[ 2 ] * ( nz - offset[ 2 ] );
+	}
+
+	/**
+	One slice of the rotated stack, the size must have been set with getSize for this source.
+	Only reads the rotator, so one rotator can serve several threads.
+	@param source pixel arrays, only the slice given by getSourceSlice is needed when it is not -1
+	@param source width
+	@param output slice index (0-based)
+	@return pixel array of the output slice
+	*/
+	public Object getSlice(Object[] src, int W, int nz)
+	{
+		Object template = null;
+		for ( int z = 0; template == null && z < src.length; ++z )
+			template = src[ z ];
+		Object out = newSlice( template, newSize[ 0 ] * newSize[ 1 ] );
+		rotateSlice( src, W, out, newSize[ 0 ], newSize[ 1 ], nz, axis, sign, offset );
+		return out;
+	}
+
+	/**
+	Source slice and position of output slice nz, read along the output x and y axes
+	@return maximum value read
+	*/
+	private static int rotateSlice(Object[] src, int W, Object dst, int nw, int nh, int nz, int[] axis, int[] sign, int[] offset)
+	{
+		/** Source coordinates at (0, 0, nz) and their steps along the output x and y axes */
+		int[] c0 = new int[ 3 ];
+		int[] dx = new int[ 3 ];
+		int[] dy = new int[ 3 ];
+		c0[ axis[ 2 ] ] = sign[ 2 ] * ( nz - offset[ 2 ] );
+		c0[ axis[ 0 ] ] = - sign[ 0 ] * offset[ 0 ];
+		c0[ axis[ 1 ] ] = - sign[ 1 ] * offset[ 1 ];
+		dx[ axis[ 0 ] ] = sign[ 0 ];
+		dy[ axis[ 1 ] ] = sign[ 1 ];
+
+		final int dOffX = dx[ 0 ] + dx[ 1 ] * W; final int dSliceX = dx[ 2 ];
+		final int dOffY = dy[ 0 ] + dy[ 1 ] * W; final int dSliceY = dy[ 2 ];
+		final int off0 = c0[ 0 ] + c0[ 1 ] * W; final int slice0 = c0[ 2 ];
+
+		int max = 0;
+		for ( int ty = 0; ty < nh; ty += TILE )
+		{
+			int yEnd = Math.min( nh, ty + TILE );
+			for ( int tx = 0; tx < nw; tx += TILE )
+			{
+				int xEnd = Math.min( nw, tx + TILE );
+				for ( int ny = ty; ny < yEnd; ++ny )
+				{
+					int off = off0 + ny * dOffY + tx * dOffX;
+					int sl = slice0 + ny * dSliceY + tx * dSliceX;
+					int o = ny * nw + tx;
+					int n = xEnd - tx;
+					if ( dst instanceof byte[] )
+						max = Math.max( max, copyRow( src, (byte[]) dst, o, off, sl, dOffX, dSliceX, n ) );
+					else if ( dst instanceof short[] )
+						max = Math.max( max, copyRow( src, (short[]) dst, o, off, sl, dOffX, dSliceX, n ) );
+					else if ( dst instanceof float[] )
+						max = Math.max( max, copyRow( src, (float[]) dst, o, off, sl, dOffX, dSliceX, n ) );
+					else
+						max = Math.max( max, copyRow( src, (int[]) dst, o, off, sl, dOffX, dSliceX, n ) );
+				}
+			}
+		}
+		return max;
+	}
+
+	private static int copyRow(Object[] src, byte[] dst, int o, int off, int sl, int dOff, int dSlice, int n)
+	{
+		int max = 0;
+		for ( int i = 0; i < n; ++i, ++o, off += dOff, sl += dSlice )
+		{
+			byte v = ( (byte[]) src[ sl ] )[ off ];
+			dst[ o ] = v;
+			if ( ( v & 0xff ) > max ) max = v & 0xff;
+		}
+		return max;
+	}
+
+	private static int copyRow(Object[] src, short[] dst, int o, int off, int sl, int dOff, int dSlice, int n)
+	{
+		int max = 0;
+		for ( int i = 0; i < n; ++i, ++o, off += dOff, sl += dSlice )
+		{
+			short v = ( (short[]) src[ sl ] )[ off ];
+			dst[ o ] = v;
+			if ( ( v & 0xffff ) > max ) max = v & 0xffff;
+		}
+		return max;
+	}
+
+	private static int copyRow(Object[] src, float[] dst, int o, int off, int sl, int dOff, int dSlice, int n)
+	{
+		int max = 0;
+		for ( int i = 0; i < n; ++i, ++o, off += dOff, sl += dSlice )
+		{
+			float v = ( (float[]) src[ sl ] )[ off ];
+			dst[ o ] = v;
+			if ( v > max ) max = (int) v;
+		}
+		return max;
+	}
+
+	private static int copyRow(Object[] src, int[] dst, int o, int off, int sl, int dOff, int dSlice, int n)
+	{
+		int max = 0;
+		for ( int i = 0; i < n; ++i, ++o, off += dOff, sl += dSlice )
+		{
+			int v = ( (int[]) src[ sl ] )[ off ] & 0xffffff;
+			dst[ o ] = v;
+			if ( v > max ) max = v;
+		}
+		return max;
+	}
+
+	private static Object newSlice(Object type, int length)
+	{
+		if ( type instanceof byte[] ) return new byte[ length ];
+		if ( type instanceof short[] ) return new short[ length ];
+		if ( type instanceof float[] ) return new float[ length ];
+		return new int[ length ];
+	}
+}
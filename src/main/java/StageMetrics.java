@@ -0,0 +1,71 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+* Measures of a stage of the stitching: one run of it, as listeners receive them, or the sum of its
+* runs in the same parent stage and iteration, as Instrumentation reports them.
+*
+* Wall time is the elapsed time of the runs. CPU time and allocated bytes are those of the thread that
+* ran the stage and of the workers it handed tasks to (Instrumentation.propagate); 0 where the JVM
+* does not measure them.
+*/
+public final class StageMetrics
+{
+	/** Stage name, name of the stage it ran in ("" for the whole run) */
+	public final String name, parent;
+	/** Registration iteration, from 1, 0 outside of the iterations */
+	public final int iteration;
+	public final long calls, wallNanos, cpuNanos, allocatedBytes;
+	/** Counts of the stage (features, candidates, inliers, slices...), in order of first count */
+	public final Map< String, Long > counters;
+
+	public StageMetrics(String name, String parent, int iteration, long calls, long wallNanos, long cpuNanos, long allocatedBytes, Map< String, Long > counters)
+	{
+		this.name = name;
+		this.parent = parent;
+		this.iteration = iteration;
+		this.calls = calls;
+		this.wallNanos = wallNanos;
+		this.cpuNanos = cpuNanos;
+		this.allocatedBytes = allocatedBytes;
+		this.counters = Collections.unmodifiableMap( new LinkedHashMap< String, Long >( counters ) );
+	}
+
+	/**
+	@param another run of the same stage
+	@return sum of both
+	*/
+	public StageMetrics add(StageMetrics other)
+	{
+		Map< String, Long > sum = new LinkedHashMap< String, Long >( counters );
+		for ( Map.Entry< String, Long > e : other.counters.entrySet() )
+		{
+			Long v = sum.get( e.getKey() );
+			sum.put( e.getKey(), ( v == null ? 0 : v ) + e.getValue() );
+		}
+		return new StageMetrics( name, parent, iteration, calls + other.calls, wallNanos + other.wallNanos,
+				cpuNanos + other.cpuNanos, allocatedBytes + other.allocatedBytes, sum );
+	}
+
+	/** @return count of a counter, 0 if it was not counted */
+	public long count(String counter)
+	{
+		Long v = counters.get( counter );
+		return v == null ? 0 : v;
+	}
+
+	public String toString()
+	{
+		return name + ( iteration > 0 ? " #" + iteration : "" ) + ": " + calls + " calls, " + wallNanos / 1000000 + " ms, cpu " +
+				cpuNanos / 1000000 + " ms, " + ( allocatedBytes >> 20 ) + " MB allocated" + ( counters.isEmpty() ? "" : ", " + counters );
+	}
+}
@@ -0,0 +1,20 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+/**
+* Receives the measures of every stage of a stitching run as it finishes, see Instrumentation.
+* Stages run by the workers of a parallel search finish on those workers, so the method may be
+* called from several threads at once.
+*/
+public interface StitchingListener
+{
+	/**
+	@param measures of one run of the stage
+	*/
+	public void stageFinished(StageMetrics stage);
+}
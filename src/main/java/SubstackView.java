@@ -0,0 +1,83 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ImageProcessor;
+
+/**
+* Read only view of a range of slices of another stack, for virtual stacks whose slices are read on
+* demand: copying the range into an ImageStack would read every slice of it at once. With a step, the
+* view takes one slice every step slices, such as one channel of a hyperstack.
+*/
+public class SubstackView extends VirtualStack
+{
+	final private ImageStack source;
+	final private int first, step, depth;
+
+	/**
+	@param source stack
+	@param first slice of the range (1-based)
+	@param last slice of the range
+	*/
+	public SubstackView(ImageStack source, int first, int last)
+	{
+		this( source, first, last, 1 );
+	}
+
+	/**
+	@param source stack
+	@param first slice of the range (1-based)
+	@param last slice of the range, the view ends at the last slice of the step it reaches
+	@param number of source slices from one slice of the view to the next
+	*/
+	public SubstackView(ImageStack source, int first, int last, int step)
+	{
+		super( source.getWidth(), source.getHeight(), source.getColorModel(), null );
+		if ( first < 1 || last > source.getSize() || last < first - 1 || step < 1 )
+			throw new IllegalArgumentException( "Slice range out of bounds: " + first + "-" + last );
+		this.source = source;
+		this.first = first;
+		this.step = step;
+		this.depth = last < first ? 0 : ( last - first ) / step + 1;
+	}
+
+	public int getWidth() { return source.getWidth(); }
+
+	public int getHeight() { return source.getHeight(); }
+
+	public int getSize() { return depth; }
+
+	public String getSliceLabel(int n) { return null; }
+
+	public int getBitDepth() { return source.getBitDepth(); }
+
+	/** Views are read only */
+	public void setPixels(Object pixels, int n) { }
+
+	public void addSlice(String name) { }
+
+	public void deleteSlice(int n) { }
+
+	public Object getPixels(int n)
+	{
+		return source.getPixels( index( n ) );
+	}
+
+	public ImageProcessor getProcessor(int n)
+	{
+		return source.getProcessor( index( n ) );
+	}
+
+	private int index(int n)
+	{
+		if ( n < 1 || n > depth )
+			throw new IllegalArgumentException( "Slice out of range: " + n );
+		return first + ( n - 1 ) * step;
+	}
+}
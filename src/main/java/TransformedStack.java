@@ -0,0 +1,148 @@
+/*
+ * To the extent possible under law, the Fiji developers have waived
+ * all copyright and related or neighboring rights to this tutorial code.
+ *
+ * See the CC0 1.0 Universal license for details:
+ *     http://creativecommons.org/publicdomain/zero/1.0/
+ */
+
+import ij.ImageStack;
+import ij.VirtualStack;
+import ij.process.ByteProcessor;
+import ij.process.ColorProcessor;
+import ij.process.FloatProcessor;
+import ij.process.ImageProcessor;
+import ij.process.ShortProcessor;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import mpicbg.models.AffineModel3D;
+
+/**
+* Read only view of a stack through a 3D affine transform. Slices are rendered when they are asked
+* for, from the source slices they cover only, and the last few are kept: the overlap search and
+* the cross-sections of a registration step read a small part of the transformed back stack, which
+* is then never rendered as a whole. Views can be read from several threads.
+*/
+public class TransformedStack extends VirtualStack
+{
+	final private ImageStack source;
+	final private AffineModel3D transform;
+	final private int width, height, depth;
+	final private int cacheSize;
+	final private LinkedHashMap< Integer, Object > cache;
+	private ImageStack materialized = null;
+
+	/**
+	@param source stack
+	@param transform from source to view coordinates, copied
+	@param view width
+	@param view height
+	@param view depth
+	@param number of rendered slices kept
+	*/
+	public TransformedStack(ImageStack source, AffineModel3D transform, int width, int height, int depth, final int cacheSize)
+	{
+		super( width, height, source.getColorModel(), null );
+		this.source = source;
+		this.transform = transform.copy();
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		this.cacheSize = Math.max( 0, cacheSize );
+		this.cache = new LinkedHashMap< Integer, Object >( 16, 0.75f, true )
+		{
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(Map.Entry< Integer, Object > eldest)
+			{
+				return size() > cacheSize;
+			}
+		};
+	}
+
+	public int getWidth() { return width; }
+
+	public int getHeight() { return height; }
+
+	public int getSize() { return depth; }
+
+	public String getSliceLabel(int n) { return null; }
+
+	public int getBitDepth() { return source.getBitDepth(); }
+
+	/** Views are read only */
+	public void setPixels(Object pixels, int n) { }
+
+	public void addSlice(String name) { }
+
+	public void deleteSlice(int n) { }
+
+	public ImageProcessor getProcessor(int n)
+	{
+		Object pixels = getPixels( n );
+		if ( pixels instanceof byte[] ) return new ByteProcessor( width, height, (byte[]) pixels, getColorModel() );
+		if ( pixels instanceof short[] ) return new ShortProcessor( width, height, (short[]) pixels, getColorModel() );
+		if ( pixels instanceof float[] ) return new FloatProcessor( width, height, (float[]) pixels, getColorModel() );
+		return new ColorProcessor( width, height, (int[]) pixels );
+	}
+
+	/** Blank slice of the type of the source, without reading it */
+	private ImageProcessor createProcessor()
+	{
+		switch ( source.getBitDepth() )
+		{
+			case 8: return new ByteProcessor( width, height );
+			case 16: return new ShortProcessor( width, height );
+			case 32: return new FloatProcessor( width, height );
+			default: return new ColorProcessor( width, height );
+		}
+	}
+
+	/**
+	@param slice index (1-based)
+	@return pixel array of the slice, shared with the slice cache so it must not be modified
+	*/
+	public Object getPixels(int n)
+	{
+		if ( n < 1 || n > depth )
+			throw new IllegalArgumentException( "Slice out of range: " + n );
+
+		if ( materialized != null ) return materialized.getPixels( n );
+
+		Integer key = Integer.valueOf( n );
+		AffineModel3D t;
+		synchronized ( this )
+		{
+			Object pixels = cache.get( key );
+			if ( pixels != null ) return pixels;
+			t = transform.copy();
+		}
+
+		ImageProcessor ip = createProcessor();
+		AffineRenderer.renderSlice( source, t, n - 1, ip );
+		Object pixels = ip.getPixels();
+
+		synchronized ( this )
+		{
+			if ( cacheSize > 0 ) cache.put( key, pixels );
+		}
+		return pixels;
+	}
+
+	/**
+	In-memory rendering of the whole view, computed once
+	@param number of threads
+	@return stack holding every slice
+	*/
+	public synchronized ImageStack materialize(int numThreads)
+	{
+		if ( materialized != null ) return materialized;
+
+		materialized = new AffineRenderer( numThreads ).render( source, transform, width, height, depth );
+		cache.clear();
+		return materialized;
+	}
+}